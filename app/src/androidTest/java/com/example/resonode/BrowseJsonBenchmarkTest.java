@@ -0,0 +1,131 @@
+package com.example.resonode;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Resposta de /browse amb 100, 10.000 i 100.000 elements: BrowseJson llegint del stream contra el
+ * camí d'abans (body().string(), JSONObject i després els MusicItem). Es mesura temps i bytes assignats.
+ */
+@RunWith(AndroidJUnit4.class)
+public class BrowseJsonBenchmarkTest {
+
+    private static final String TAG = "BrowseJsonBenchmarkTest";
+
+    @Test
+    public void streamingMatchesDom() throws Exception {
+        byte[] payload = payload(100);
+        List<MusicItem> dom = parseWithDom(new ByteArrayInputStream(payload));
+        List<MusicItem> streamed = BrowseJson.readListing(new ByteArrayInputStream(payload)).items;
+        assertEquals(dom.size(), streamed.size());
+        for (int i = 0; i < dom.size(); i++) {
+            assertEquals(dom.get(i).getName(), streamed.get(i).getName());
+            assertEquals(dom.get(i).getType(), streamed.get(i).getType());
+            assertEquals(dom.get(i).getPath(), streamed.get(i).getPath());
+            assertEquals(dom.get(i).getArtist(), streamed.get(i).getArtist());
+        }
+    }
+
+    @Test
+    public void benchmark100() throws Exception {
+        benchmark(100, 200);
+    }
+
+    @Test
+    public void benchmark10k() throws Exception {
+        benchmark(10_000, 10);
+    }
+
+    @Test
+    public void benchmark100k() throws Exception {
+        benchmark(100_000, 3);
+    }
+
+    private void benchmark(int items, int runs) throws Exception {
+        byte[] payload = payload(items);
+        // Escalfament perquè el JIT no compti en la primera mesura
+        parseWithDom(new ByteArrayInputStream(payload));
+        BrowseJson.readListing(new ByteArrayInputStream(payload));
+
+        long allocated = allocatedBytes();
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < runs; i++) assertEquals(items, parseWithDom(new ByteArrayInputStream(payload)).size());
+        long domMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 / runs;
+        long domBytes = perRun(allocated, runs);
+
+        allocated = allocatedBytes();
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < runs; i++) assertEquals(items, BrowseJson.readListing(new ByteArrayInputStream(payload)).items.size());
+        long streamMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 / runs;
+        long streamBytes = perRun(allocated, runs);
+
+        Log.i(TAG, items + " elements (" + payload.length / 1024 + " KB): String+JSONObject " + domMicros + " us, "
+                + kb(domBytes) + " assignats; JsonReader " + streamMicros + " us, " + kb(streamBytes) + " assignats");
+    }
+
+    /** El que feien fetchMusicContent i companyia abans de BrowseJson. */
+    private static List<MusicItem> parseWithDom(InputStream in) throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) body.write(buffer, 0, n);
+
+        JSONArray items = new JSONObject(new String(body.toByteArray(), "UTF-8")).getJSONArray("items");
+        List<MusicItem> result = new ArrayList<>();
+        for (int i = 0; i < items.length(); i++) {
+            JSONObject o = items.getJSONObject(i);
+            result.add(new MusicItem(o.getString("name"), o.getString("type"), o.getString("path"), o.optString("artist", "")));
+        }
+        return result;
+    }
+
+    private static byte[] payload(int items) throws Exception {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < items; i++) {
+            JSONObject o = new JSONObject();
+            o.put("name", "Cançó " + i + ".mp3");
+            o.put("type", i % 20 == 0 ? "folder" : "file");
+            o.put("path", "Vault/Artista " + (i % 500) + "/Àlbum " + (i % 40) + "/Cançó " + i + ".mp3");
+            o.put("artist", "Artista " + (i % 500));
+            array.put(o);
+        }
+        JSONObject root = new JSONObject();
+        root.put("current_path", "Vault");
+        root.put("is_vault", true);
+        root.put("items", array);
+        return root.toString().getBytes("UTF-8");
+    }
+
+    /** Bytes assignats per tot el runtime fins ara, o -1 si el dispositiu no ho exposa (API < 23). */
+    private static long allocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return -1;
+        String stat = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        return stat != null ? Long.parseLong(stat) : -1;
+    }
+
+    private static long perRun(long before, int runs) {
+        long after = allocatedBytes();
+        return before < 0 || after < 0 ? -1 : (after - before) / runs;
+    }
+
+    private static String kb(long bytes) {
+        return bytes < 0 ? "? KB" : (bytes / 1024) + " KB";
+    }
+}
@@ -0,0 +1,78 @@
+package com.example.resonode;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/** findLocalSong ha de saltar les còpies sense fitxer i no confondre cançons amb el mateix títol. */
+@RunWith(AndroidJUnit4.class)
+public class OfflineDBLocalSongTest {
+
+    private Context context;
+    private OfflineDB db;
+    private File dir;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        db = OfflineDB.get(context);
+        dir = new File(context.getCacheDir(), "localsong_test");
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void skipsCopiesWhoseFileIsMissing() throws IOException {
+        File missing = new File(dir, "missing.mp3");
+        File present = file("present.mp3");
+        db.saveSong("Music/A/creep.mp3", "Creep", "Playlist A", missing.getPath(), "Radiohead");
+        db.saveSong("Music/B/creep.mp3", "Creep", "Playlist B", present.getPath(), "Radiohead");
+
+        // La primera coincidència (per ruta i per nom) no té fitxer: s'ha de trobar la segona
+        OfflineDB.LocalSong song = db.findLocalSong("Music/A/creep.mp3", "Creep", "Radiohead");
+        assertNotNull(song);
+        assertEquals(present.getPath(), song.filePath);
+        assertNull(db.findLocalSong("Music/A/creep.mp3", null, null));
+    }
+
+    @Test
+    public void nameFallbackNeedsTheSameArtist() throws IOException {
+        db.saveSong("Music/A/creep.mp3", "Creep", "Playlist A", file("radiohead.mp3").getPath(), "Radiohead");
+
+        assertNull(db.findLocalSong("Music/B/creep.mp3", "Creep", "Stone Temple Pilots"));
+        assertNull(db.findLocalSong("Music/B/creep.mp3", "Creep", null));
+        OfflineDB.LocalSong song = db.findLocalSong("Music/B/creep.mp3", "Creep", "radiohead");
+        assertNotNull(song);
+        assertEquals("Music/A/creep.mp3", song.serverPath);
+    }
+
+    private File file(String name) throws IOException {
+        File f = new File(dir, name);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            out.write(new byte[16]);
+        }
+        return f;
+    }
+}
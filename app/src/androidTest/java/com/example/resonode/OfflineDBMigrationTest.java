@@ -0,0 +1,254 @@
+package com.example.resonode;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Obre amb OfflineDB.get un fitxer amb l'esquema de la v3 (songs i playback_history com a taules
+ * planes) i comprova que la cadena de migracions fins a la versió actual no perd res.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineDBMigrationTest {
+
+    private static final String TAG = "OfflineDBMigrationTest";
+    private static final int PLAYLISTS = 20;
+    private static final int FILES = 100;
+    private static final int PLAYS = 500;
+
+    private Context context;
+    private File filesDir;
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+
+        filesDir = new File(context.getCacheDir(), "v3test");
+        filesDir.mkdirs();
+        for (int i = 0; i < FILES; i++) {
+            try (FileOutputStream out = new FileOutputStream(fileFor(i))) {
+                out.write(new byte[100 + i]);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        File[] files = filesDir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+        filesDir.delete();
+    }
+
+    @Test
+    public void migratesV3Database() {
+        int rows = 10_000;
+        createV3(rows);
+        OfflineDB db = OfflineDB.get(context);
+        SQLiteDatabase sql = db.getReadableDatabase();
+
+        // La vista songs manté els id i les files de la taula original
+        assertEquals(rows, count(sql, "SELECT COUNT(*) FROM songs"));
+        try (Cursor c = sql.rawQuery("SELECT id, server_path, name, playlist_name, file_path, artist FROM songs ORDER BY id", null)) {
+            int i = 0;
+            while (c.moveToNext()) {
+                assertEquals(i + 1, c.getInt(0));
+                assertEquals(serverPath(i), c.getString(1));
+                assertEquals(name(i), c.getString(2));
+                assertEquals(playlist(i), c.getString(3));
+                assertEquals(filePath(i), c.getString(4));
+                assertEquals(artist(i), c.getString(5));
+                i++;
+            }
+            assertEquals(rows, i);
+        }
+
+        // Cada fitxer compta totes les cançons que hi apunten
+        Map<String, Integer> uses = new HashMap<>();
+        for (int i = 0; i < rows; i++) {
+            if (isContent(i)) continue;
+            Integer n = uses.get(filePath(i));
+            uses.put(filePath(i), n == null ? 1 : n + 1);
+        }
+        assertEquals(uses.size(), count(sql, "SELECT COUNT(*) FROM files"));
+        try (Cursor c = sql.rawQuery("SELECT file_path, refcount, size FROM files", null)) {
+            while (c.moveToNext()) {
+                assertEquals(c.getString(0), uses.get(c.getString(0)), (Integer) c.getInt(1));
+                assertEquals(new File(c.getString(0)).length(), c.getLong(2));
+            }
+        }
+
+        List<MusicItem> found = db.searchLocal("canco 4321", 10);
+        assertFalse(found.isEmpty());
+        assertEquals(name(4321), found.get(0).getName());
+        assertEquals("Music/" + playlist(3), db.getPlaylistFolder(playlist(3)));
+
+        // L'historial hi és sencer i el que no s'havia pujat encara es pot pujar
+        assertEquals(PLAYS, count(sql, "SELECT COUNT(*) FROM playback_history"));
+        assertEquals(PLAYS / 2, count(sql, "SELECT COUNT(*) FROM playback_history WHERE synced = 0"));
+        OfflineDB.SyncBatch batch = db.claimSyncBatch(PLAYS);
+        assertNotNull(batch);
+        assertEquals(PLAYS / 2, batch.plays.length());
+
+        // Acumulats = recórrer l'historial
+        assertEquals(0, count(sql, difference("SELECT day, plays, seconds FROM stats_daily",
+                "SELECT timestamp / 86400, COUNT(*), SUM(duration) FROM playback_history GROUP BY 1")));
+        assertEquals(0, count(sql, difference("SELECT day, name, plays, seconds FROM stats_daily_tracks",
+                "SELECT timestamp / 86400, IFNULL(name, ''), COUNT(*), SUM(duration) FROM playback_history GROUP BY 1, 2")));
+        assertEquals(0, count(sql, difference("SELECT day, artist, plays, seconds FROM stats_daily_artists",
+                "SELECT timestamp / 86400, IFNULL(artist, ''), COUNT(*), SUM(duration) FROM playback_history GROUP BY 1, 2")));
+        assertEquals(0, count(sql, difference("SELECT month, name, plays, seconds FROM stats_monthly_tracks",
+                "SELECT timestamp / 2592000, IFNULL(name, ''), COUNT(*), SUM(duration) FROM playback_history GROUP BY 1, 2")));
+        assertEquals(0, count(sql, difference("SELECT month, artist, plays, seconds FROM stats_monthly_artists",
+                "SELECT timestamp / 2592000, IFNULL(artist, ''), COUNT(*), SUM(duration) FROM playback_history GROUP BY 1, 2")));
+    }
+
+    @Test
+    public void benchmark10k() {
+        benchmark(10_000);
+    }
+
+    @Test
+    public void benchmark100k() {
+        benchmark(100_000);
+    }
+
+    private void benchmark(int rows) {
+        createV3(rows);
+        long start = SystemClock.elapsedRealtimeNanos();
+        OfflineDB db = OfflineDB.get(context);
+        db.getWritableDatabase();
+        Log.i(TAG, "Migració v3 -> v12 de " + rows + " files: " + (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000 + " ms");
+
+        start = SystemClock.elapsedRealtimeNanos();
+        int songs = db.getSongsInPlaylist(playlist(7)).size();
+        log(rows, "getSongsInPlaylist", start, songs);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        songs = db.getSyncableSongs(playlist(7)).size();
+        log(rows, "getSyncableSongs", start, songs);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        songs = db.searchLocal("canco 77", 50).size();
+        log(rows, "searchLocal", start, songs);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        assertNotNull(db.findLocalSong(serverPath(rows - 1), null, null));
+        log(rows, "findLocalSong (construint l'índex)", start, 1);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < 1000; i++) db.findLocalSong(filePath(i * (rows / 1000)), null, null);
+        log(rows, "1000 x findLocalSong", start, 1000);
+
+        start = SystemClock.elapsedRealtimeNanos();
+        db.getLocalStats("year");
+        log(rows, "getLocalStats", start, PLAYS);
+    }
+
+    private static void log(int rows, String what, long start, int results) {
+        Log.i(TAG, what + " amb " + rows + " files: " + (SystemClock.elapsedRealtimeNanos() - start) / 1000 + " us, " + results + " resultats");
+        assertTrue(results > 0);
+    }
+
+    /** Crea offline.db tal com la deixava la v3 de l'app. */
+    private void createV3(int rows) {
+        File path = context.getDatabasePath(OfflineDB.DATABASE_NAME);
+        path.getParentFile().mkdirs();
+        SQLiteDatabase v3 = SQLiteDatabase.openOrCreateDatabase(path, null);
+        try {
+            v3.execSQL("CREATE TABLE songs(id INTEGER PRIMARY KEY,server_path TEXT,name TEXT,playlist_name TEXT,file_path TEXT,artist TEXT)");
+            v3.execSQL("CREATE TABLE playback_history(id INTEGER PRIMARY KEY,timestamp INTEGER,name TEXT,artist TEXT,duration INTEGER,synced INTEGER)");
+            v3.beginTransaction();
+            try {
+                ContentValues values = new ContentValues();
+                for (int i = 0; i < rows; i++) {
+                    values.put("server_path", serverPath(i));
+                    values.put("name", name(i));
+                    values.put("playlist_name", playlist(i));
+                    values.put("file_path", filePath(i));
+                    values.put("artist", artist(i));
+                    v3.insert("songs", null, values);
+                }
+                values.clear();
+                long now = System.currentTimeMillis() / 1000;
+                for (int i = 0; i < PLAYS; i++) {
+                    values.put("timestamp", now - i * 3600L * 7);
+                    values.put("name", i % 25 == 0 ? null : name(i % 40));
+                    values.put("artist", artist(i % 40));
+                    values.put("duration", 120 + i);
+                    values.put("synced", i % 2);
+                    v3.insert("playback_history", null, values);
+                }
+                v3.setTransactionSuccessful();
+            } finally {
+                v3.endTransaction();
+            }
+            v3.setVersion(3);
+        } finally {
+            v3.close();
+        }
+    }
+
+    // Una de cada deu és importada del mòbil: server_path i file_path són la mateixa uri
+    private static boolean isContent(int i) {
+        return i % 10 == 0;
+    }
+
+    private static String serverPath(int i) {
+        return isContent(i) ? "content://test/" + i : "Music/" + playlist(i) + "/" + i + ".mp3";
+    }
+
+    private String filePath(int i) {
+        return isContent(i) ? serverPath(i) : fileFor(i % FILES).getPath();
+    }
+
+    private File fileFor(int n) {
+        return new File(filesDir, "f" + n + ".mp3");
+    }
+
+    private static String name(int i) {
+        return "Cançó " + i;
+    }
+
+    private static String playlist(int i) {
+        return "Playlist " + (i % PLAYLISTS);
+    }
+
+    private static String artist(int i) {
+        return i % 7 == 0 ? null : "Artista " + (i % 300);
+    }
+
+    /** Files que són en una consulta i no en l'altra, en qualsevol dels dos sentits. */
+    private static String difference(String a, String b) {
+        return "SELECT COUNT(*) FROM (SELECT * FROM (" + a + " EXCEPT " + b + ") UNION ALL SELECT * FROM (" + b + " EXCEPT " + a + "))";
+    }
+
+    private static int count(SQLiteDatabase db, String sql) {
+        try (Cursor c = db.rawQuery(sql, null)) {
+            return c.moveToFirst() ? c.getInt(0) : -1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cerca offline sobre 50.000 cançons. Les que comencen per la consulta s'afegeixen al final,
+ * amb docid alts, perquè quedin fora de qualsevol finestra de les primeres coincidències.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineDBSearchTest {
+
+    private static final String TAG = "OfflineDBSearchTest";
+    private static final int ROWS = 50_000;
+
+    private Context context;
+    private OfflineDB db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        db = OfflineDB.get(context);
+
+        db.inTransaction(() -> {
+            // Coincideixen per artista, no pel nom
+            for (int i = 0; i < ROWS - 10; i++) {
+                String path = "content://test/" + i;
+                db.saveSong(path, "Cançó " + i, "Playlist " + (i % 50), path, "Creepers " + (i % 300));
+            }
+            for (int i = 0; i < 10; i++) {
+                String path = "content://test/creep/" + i;
+                db.saveSong(path, "Creep " + i, "Playlist 0", path, "Radiohead");
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+    }
+
+    @Test
+    public void nameMatchesRankFirstEvenWithManyOtherMatches() {
+        List<MusicItem> results = db.searchLocal("creep", 10);
+        assertEquals(10, results.size());
+        for (MusicItem item : results) assertTrue(item.getName(), item.getName().startsWith("Creep "));
+    }
+
+    @Test
+    public void benchmarkSearch() {
+        String[] queries = {"creep", "canco 4", "playlist 7", "c", "radiohead"};
+        for (String query : queries) db.searchLocal(query, 50);
+
+        for (String query : queries) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            int runs = 20;
+            int found = 0;
+            for (int i = 0; i < runs; i++) found = db.searchLocal(query, 50).size();
+            long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 / runs;
+            Log.i(TAG, "searchLocal(\"" + query + "\") sobre " + ROWS + " files: " + micros + " us, " + found + " resultats");
+            assertTrue(found > 0);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.resonode;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Wrapped local sobre 500.000 reproduccions repartides en més d'un any. Els resultats dels
+ * acumulats (diaris, mensuals i el dia de tall) han de coincidir amb recórrer tot l'historial.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineDBStatsTest {
+
+    private static final String TAG = "OfflineDBStatsTest";
+    private static final int ROWS = 500_000;
+    private static final String[] PERIODS = {"week", "month", "year"};
+
+    private Context context;
+    private OfflineDB db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        db = OfflineDB.get(context);
+
+        long now = System.currentTimeMillis() / 1000;
+        Random random = new Random(42);
+        long start = SystemClock.elapsedRealtimeNanos();
+        db.inTransaction(() -> {
+            SQLiteDatabase sql = db.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            for (int i = 0; i < ROWS; i++) {
+                values.put("timestamp", now - random.nextInt(400 * 86400));
+                values.put("name", "Cançó " + random.nextInt(2000));
+                values.put("artist", "Artista " + random.nextInt(150));
+                values.put("duration", 60 + random.nextInt(300));
+                values.put("synced", 1);
+                sql.insert("playback_history", null, values);
+            }
+        });
+        Log.i(TAG, ROWS + " reproduccions inserides (amb el trigger) en "
+                + (SystemClock.elapsedRealtimeNanos() - start) / 1_000_000 + " ms");
+    }
+
+    @After
+    public void tearDown() {
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+    }
+
+    @Test
+    public void rollupsMatchFullRecompute() throws Exception {
+        for (String period : PERIODS) assertMatches(period);
+
+        // El rebuild de la migració ha de deixar els mateixos acumulats que el trigger
+        db.rebuildStatsRollups();
+        for (String period : PERIODS) assertMatches(period);
+    }
+
+    @Test
+    public void benchmarkLocalStats() throws Exception {
+        for (String period : PERIODS) db.getLocalStats(period);
+
+        for (String period : PERIODS) {
+            int runs = 20;
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < runs; i++) db.getLocalStats(period);
+            long micros = (SystemClock.elapsedRealtimeNanos() - start) / 1000 / runs;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            recompute(period, System.currentTimeMillis() / 1000);
+            long fullMicros = (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+
+            Log.i(TAG, "getLocalStats(\"" + period + "\") sobre " + ROWS + " files: " + micros
+                    + " us (recórrer l'historial: " + fullMicros + " us)");
+        }
+    }
+
+    /** Si el segon canvia enmig, el tall es mou: es torna a provar. */
+    private void assertMatches(String period) throws Exception {
+        while (true) {
+            long before = System.currentTimeMillis() / 1000;
+            JSONObject stats = db.getLocalStats(period);
+            if (System.currentTimeMillis() / 1000 != before) continue;
+
+            Expected expected = recompute(period, before);
+            assertEquals(period, expected.seconds, Math.round(stats.getDouble("total_hours") * 3600));
+            assertTop(period, expected.tracks, stats.getJSONArray("top_5"));
+            assertTop(period, expected.artists, stats.getJSONArray("top_artists"));
+            return;
+        }
+    }
+
+    private static void assertTop(String period, Map<String, Integer> expected, JSONArray top) throws Exception {
+        int max = 0;
+        for (int plays : expected.values()) max = Math.max(max, plays);
+        assertEquals(period, Math.min(5, expected.size()), top.length());
+        assertEquals(period, max, top.getJSONObject(0).getInt("plays"));
+        for (int i = 0; i < top.length(); i++) {
+            JSONObject item = top.getJSONObject(i);
+            assertEquals(period + " " + item.getString("name"), expected.get(item.getString("name")), (Integer) item.getInt("plays"));
+        }
+    }
+
+    private static class Expected {
+        long seconds;
+        final Map<String, Integer> tracks = new HashMap<>();
+        final Map<String, Integer> artists = new HashMap<>();
+    }
+
+    private Expected recompute(String period, long now) {
+        long limit = period.equals("week") ? now - 7 * 86400
+                : period.equals("month") ? now - 30 * 86400 : now - 365 * 86400;
+        Expected expected = new Expected();
+        try (Cursor c = db.getReadableDatabase().rawQuery(
+                "SELECT name, artist, duration FROM playback_history WHERE timestamp > ?",
+                new String[]{String.valueOf(limit)})) {
+            while (c.moveToNext()) {
+                count(expected.tracks, c.getString(0));
+                count(expected.artists, c.getString(1));
+                expected.seconds += c.getLong(2);
+            }
+        }
+        return expected;
+    }
+
+    private static void count(Map<String, Integer> counts, String key) {
+        Integer plays = counts.get(key);
+        counts.put(key, plays == null ? 1 : plays + 1);
+    }
+}
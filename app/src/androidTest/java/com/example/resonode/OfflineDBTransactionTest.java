@@ -0,0 +1,133 @@
+package com.example.resonode;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput d'escriptura: com es feia abans (obrir, escriure i tancar per cada fila, sense
+ * transacció) contra la connexió compartida amb WAL i els lots d'inTransaction.
+ */
+@RunWith(AndroidJUnit4.class)
+public class OfflineDBTransactionTest {
+
+    private static final String TAG = "OfflineDBTransactionTest";
+    private static final String LEGACY_NAME = "offline_legacy_bench.db";
+    private static final int LEGACY_ROWS = 2_000;
+    private static final int ROWS = 50_000;
+
+    private Context context;
+    private OfflineDB db;
+
+    @Before
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        context.deleteDatabase(LEGACY_NAME);
+        db = OfflineDB.get(context);
+    }
+
+    @After
+    public void tearDown() {
+        OfflineDB.resetForTests();
+        context.deleteDatabase(OfflineDB.DATABASE_NAME);
+        context.deleteDatabase(LEGACY_NAME);
+    }
+
+    @Test
+    public void benchmarkInsertThroughput() {
+        File legacy = context.getDatabasePath(LEGACY_NAME);
+        legacy.getParentFile().mkdirs();
+        SQLiteDatabase create = SQLiteDatabase.openOrCreateDatabase(legacy, null);
+        create.execSQL("CREATE TABLE playback_history(id INTEGER PRIMARY KEY,timestamp INTEGER,name TEXT,artist TEXT,duration INTEGER,synced INTEGER)");
+        create.close();
+
+        // Abans: cada logPlay obria el fitxer, feia l'INSERT en autocommit i el tancava
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < LEGACY_ROWS; i++) {
+            SQLiteDatabase each = SQLiteDatabase.openDatabase(legacy.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            each.insert("playback_history", null, play(i));
+            each.close();
+        }
+        long legacyNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Ara: una sola connexió i un sol lot
+        start = SystemClock.elapsedRealtimeNanos();
+        db.inTransaction(() -> {
+            SQLiteDatabase sql = db.getWritableDatabase();
+            for (int i = 0; i < ROWS; i++) sql.insert("playback_history", null, play(i));
+        });
+        long batchedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "INSERT obrint i tancant per fila: " + rate(LEGACY_ROWS, legacyNanos) + " files/s (" + LEGACY_ROWS + " files)");
+        Log.i(TAG, "INSERT en un lot amb WAL: " + rate(ROWS, batchedNanos) + " files/s (" + ROWS + " files, amb els triggers dels acumulats)");
+        assertEquals(ROWS, count("SELECT COUNT(*) FROM playback_history"));
+    }
+
+    @Test
+    public void benchmarkMarkSyncedThroughput() {
+        db.inTransaction(() -> {
+            SQLiteDatabase sql = db.getWritableDatabase();
+            for (int i = 0; i < ROWS; i++) sql.insert("playback_history", null, play(i));
+        });
+        SQLiteDatabase sql = db.getWritableDatabase();
+
+        // Abans: un UPDATE per id fora de cap transacció
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int id = 1; id <= LEGACY_ROWS; id++) {
+            sql.execSQL("UPDATE playback_history SET synced = 1 WHERE id = ?", new Object[]{id});
+        }
+        long legacyNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        // Ara: lots de 200 reclamats i marcats en bloc, com fa HistorySync
+        start = SystemClock.elapsedRealtimeNanos();
+        int marked = 0;
+        OfflineDB.SyncBatch batch;
+        while ((batch = db.claimSyncBatch(200)) != null) {
+            db.markBatchSynced(batch.key);
+            marked += batch.plays.length();
+        }
+        long batchedNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "UPDATE per id en autocommit: " + rate(LEGACY_ROWS, legacyNanos) + " files/s (" + LEGACY_ROWS + " files)");
+        Log.i(TAG, "claimSyncBatch + markBatchSynced: " + rate(marked, batchedNanos) + " files/s (" + marked + " files)");
+        assertEquals(ROWS - LEGACY_ROWS, marked);
+        assertEquals(0, count("SELECT COUNT(*) FROM playback_history WHERE synced = 0"));
+    }
+
+    private static ContentValues play(int i) {
+        ContentValues values = new ContentValues();
+        values.put("timestamp", 1_700_000_000L + i * 60L);
+        values.put("name", "Cançó " + (i % 500));
+        values.put("artist", "Artista " + (i % 50));
+        values.put("duration", 180);
+        values.put("synced", 0);
+        return values;
+    }
+
+    private static long rate(int rows, long nanos) {
+        return nanos > 0 ? rows * 1_000_000_000L / nanos : 0;
+    }
+
+    private int count(String query) {
+        try (Cursor c = db.getReadableDatabase().rawQuery(query, null)) {
+            return c.moveToFirst() ? c.getInt(0) : -1;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Llista d'artistes de /vault/artists guardada a disc i indexada per prefix. Cada paraula del nom
+ * normalitzat (sense accents, minúscules) és una clau d'un array ordenat, de manera que "floy"
+ * troba "Pink Floyd" amb una cerca binària. Es revalida amb l'ETag quan passa el TTL.
+ */
+public class ArtistIndex {
+
+    private static final String FILE_NAME = "artist_index.json";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_TTL_MINUTES = "artist_index_ttl_minutes";
+    private static final int DEFAULT_TTL_MINUTES = 60;
+
+    private static ArtistIndex instance;
+
+    /** Immutable: es substitueix sencera quan arriba una llista nova. */
+    private static class Snapshot {
+        final String[] names;
+        final String[] keys;
+        final int[] owners;
+
+        Snapshot(List<String> artistNames) {
+            names = artistNames.toArray(new String[0]);
+            List<String> keyList = new ArrayList<>();
+            List<Integer> ownerList = new ArrayList<>();
+            for (int i = 0; i < names.length; i++) {
+                String normalized = OfflineDB.normalize(names[i]);
+                int pos = 0;
+                while (pos < normalized.length()) {
+                    keyList.add(normalized.substring(pos));
+                    ownerList.add(i);
+                    int space = normalized.indexOf(' ', pos);
+                    if (space < 0) break;
+                    pos = space + 1;
+                }
+            }
+            Integer[] order = new Integer[keyList.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> keyList.get(a).compareTo(keyList.get(b)));
+            keys = new String[order.length];
+            owners = new int[order.length];
+            for (int i = 0; i < order.length; i++) {
+                keys[i] = keyList.get(order[i]);
+                owners[i] = ownerList.get(order[i]);
+            }
+        }
+    }
+
+    private final File file;
+    private final SharedPreferences prefs;
+    private volatile Snapshot snapshot;
+    private String etag;
+    private long fetchedAt;
+    private boolean diskLoaded = false;
+
+    public static synchronized ArtistIndex get(Context context) {
+        if (instance == null) instance = new ArtistIndex(context.getApplicationContext());
+        return instance;
+    }
+
+    private ArtistIndex(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    public boolean isLoaded() {
+        return snapshot != null;
+    }
+
+    /** Llegeix la còpia de disc la primera vegada (cal cridar-ho fora del fil principal). */
+    public synchronized void ensureLoaded() {
+        if (diskLoaded) return;
+        diskLoaded = true;
+        if (!file.exists()) return;
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+            JSONObject o = new JSONObject(new String(data, 0, read, "UTF-8"));
+            JSONArray arr = o.getJSONArray("artists");
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < arr.length(); i++) names.add(arr.getString(i));
+            etag = o.optString("etag", null);
+            fetchedAt = o.optLong("fetched_at", 0);
+            snapshot = new Snapshot(names);
+        } catch (Exception e) {
+            file.delete();
+        }
+    }
+
+    public synchronized boolean isStale() {
+        long ttlMs = prefs.getInt(KEY_TTL_MINUTES, DEFAULT_TTL_MINUTES) * 60_000L;
+        return snapshot == null || System.currentTimeMillis() - fetchedAt >= ttlMs;
+    }
+
+    /**
+     * Petició condicional a /vault/artists. Retorna true si la llista ha canviat;
+     * amb un 304 només es renova la data.
+     */
+    public boolean refresh(OkHttpClient client) throws IOException {
+        String knownEtag;
+        synchronized (this) {
+            knownEtag = snapshot != null ? etag : null;
+        }
+        Request.Builder builder = new Request.Builder().url(Config.SERVER_URL + "/vault/artists");
+        if (knownEtag != null) builder.header("If-None-Match", knownEtag);
+
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (response.code() == 304) {
+                synchronized (this) {
+                    fetchedAt = System.currentTimeMillis();
+                    save();
+                }
+                return false;
+            }
+            if (!response.isSuccessful()) throw new IOException("Error " + response.code());
+
+            List<String> names = new ArrayList<>();
+            for (MusicItem item : BrowseJson.readArtists(response.body().byteStream())) names.add(item.getName());
+            synchronized (this) {
+                boolean changed = snapshot == null || !Arrays.asList(snapshot.names).equals(names);
+                if (changed) snapshot = new Snapshot(names);
+                etag = response.header("ETag");
+                fetchedAt = System.currentTimeMillis();
+                save();
+                return changed;
+            }
+        }
+    }
+
+    public List<MusicItem> all() {
+        Snapshot s = snapshot;
+        List<MusicItem> items = new ArrayList<>();
+        if (s == null) return items;
+        for (String name : s.names) items.add(toItem(name));
+        return items;
+    }
+
+    /** Artistes amb alguna paraula que comenci per la consulta, en ordre alfabètic de la clau. */
+    public List<MusicItem> prefix(String query, int limit) {
+        Snapshot s = snapshot;
+        String normalized = OfflineDB.normalize(query);
+        if (s == null || normalized.isEmpty()) return Collections.emptyList();
+
+        int lo = 0, hi = s.keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (s.keys[mid].compareTo(normalized) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        Set<Integer> found = new LinkedHashSet<>();
+        for (int i = lo; i < s.keys.length && found.size() < limit && s.keys[i].startsWith(normalized); i++) {
+            found.add(s.owners[i]);
+        }
+        List<MusicItem> items = new ArrayList<>();
+        for (int owner : found) items.add(toItem(s.names[owner]));
+        return items;
+    }
+
+    private static MusicItem toItem(String name) {
+        return new MusicItem(name, "folder", name, "Artista");
+    }
+
+    private void save() {
+        if (snapshot == null) return;
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            JSONObject o = new JSONObject();
+            o.put("artists", new JSONArray(Arrays.asList(snapshot.names)));
+            if (etag != null) o.put("etag", etag);
+            o.put("fetched_at", fetchedAt);
+            out.write(o.toString().getBytes("UTF-8"));
+        } catch (Exception e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+}
@@ -0,0 +1,509 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+
+/**
+ * Punt únic per resoldre caràtules. Ordre de cerca: memòria, disc, art incrustat
+ * (content://), servidor (/cover) i finalment la portada offline de la playlist.
+ */
+public class ArtworkRepository {
+
+    private static final String TAG = "Artwork";
+    private static final String DIR_NAME = "artwork_cache";
+    private static final long MAX_DISK_BYTES = 50L * 1024 * 1024;
+    private static final String META_EXT = ".meta";
+    // Si el servidor no envia max-age, la caràtula de disc es revalida un cop al dia
+    private static final long DEFAULT_MAX_AGE_MS = 24L * 60 * 60 * 1000;
+
+    public static final int TIER_MEMORY = 0;
+    public static final int TIER_DISK = 1;
+    public static final int TIER_EMBEDDED = 2;
+    public static final int TIER_SERVER = 3;
+    public static final int TIER_OFFLINE = 4;
+    private static final String[] TIER_NAMES = {"memory", "disk", "embedded", "server", "offline"};
+
+    public interface Callback { void onArtwork(Bitmap bitmap); }
+
+    public static class Request {
+        final String localUri;
+        final String coverPath;
+        final String playlistName;
+        final String username;
+
+        /**
+         * @param localUri     uri content:// per llegir l'art incrustat, o null
+         * @param coverPath    ruta del servidor per demanar /cover, o null
+         * @param playlistName playlist de la portada offline (cover_<nom>.jpg), o null
+         */
+        public Request(String localUri, String coverPath, String playlistName, String username) {
+            this.localUri = localUri;
+            this.coverPath = coverPath;
+            this.playlistName = playlistName;
+            this.username = username;
+        }
+
+        public boolean isEmpty() {
+            return localUri == null && coverPath == null && playlistName == null;
+        }
+
+        String sourceKey() {
+            return localUri + "|" + coverPath + "|" + playlistName + "|" + username;
+        }
+
+        public String key(int sizePx) {
+            return sourceKey() + "@" + sizePx;
+        }
+    }
+
+    private static ArtworkRepository instance;
+
+    public static synchronized ArtworkRepository get(Context context) {
+        if (instance == null) instance = new ArtworkRepository(context.getApplicationContext());
+        return instance;
+    }
+
+    private final Context context;
+    private final File diskDir;
+    private final LruCache<String, Bitmap> memory;
+    private final OkHttpClient client;
+    // Fils de baixa prioritat perquè l'extracció no competeixi amb el scroll
+    private final ExecutorService workers = Executors.newFixedThreadPool(3, r -> new Thread(() -> {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        r.run();
+    }, "Artwork"));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private final Map<String, Job> inFlight = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong[] tierHits = new AtomicLong[TIER_NAMES.length];
+
+    private ArtworkRepository(Context context) {
+        this.context = context;
+        this.diskDir = new File(context.getCacheDir(), DIR_NAME);
+        if (!diskDir.exists()) diskDir.mkdirs();
+
+        int maxKb = (int) (Runtime.getRuntime().maxMemory() / 1024 / 8);
+        this.memory = new LruCache<String, Bitmap>(maxKb) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) { return value.getByteCount() / 1024; }
+        };
+
+        for (int i = 0; i < tierHits.length; i++) tierHits[i] = new AtomicLong();
+
+        this.client = HttpStack.get();
+
+        workers.execute(this::trimDisk);
+    }
+
+    /** Es crida després de cada escriptura, perquè el disc no passi del límit mentre l'app és viva. */
+    private synchronized void trimDisk() {
+        File[] files = diskDir.listFiles((d, name) -> !name.endsWith(".tmp") && !name.endsWith(META_EXT));
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length() + metaFile(f).length();
+        if (total <= MAX_DISK_BYTES) return;
+        java.util.Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (total <= MAX_DISK_BYTES) break;
+            File meta = metaFile(f);
+            total -= f.length() + meta.length();
+            f.delete();
+            meta.delete();
+        }
+    }
+
+    /** Permet cancel·lar una petició, per exemple quan es recicla una fila de la llista. */
+    public class Ticket {
+        private final String key;
+        private final Callback callback;
+        private volatile boolean cancelled = false;
+
+        Ticket(String key, Callback callback) {
+            this.key = key;
+            this.callback = callback;
+        }
+
+        public void cancel() {
+            if (cancelled) return;
+            cancelled = true;
+            if (key != null) onTicketCancelled(this);
+        }
+    }
+
+    private static class Job {
+        final List<Ticket> tickets = new ArrayList<>();
+        Future<?> future;
+    }
+
+    /** El callback s'executa sempre al fil principal; rep null si cap capa té caràtula. */
+    public Ticket load(final Request request, final int sizePx, Callback callback) {
+        requests.incrementAndGet();
+        final String key = request.key(sizePx);
+
+        Bitmap cached = memory.get(key);
+        if (cached != null) {
+            tierHits[TIER_MEMORY].incrementAndGet();
+            callback.onArtwork(cached);
+            return new Ticket(null, callback);
+        }
+        if (request.isEmpty()) {
+            misses.incrementAndGet();
+            callback.onArtwork(null);
+            return new Ticket(null, callback);
+        }
+
+        Ticket ticket = new Ticket(key, callback);
+        synchronized (inFlight) {
+            Job job = inFlight.get(key);
+            if (job != null) {
+                job.tickets.add(ticket);
+                return ticket;
+            }
+            final Job newJob = new Job();
+            newJob.tickets.add(ticket);
+            inFlight.put(key, newJob);
+            newJob.future = workers.submit(() -> {
+                Bitmap bitmap = null;
+                try {
+                    bitmap = resolve(request, sizePx);
+                } catch (Exception e) {
+                    Log.w(TAG, "Error resolent caràtula: " + e.getMessage());
+                }
+                if (bitmap != null) memory.put(key, bitmap);
+                else misses.incrementAndGet();
+                deliver(key, newJob, bitmap);
+            });
+        }
+        return ticket;
+    }
+
+    private void onTicketCancelled(Ticket ticket) {
+        synchronized (inFlight) {
+            Job job = inFlight.get(ticket.key);
+            if (job == null) return;
+            job.tickets.remove(ticket);
+            if (job.tickets.isEmpty()) {
+                // Ningú més l'espera: si encara no ha començat, no cal fer la feina
+                inFlight.remove(ticket.key);
+                if (job.future != null) job.future.cancel(false);
+            }
+        }
+    }
+
+    private void deliver(String key, Job job, final Bitmap bitmap) {
+        final List<Ticket> waiting;
+        synchronized (inFlight) {
+            if (inFlight.get(key) == job) inFlight.remove(key);
+            waiting = new ArrayList<>(job.tickets);
+        }
+        if (waiting.isEmpty()) return;
+        mainHandler.post(() -> {
+            for (Ticket t : waiting) {
+                if (!t.cancelled) t.callback.onArtwork(bitmap);
+            }
+        });
+    }
+
+    private File diskFile(Request request) {
+        return new File(diskDir, AudioCache.keyFor(request.sourceKey()) + ".img");
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getPath() + META_EXT);
+    }
+
+    private Bitmap resolve(Request request, int sizePx) {
+        if (request.localUri != null) {
+            Bitmap thumb = resolveEmbedded(request.localUri, sizePx);
+            if (thumb != null) return thumb;
+        }
+
+        // A disc es guarda la imatge original, així cada mida es descodifica del mateix fitxer.
+        // Passat el max-age es revalida amb l'ETag; sense xarxa o si falla, es fa servir la de disc.
+        File diskFile = diskFile(request);
+        Cover cover = null;
+        if (request.coverPath != null && isStale(diskFile) && NetworkReceiver.isConnected(context)) {
+            cover = fetch(request, diskFile);
+        }
+
+        if (cover != null && cover.data != null) {
+            Bitmap bitmap = decodeBytes(cover.data, sizePx);
+            if (bitmap != null) {
+                tierHits[TIER_SERVER].incrementAndGet();
+                return bitmap;
+            }
+        }
+
+        if (diskFile.exists()) {
+            Bitmap bitmap = decodeFile(diskFile, sizePx);
+            if (bitmap != null) {
+                diskFile.setLastModified(System.currentTimeMillis());
+                tierHits[TIER_DISK].incrementAndGet();
+                return bitmap;
+            }
+        }
+
+        // La portada offline ja és a disc, no cal duplicar-la
+        if (request.playlistName != null) {
+            File offlineCover = getOfflineCoverFile(context, request.playlistName);
+            if (offlineCover.exists()) {
+                Bitmap bitmap = decodeFile(offlineCover, sizePx);
+                if (bitmap != null) {
+                    tierHits[TIER_OFFLINE].incrementAndGet();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * L'art incrustat pot ocupar centenars de KB per cançó; en guardem només la miniatura
+     * a la mida demanada, amb la data de modificació a la clau perquè es refaci si canvia el fitxer.
+     */
+    private Bitmap resolveEmbedded(String uri, int sizePx) {
+        File thumbFile = new File(diskDir, AudioCache.keyFor(uri + "@" + sizePx + "#" + lastModifiedOf(uri)) + ".thumb");
+        if (thumbFile.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbFile.getAbsolutePath());
+            if (bitmap != null) {
+                thumbFile.setLastModified(System.currentTimeMillis());
+                tierHits[TIER_DISK].incrementAndGet();
+                return bitmap;
+            }
+        }
+
+        byte[] art = readEmbeddedArt(uri);
+        if (art == null) return null;
+        Bitmap bitmap = decodeBytes(art, sizePx);
+        if (bitmap == null) return null;
+        bitmap = scaleDown(bitmap, sizePx);
+        tierHits[TIER_EMBEDDED].incrementAndGet();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out) && writeDisk(thumbFile, out.toByteArray())) trimDisk();
+        return bitmap;
+    }
+
+    private long lastModifiedOf(String uri) {
+        if (uri.startsWith("/")) return new File(uri).lastModified();
+        try (Cursor c = context.getContentResolver().query(Uri.parse(uri), null, null, null, null)) {
+            if (c != null && c.moveToFirst()) {
+                int idx = c.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                if (idx < 0) idx = c.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                if (idx >= 0) return c.getLong(idx);
+            }
+        } catch (Exception e) {}
+        return 0;
+    }
+
+    private Bitmap scaleDown(Bitmap bitmap, int sizePx) {
+        int w = bitmap.getWidth(), h = bitmap.getHeight();
+        int shortest = Math.min(w, h);
+        if (shortest <= sizePx) return bitmap;
+        float ratio = (float) sizePx / shortest;
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(w * ratio), Math.round(h * ratio), true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+    public static File getOfflineCoverFile(Context context, String playlistName) {
+        File dir = context.getDir("offline_music", Context.MODE_PRIVATE);
+        return new File(dir, "cover_" + playlistName.replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg");
+    }
+
+    private byte[] readEmbeddedArt(String uri) {
+        MediaMetadataRetriever mmr = new MediaMetadataRetriever();
+        try {
+            mmr.setDataSource(context, Uri.parse(uri));
+            return mmr.getEmbeddedPicture();
+        } catch (Exception e) {
+            return null;
+        } finally {
+            try { mmr.release(); } catch (Exception e) {}
+        }
+    }
+
+    /** Resposta de /cover: data és null si el servidor ha respost 304. */
+    private static class Cover {
+        final byte[] data;
+        final String etag;
+        final long maxAgeMs;
+
+        Cover(byte[] data, String etag, long maxAgeMs) {
+            this.data = data;
+            this.etag = etag;
+            this.maxAgeMs = maxAgeMs;
+        }
+    }
+
+    private Cover downloadCover(String username, String serverPath, String etag) {
+        try {
+            String url = Config.SERVER_URL + "/cover?username=" + username + "&path=" + URLEncoder.encode(serverPath, "UTF-8");
+            okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(url);
+            if (etag != null) builder.header("If-None-Match", etag);
+            try (Response response = client.newCall(builder.build()).execute()) {
+                int maxAge = response.cacheControl().maxAgeSeconds();
+                long maxAgeMs = maxAge >= 0 ? maxAge * 1000L : DEFAULT_MAX_AGE_MS;
+                String newEtag = response.header("ETag", etag);
+                if (response.code() == 304) return new Cover(null, newEtag, maxAgeMs);
+                if (!response.isSuccessful() || response.body() == null) return null;
+                return new Cover(response.body().bytes(), newEtag, maxAgeMs);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Baixa la caràtula, condicionada a l'ETag de la còpia de disc si n'hi ha, i deixa disc i
+     * metadades al dia. Amb un 304 només es renova la data de la còpia que ja hi havia.
+     */
+    private Cover fetch(Request request, File diskFile) {
+        JSONObject meta = diskFile.exists() ? readMeta(diskFile) : null;
+        Cover cover = downloadCover(request.username, request.coverPath, meta != null ? meta.optString("etag", null) : null);
+        if (cover == null) return null;
+        if (cover.data == null) {
+            writeMeta(diskFile, cover);
+        } else if (writeDisk(diskFile, cover.data)) {
+            writeMeta(diskFile, cover);
+            trimDisk();
+        }
+        return cover;
+    }
+
+    private boolean isStale(File diskFile) {
+        if (!diskFile.exists()) return true;
+        JSONObject meta = readMeta(diskFile);
+        if (meta == null) return true;
+        return System.currentTimeMillis() - meta.optLong("fetched_at", 0) >= meta.optLong("max_age", DEFAULT_MAX_AGE_MS);
+    }
+
+    private JSONObject readMeta(File diskFile) {
+        File f = metaFile(diskFile);
+        if (!f.exists()) return null;
+        try (FileInputStream in = new FileInputStream(f)) {
+            byte[] data = new byte[(int) f.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+            return new JSONObject(new String(data, 0, read, "UTF-8"));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private void writeMeta(File diskFile, Cover cover) {
+        try {
+            JSONObject o = new JSONObject();
+            if (cover.etag != null) o.put("etag", cover.etag);
+            o.put("fetched_at", System.currentTimeMillis());
+            o.put("max_age", cover.maxAgeMs);
+            writeDisk(metaFile(diskFile), o.toString().getBytes("UTF-8"));
+        } catch (Exception e) {
+            metaFile(diskFile).delete();
+        }
+    }
+
+    private Bitmap decodeBytes(byte[] data, int sizePx) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+        opts.inSampleSize = sampleSize(opts, sizePx);
+        opts.inJustDecodeBounds = false;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, opts);
+    }
+
+    private Bitmap decodeFile(File file, int sizePx) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+        opts.inSampleSize = sampleSize(opts, sizePx);
+        opts.inJustDecodeBounds = false;
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), opts);
+    }
+
+    private int sampleSize(BitmapFactory.Options opts, int sizePx) {
+        int sample = 1;
+        int w = opts.outWidth, h = opts.outHeight;
+        while (w / (sample * 2) >= sizePx && h / (sample * 2) >= sizePx) sample *= 2;
+        return sample;
+    }
+
+    private boolean writeDisk(File file, byte[] data) {
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        } catch (IOException e) {
+            tmp.delete();
+            return false;
+        }
+        if (tmp.renameTo(file)) return true;
+        tmp.delete();
+        return false;
+    }
+
+    /** Descarrega (o revalida) la caràtula del servidor a disc sense descodificar-la. Bloqueja el fil actual. */
+    public void warm(Request request) {
+        if (request.coverPath == null || !NetworkReceiver.isConnected(context)) return;
+        File diskFile = diskFile(request);
+        if (!isStale(diskFile)) return;
+        fetch(request, diskFile);
+    }
+
+    /** Buida memòria i disc, per exemple després de canviar una portada. */
+    public void clear() {
+        memory.evictAll();
+        File[] files = diskDir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+    }
+
+    public double getHitRatio(int tier) {
+        long total = requests.get();
+        return total == 0 ? 0 : (double) tierHits[tier].get() / total;
+    }
+
+    public String getStats() {
+        StringBuilder sb = new StringBuilder("requests=").append(requests.get());
+        for (int i = 0; i < TIER_NAMES.length; i++) {
+            sb.append(' ').append(TIER_NAMES[i]).append('=')
+                    .append(String.format(java.util.Locale.US, "%.2f", getHitRatio(i)));
+        }
+        return sb.append(" misses=").append(misses.get()).toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.resonode;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AudioCache {
+
+    private static final String DIR_NAME = "audio_cache";
+    private static final String DATA_EXT = ".audio";
+    private static final String LENGTH_EXT = ".len";
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private final File dir;
+    private final long maxBytes;
+
+    // Ordre d'accés: el primer és el menys usat recentment
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Set<String> writers = new HashSet<>();
+    private long totalBytes = 0;
+
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+
+    public AudioCache(Context context) {
+        this(new File(context.getCacheDir(), DIR_NAME), DEFAULT_MAX_BYTES);
+    }
+
+    public AudioCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists()) dir.mkdirs();
+        loadEntries();
+    }
+
+    private void loadEntries() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) { return Long.compare(a.lastModified(), b.lastModified()); }
+        });
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.endsWith(DATA_EXT)) continue;
+            String key = name.substring(0, name.length() - DATA_EXT.length());
+            entries.put(key, f.length());
+            totalBytes += f.length();
+        }
+    }
+
+    public static String keyFor(String serverPath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] digest = md.digest(serverPath.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (Exception e) {
+            return String.valueOf(serverPath.hashCode());
+        }
+    }
+
+    private File dataFile(String key) { return new File(dir, key + DATA_EXT); }
+    private File lengthFile(String key) { return new File(dir, key + LENGTH_EXT); }
+
+    public synchronized long getCachedLength(String key) {
+        Long len = entries.get(key);
+        return len != null ? len : 0;
+    }
+
+    public synchronized long getTotalLength(String key) {
+        File f = lengthFile(key);
+        if (!f.exists()) return -1;
+        try (FileInputStream in = new FileInputStream(f)) {
+            byte[] buf = new byte[32];
+            int n = in.read(buf);
+            return n > 0 ? Long.parseLong(new String(buf, 0, n, "UTF-8").trim()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public synchronized void setTotalLength(String key, long total) {
+        if (total <= 0) return;
+        try (FileOutputStream out = new FileOutputStream(lengthFile(key))) {
+            out.write(String.valueOf(total).getBytes("UTF-8"));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public boolean isComplete(String key) {
+        long total = getTotalLength(key);
+        return total > 0 && getCachedLength(key) >= total;
+    }
+
+    public synchronized InputStream openRead(String key, long offset) throws IOException {
+        File f = dataFile(key);
+        if (!f.exists()) return null;
+        entries.get(key);
+        f.setLastModified(System.currentTimeMillis());
+        FileInputStream in = new FileInputStream(f);
+        long skipped = 0;
+        while (skipped < offset) {
+            long s = in.skip(offset - skipped);
+            if (s <= 0) break;
+            skipped += s;
+        }
+        return in;
+    }
+
+    /**
+     * Retorna un stream per afegir bytes al final de l'entrada, o null si ja hi ha
+     * un altre escriptor o si l'offset no és contigu amb el que ja tenim a disc.
+     */
+    public synchronized OutputStream openAppend(final String key, long offset) throws IOException {
+        if (writers.contains(key)) return null;
+        if (getCachedLength(key) != offset) return null;
+
+        File f = dataFile(key);
+        final RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(offset);
+        writers.add(key);
+        if (!entries.containsKey(key)) entries.put(key, 0L);
+
+        return new OutputStream() {
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                raf.write(b, off, len);
+                onBytesWritten(key, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                try { raf.close(); } finally { onWriterClosed(key); }
+            }
+        };
+    }
+
+    private synchronized void onBytesWritten(String key, long len) {
+        Long current = entries.get(key);
+        entries.put(key, (current != null ? current : 0) + len);
+        totalBytes += len;
+    }
+
+    private synchronized void onWriterClosed(String key) {
+        writers.remove(key);
+        trimToSize();
+    }
+
+    private synchronized void trimToSize() {
+        if (totalBytes <= maxBytes) return;
+        List<String> victims = new ArrayList<>();
+        long projected = totalBytes;
+        for (Map.Entry<String, Long> e : entries.entrySet()) {
+            if (projected <= maxBytes) break;
+            if (writers.contains(e.getKey())) continue;
+            victims.add(e.getKey());
+            projected -= e.getValue();
+        }
+        for (String key : victims) remove(key);
+    }
+
+    public synchronized void remove(String key) {
+        Long len = entries.remove(key);
+        if (len != null) totalBytes -= len;
+        dataFile(key).delete();
+        lengthFile(key).delete();
+    }
+
+    public void recordHit(long bytes) { hitBytes.addAndGet(bytes); }
+    public void recordMiss(long bytes) { missBytes.addAndGet(bytes); }
+
+    public long getHitBytes() { return hitBytes.get(); }
+    public long getMissBytes() { return missBytes.get(); }
+    public synchronized long getSizeBytes() { return totalBytes; }
+    public long getMaxBytes() { return maxBytes; }
+}
@@ -0,0 +1,219 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * Còpia a disc de les respostes de /browse per (usuari, carpeta), amb l'ETag i el
+ * Last-Modified del servidor per poder revalidar amb una petició condicional.
+ * El cos es guarda tal qual i es llegeix en streaming; per saber si ha canviat es compara el SHA-1.
+ */
+public class BrowseCache {
+
+    private static final String DIR_NAME = "browse_cache";
+    private static final String BODY_EXT = ".body";
+    private static final String META_EXT = ".meta";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_MAX_KB = "browse_cache_max_kb";
+    // Segons durant els quals una llista es considera al dia i no es revalida en navegar
+    public static final String KEY_FRESH_SECONDS = "browse_cache_fresh_seconds";
+    private static final String KEY_STALE_BEFORE = "browse_cache_stale_before";
+    private static final int DEFAULT_MAX_KB = 2048;
+    private static final int DEFAULT_FRESH_SECONDS = 0;
+
+    public static class Entry {
+        final File bodyFile;
+        public final String etag;
+        public final String lastModified;
+        public final String digest;
+        public final long fetchedAt;
+
+        Entry(File bodyFile, String etag, String lastModified, String digest, long fetchedAt) {
+            this.bodyFile = bodyFile;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    /**
+     * Deixa passar el cos de la resposta cap al parser i alhora l'escriu a un temporal
+     * i en calcula el SHA-1. Només es fa visible a la cache quan es crida commit().
+     */
+    public class Capture extends FilterInputStream {
+        private final String key;
+        private final File tmp;
+        private final OutputStream out;
+        private final MessageDigest md;
+
+        Capture(String key, InputStream source) throws IOException {
+            super(source);
+            this.key = key;
+            this.tmp = new File(dir, key + "." + Thread.currentThread().getId() + ".tmp");
+            this.out = new FileOutputStream(tmp);
+            try {
+                this.md = MessageDigest.getInstance("SHA-1");
+            } catch (Exception e) {
+                out.close();
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                out.write(b);
+                md.update((byte) b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int off, int len) throws IOException {
+            int n = super.read(buffer, off, len);
+            if (n > 0) {
+                out.write(buffer, off, n);
+                md.update(buffer, off, n);
+            }
+            return n;
+        }
+
+        /** Acaba de llegir el que quedi, desa l'entrada i en retorna el digest. */
+        public String commit(String etag, String lastModified) throws IOException {
+            byte[] rest = new byte[8192];
+            while (read(rest, 0, rest.length) != -1) { }
+            out.close();
+
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) sb.append(String.format("%02x", b));
+            String digest = sb.toString();
+
+            synchronized (BrowseCache.this) {
+                File body = new File(dir, key + BODY_EXT);
+                if (!tmp.renameTo(body)) {
+                    tmp.delete();
+                    return digest;
+                }
+                writeMeta(key, etag, lastModified, digest, System.currentTimeMillis());
+                trimToSize();
+            }
+            return digest;
+        }
+
+        public void abort() {
+            try { out.close(); } catch (IOException e) {}
+            tmp.delete();
+        }
+    }
+
+    private final File dir;
+    private final SharedPreferences prefs;
+
+    public BrowseCache(Context context) {
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (!dir.exists()) dir.mkdirs();
+    }
+
+    private static String keyFor(String username, String folder) {
+        return AudioCache.keyFor(username + "|" + folder);
+    }
+
+    public synchronized Entry get(String username, String folder) {
+        String key = keyFor(username, folder);
+        File body = new File(dir, key + BODY_EXT);
+        File meta = new File(dir, key + META_EXT);
+        if (!body.exists() || !meta.exists()) return null;
+        try (FileInputStream in = new FileInputStream(meta)) {
+            byte[] data = new byte[(int) meta.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+            JSONObject o = new JSONObject(new String(data, 0, read, "UTF-8"));
+            body.setLastModified(System.currentTimeMillis());
+            return new Entry(body, o.optString("etag", null), o.optString("last_modified", null),
+                    o.optString("digest", ""), o.optLong("fetched_at", 0));
+        } catch (Exception e) {
+            body.delete();
+            meta.delete();
+            return null;
+        }
+    }
+
+    public InputStream openBody(Entry entry) throws IOException {
+        return new FileInputStream(entry.bodyFile);
+    }
+
+    public Capture capture(String username, String folder, InputStream source) throws IOException {
+        return new Capture(keyFor(username, folder), source);
+    }
+
+    /** El servidor ha respost 304: el contingut segueix bo, només renovem la data. */
+    public synchronized void touch(String username, String folder, Entry entry) {
+        writeMeta(keyFor(username, folder), entry.etag, entry.lastModified, entry.digest, System.currentTimeMillis());
+    }
+
+    public boolean needsRevalidation(Entry entry) {
+        if (entry.fetchedAt < prefs.getLong(KEY_STALE_BEFORE, 0)) return true;
+        long freshMs = prefs.getInt(KEY_FRESH_SECONDS, DEFAULT_FRESH_SECONDS) * 1000L;
+        return System.currentTimeMillis() - entry.fetchedAt >= freshMs;
+    }
+
+    /** Després d'una modificació al servidor, qualsevol llista guardada pot haver canviat. */
+    public void markAllStale() {
+        prefs.edit().putLong(KEY_STALE_BEFORE, System.currentTimeMillis()).apply();
+    }
+
+    private void writeMeta(String key, String etag, String lastModified, String digest, long fetchedAt) {
+        File f = new File(dir, key + META_EXT);
+        try (FileOutputStream out = new FileOutputStream(f)) {
+            JSONObject o = new JSONObject();
+            if (etag != null) o.put("etag", etag);
+            if (lastModified != null) o.put("last_modified", lastModified);
+            o.put("digest", digest);
+            o.put("fetched_at", fetchedAt);
+            out.write(o.toString().getBytes("UTF-8"));
+        } catch (Exception e) {
+            f.delete();
+        }
+    }
+
+    private void trimToSize() {
+        long maxBytes = prefs.getInt(KEY_MAX_KB, DEFAULT_MAX_KB) * 1024L;
+        File[] files = dir.listFiles((d, name) -> name.endsWith(BODY_EXT));
+        if (files == null) return;
+        long total = 0;
+        for (File f : files) total += f.length();
+        if (total <= maxBytes) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File f : files) {
+            if (total <= maxBytes) break;
+            total -= f.length();
+            String key = f.getName().substring(0, f.getName().length() - BODY_EXT.length());
+            f.delete();
+            new File(dir, key + META_EXT).delete();
+        }
+    }
+
+    public synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File f : files) f.delete();
+    }
+}
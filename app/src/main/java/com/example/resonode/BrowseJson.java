@@ -0,0 +1,157 @@
+package com.example.resonode;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lectura en streaming de les respostes de /browse, /search i /vault/artists:
+ * es construeixen els MusicItem directament del stream, sense passar per String ni JSONObject.
+ */
+public final class BrowseJson {
+
+    private BrowseJson() {}
+
+    public static class Listing {
+        public String currentPath = null;
+        public boolean isVault = false;
+        public int total = -1;
+        // -1 quan no hi ha més pàgines (o el servidor no pagina)
+        public int nextOffset = -1;
+        public final List<MusicItem> items = new ArrayList<>();
+
+        public List<String> folderNames() {
+            List<String> names = new ArrayList<>();
+            for (MusicItem item : items) if (item.isFolder()) names.add(item.getName());
+            return names;
+        }
+    }
+
+    public static String browseUrl(String username, String folder, int offset, int limit) throws IOException {
+        return Config.SERVER_URL + "/browse?username=" + username + "&folder=" + URLEncoder.encode(folder, "UTF-8")
+                + "&offset=" + offset + "&limit=" + limit;
+    }
+
+    private static JsonReader open(InputStream in) throws IOException {
+        return new JsonReader(new BufferedReader(new InputStreamReader(in, "UTF-8")));
+    }
+
+    /**
+     * Format de /browse: {"current_path": ..., "is_vault": ..., "items": [{name, type, path, artist}],
+     * "total": ..., "next_offset": ...}. Els dos últims només hi són si s'ha demanat una pàgina.
+     */
+    public static Listing readListing(InputStream in) throws IOException {
+        Listing listing = new Listing();
+        JsonReader reader = open(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (key.equals("current_path") && reader.peek() != JsonToken.NULL) {
+                listing.currentPath = reader.nextString();
+            } else if (key.equals("is_vault") && reader.peek() == JsonToken.BOOLEAN) {
+                listing.isVault = reader.nextBoolean();
+            } else if (key.equals("total") && reader.peek() == JsonToken.NUMBER) {
+                listing.total = reader.nextInt();
+            } else if (key.equals("next_offset") && reader.peek() == JsonToken.NUMBER) {
+                listing.nextOffset = reader.nextInt();
+            } else if (key.equals("items")) {
+                reader.beginArray();
+                while (reader.hasNext()) listing.items.add(readBrowseItem(reader));
+                reader.endArray();
+            } else if (key.equals("error")) {
+                throw new IOException("Error servidor: " + reader.nextString());
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return listing;
+    }
+
+    private static MusicItem readBrowseItem(JsonReader reader) throws IOException {
+        String name = "", type = "", path = "", artist = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) { reader.skipValue(); continue; }
+            switch (key) {
+                case "name": name = reader.nextString(); break;
+                case "type": type = reader.nextString(); break;
+                case "path": path = reader.nextString(); break;
+                case "artist": artist = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new MusicItem(name, type, path, artist);
+    }
+
+    /** Format de /search: {"results": [{type, path_id, title, artist}]} */
+    public static List<MusicItem> readSearchResults(InputStream in) throws IOException {
+        List<MusicItem> results = new ArrayList<>();
+        JsonReader reader = open(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("results")) { reader.skipValue(); continue; }
+            reader.beginArray();
+            while (reader.hasNext()) results.add(readSearchItem(reader));
+            reader.endArray();
+        }
+        reader.endObject();
+        return results;
+    }
+
+    private static MusicItem readSearchItem(JsonReader reader) throws IOException {
+        String type = "", path = "", title = "", artist = "";
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) { reader.skipValue(); continue; }
+            switch (key) {
+                case "type": type = reader.nextString(); break;
+                case "path_id": path = reader.nextString(); break;
+                case "title": title = reader.nextString(); break;
+                case "artist": artist = reader.nextString(); break;
+                default: reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        String displayName = title;
+        if (type.equals("song")) displayName += " - " + artist;
+        if (type.equals("album")) displayName += " (" + artist + ")";
+        boolean isFolder = type.equals("album") || type.equals("artist");
+        return new MusicItem(displayName, isFolder ? "folder" : "file", path);
+    }
+
+    /** Format de /vault/artists: {"results": [{title}]} */
+    public static List<MusicItem> readArtists(InputStream in) throws IOException {
+        List<MusicItem> artists = new ArrayList<>();
+        JsonReader reader = open(in);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!reader.nextName().equals("results")) { reader.skipValue(); continue; }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String title = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("title") && reader.peek() == JsonToken.STRING) title = reader.nextString();
+                    else reader.skipValue();
+                }
+                reader.endObject();
+                if (title != null) artists.add(new MusicItem(title, "folder", title, "Artista"));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        return artists;
+    }
+}
@@ -0,0 +1,557 @@
+package com.example.resonode;
+
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Executa la cua de descàrregues guardada a OfflineDB (taula download_jobs). La cua sobreviu
+ * al tancament de l'app: en arrencar es reprèn, i també quan torna la xarxa o es connecta el carregador.
+ * Respecta les opcions "download_unmetered_only" i "download_charging_only": si deixen de complir-se
+ * a mitja descàrrega, s'atura i les cançons tornen a la cua sense comptar cap intent.
+ */
+public class DownloadScheduler {
+
+    private static final String TAG = "DownloadScheduler";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_UNMETERED_ONLY = "download_unmetered_only";
+    public static final String KEY_CHARGING_ONLY = "download_charging_only";
+    // Cada quant es contrasten automàticament les playlists descarregades amb el servidor
+    public static final String KEY_SYNC_INTERVAL_MINUTES = "offline_sync_interval_minutes";
+    private static final String KEY_LAST_SYNC = "offline_last_sync";
+    private static final int DEFAULT_SYNC_INTERVAL_MINUTES = 360;
+    // Pressupost de l'àudio offline en MB (0 = sense límit); en passar-se s'allibera el menys escoltat
+    public static final String KEY_QUOTA_MB = "offline_quota_mb";
+    private static final int MAX_JOB_ATTEMPTS = 5;
+    private static final int BATCH_SIZE = 50;
+    private static final String CHANNEL_ID = "DownloadChannel";
+    private static final int NOTIFICATION_ID = 888;
+    // Pes de la mostra nova a la mitjana mòbil de la velocitat
+    private static final double RATE_SMOOTHING = 0.3;
+
+    public static class SyncResult {
+        public int added, removed, updated;
+        // Bytes que no cal tornar a baixar respecte a esborrar-ho tot i descarregar de nou
+        public long bytesSaved;
+
+        public boolean hasChanges() {
+            return added > 0 || removed > 0 || updated > 0;
+        }
+    }
+
+    public interface Listener {
+        /** La cua s'ha buidat o s'ha aturat; es crida al fil principal. */
+        void onDownloadsFinished(int completed, int failed);
+    }
+
+    private static DownloadScheduler instance;
+
+    private final Context context;
+    private final OfflineDB db;
+    private final SharedPreferences prefs;
+    private final NotificationManager notificationManager;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final ExecutorService enqueuer = Executors.newSingleThreadExecutor();
+
+    private boolean running = false;
+    private volatile PlaylistDownloader current;
+    private volatile boolean stoppedByConstraints = false;
+    private Listener listener;
+
+    private volatile double bytesPerSecond = 0;
+    private volatile long etaSeconds = -1;
+
+    public static synchronized DownloadScheduler get(Context context) {
+        if (instance == null) instance = new DownloadScheduler(context.getApplicationContext());
+        return instance;
+    }
+
+    private DownloadScheduler(Context context) {
+        this.context = context;
+        this.db = OfflineDB.get(context);
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.notificationManager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        BroadcastReceiver conditionsChanged = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                onConditionsChanged();
+            }
+        };
+        IntentFilter filter = new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION);
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context.registerReceiver(conditionsChanged, filter);
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        if (this.listener == listener) this.listener = null;
+    }
+
+    /** A l'arrencada del procés: el que constava en marxa es torna a posar a la cua. */
+    public void start() {
+        worker.execute(db::resetRunningDownloads);
+        kick();
+        syncAllIfDue();
+    }
+
+    /** Bytes per segon de la descàrrega en curs (0 si no n'hi ha cap). */
+    public double getThroughput() {
+        return bytesPerSecond;
+    }
+
+    /** Segons estimats per acabar la tanda en curs, o -1 si encara no es pot calcular. */
+    public long getEtaSeconds() {
+        return etaSeconds;
+    }
+
+    /** Llegeix les cançons de la playlist, en baixa la portada i les afegeix a la cua. */
+    public void enqueuePlaylist(final MusicItem playlistItem, final String username) {
+        enqueuer.execute(() -> {
+            try {
+                String encodedFolder = URLEncoder.encode(playlistItem.getPath(), "UTF-8");
+                String urlList = Config.SERVER_URL + "/browse?username=" + username + "&folder=" + encodedFolder;
+                List<MusicItem> songs = new ArrayList<>();
+                try (Response response = HttpStack.get().newCall(new Request.Builder().url(urlList).build()).execute()) {
+                    if (!response.isSuccessful()) throw new Exception("Error al llegir playlist");
+                    for (MusicItem item : BrowseJson.readListing(response.body().byteStream()).items) {
+                        if (!item.isFolder()) songs.add(item);
+                    }
+                }
+
+                File privateDir = context.getDir("offline_music", Context.MODE_PRIVATE);
+                downloadCover(privateDir, playlistItem.getName(), encodedFolder, username);
+
+                List<OfflineDB.DownloadJob> jobs = new ArrayList<>();
+                for (MusicItem song : songs) {
+                    String artist = song.getArtist().isEmpty() ? "Desconegut" : song.getArtist();
+                    jobs.add(new OfflineDB.DownloadJob(playlistItem.getName(), song.getPath(), song.getName(), artist,
+                            stagingFile(song.getPath()).getAbsolutePath(), username));
+                }
+                // Descàrrega explícita: la playlist queda fixada davant la quota
+                db.inTransaction(() -> {
+                    db.setPlaylistPinned(playlistItem.getName(), true);
+                    db.setPlaylistFolder(playlistItem.getName(), playlistItem.getPath());
+                    db.enqueueDownloads(jobs);
+                });
+                kick();
+            } catch (final Exception e) {
+                Log.e(TAG, "No s'ha pogut afegir " + playlistItem.getName() + ": " + e.getMessage());
+                mainHandler.post(() -> Toast.makeText(context, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void downloadCover(File privateDir, String playlistName, String encodedFolder, String username) {
+        String coverUrl = Config.SERVER_URL + "/cover?username=" + username + "&path=" + encodedFolder;
+        File localCover = ArtworkRepository.getOfflineCoverFile(context, playlistName);
+        File tmp = new File(privateDir, localCover.getName() + ".tmp");
+        try (Response response = HttpStack.get().newCall(new Request.Builder().url(coverUrl).build()).execute()) {
+            if (!response.isSuccessful()) return;
+            try (InputStream in = response.body().byteStream(); FileOutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) != -1) out.write(buffer, 0, n);
+            }
+            if (!tmp.renameTo(localCover)) tmp.delete();
+        } catch (Exception e) {
+            tmp.delete();
+            Log.e("DL_COVER", "No s'ha pogut baixar portada: " + e.getMessage());
+        }
+    }
+
+    /** Posa en marxa la cua si no ho està ja. */
+    public synchronized void kick() {
+        if (running) return;
+        running = true;
+        worker.execute(this::runQueue);
+    }
+
+    private void onConditionsChanged() {
+        PlaylistDownloader downloader = current;
+        if (downloader != null && !constraintsMet()) {
+            stoppedByConstraints = true;
+            downloader.cancel();
+        } else if (constraintsMet()) {
+            kick();
+            syncAllIfDue();
+        }
+    }
+
+    /** Sincronització manual d'una playlist descarregada; avisa del resultat amb un Toast. */
+    public void syncPlaylist(final String playlistName) {
+        enqueuer.execute(() -> syncNow(playlistName, true));
+    }
+
+    /** Quan torna la xarxa: totes les playlists descarregades, com a molt un cop per interval. */
+    public void syncAllIfDue() {
+        if (!NetworkReceiver.isConnected(context)) return;
+        long intervalMs = prefs.getInt(KEY_SYNC_INTERVAL_MINUTES, DEFAULT_SYNC_INTERVAL_MINUTES) * 60_000L;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            if (now - prefs.getLong(KEY_LAST_SYNC, 0) < intervalMs) return;
+            prefs.edit().putLong(KEY_LAST_SYNC, now).apply();
+        }
+        enqueuer.execute(() -> {
+            // Les no fixades poden haver perdut cançons per la quota: no les tornem a baixar soles
+            for (MusicItem playlist : db.getOfflinePlaylists()) {
+                if (db.isPlaylistPinned(playlist.getName())) syncNow(playlist.getName(), false);
+            }
+        });
+    }
+
+    /**
+     * Compara el /browse de la playlist amb les files de songs: les cançons noves van a la cua,
+     * les que ja no hi són s'esborren (també el fitxer si cap altra playlist el fa servir)
+     * i les que han canviat de nom o artista s'actualitzen sense tornar-les a baixar.
+     */
+    private SyncResult syncNow(String playlistName, boolean announce) {
+        SyncResult result = new SyncResult();
+        List<OfflineDB.LocalSong> local = db.getSyncableSongs(playlistName);
+        if (local.isEmpty()) return result;
+
+        // Sense la carpeta guardada en descarregar-la no es pot saber què sobra: millor no tocar res
+        String folder = db.getPlaylistFolder(playlistName);
+        if (folder == null) {
+            Log.w(TAG, "Sense carpeta del servidor per a " + playlistName + ": no se sincronitza");
+            if (announce) mainHandler.post(() -> Toast.makeText(context, "Torna a descarregar " + playlistName + " per poder-la sincronitzar", Toast.LENGTH_SHORT).show());
+            return result;
+        }
+
+        String username = new SessionManager(context).getUsername();
+
+        Map<String, MusicItem> remote = new LinkedHashMap<>();
+        try (Response response = HttpStack.get().newCall(new Request.Builder()
+                .url(Config.SERVER_URL + "/browse?username=" + username + "&folder=" + URLEncoder.encode(folder, "UTF-8")).build()).execute()) {
+            if (!response.isSuccessful()) throw new Exception("Error " + response.code());
+            for (MusicItem item : BrowseJson.readListing(response.body().byteStream()).items) {
+                if (!item.isFolder()) remote.put(item.getPath(), item);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "No s'ha pogut sincronitzar " + playlistName + ": " + e.getMessage());
+            if (announce) mainHandler.post(() -> Toast.makeText(context, "Error sincronitzant " + playlistName, Toast.LENGTH_SHORT).show());
+            return result;
+        }
+
+        Map<String, OfflineDB.LocalSong> localByPath = new LinkedHashMap<>();
+        for (OfflineDB.LocalSong song : local) localByPath.put(song.serverPath, song);
+
+        db.inTransaction(() -> {
+            for (OfflineDB.LocalSong song : local) {
+                MusicItem item = remote.get(song.serverPath);
+                if (item == null) {
+                    db.removeLocalSong(song.serverPath, playlistName);
+                    db.deleteDownloadJob(playlistName, song.serverPath);
+                    result.removed++;
+                    continue;
+                }
+                String artist = item.getArtist().isEmpty() ? "Desconegut" : item.getArtist();
+                if (!item.getName().equals(song.name) || !artist.equals(song.artist)) {
+                    db.updateSongMetadata(playlistName, song.serverPath, item.getName(), artist);
+                    result.updated++;
+                }
+                if (song.filePath != null) result.bytesSaved += new File(song.filePath).length();
+            }
+        });
+        // Només s'esborren els fitxers que ja no fa servir cap altra playlist
+        if (result.removed > 0) db.collectGarbage();
+
+        List<OfflineDB.DownloadJob> jobs = new ArrayList<>();
+        for (MusicItem item : remote.values()) {
+            if (localByPath.containsKey(item.getPath())) continue;
+            String artist = item.getArtist().isEmpty() ? "Desconegut" : item.getArtist();
+            jobs.add(new OfflineDB.DownloadJob(playlistName, item.getPath(), item.getName(), artist,
+                    stagingFile(item.getPath()).getAbsolutePath(), username));
+        }
+        if (!jobs.isEmpty()) {
+            db.enqueueDownloads(jobs);
+            result.added = jobs.size();
+            kick();
+        }
+
+        Log.d(TAG, "Sync " + playlistName + ": +" + result.added + " -" + result.removed + " ~" + result.updated
+                + " estalviats=" + result.bytesSaved);
+        if (announce || result.hasChanges()) {
+            final String msg = playlistName + ": " + (result.hasChanges()
+                    ? "+" + result.added + " / -" + result.removed + " / " + result.updated + " actualitzades"
+                    : "ja està al dia")
+                    + " · " + (result.bytesSaved / (1024 * 1024)) + " MB sense tornar a baixar";
+            mainHandler.post(() -> Toast.makeText(context, msg, Toast.LENGTH_LONG).show());
+        }
+        return result;
+    }
+
+    private boolean constraintsMet() {
+        if (!NetworkReceiver.isConnected(context)) return false;
+        if (prefs.getBoolean(KEY_UNMETERED_ONLY, false) && NetworkReceiver.isMetered(context)) return false;
+        return !prefs.getBoolean(KEY_CHARGING_ONLY, false) || isCharging();
+    }
+
+    private boolean isCharging() {
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private void runQueue() {
+        int completed = 0, failed = 0;
+        try {
+            while (constraintsMet()) {
+                List<OfflineDB.DownloadJob> jobs = db.claimQueuedDownloads(BATCH_SIZE);
+                if (jobs.isEmpty()) break;
+                stoppedByConstraints = false;
+                int[] result = runBatch(jobs);
+                completed += result[0];
+                failed += result[1];
+                // Cap cançó ha anat bé: probablement no hi ha servidor; esperem un canvi de xarxa
+                if (result[0] == 0 || stoppedByConstraints) break;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error a la cua de descàrregues: " + e.getMessage());
+        } finally {
+            current = null;
+            bytesPerSecond = 0;
+            etaSeconds = -1;
+            notificationManager.cancel(NOTIFICATION_ID);
+            synchronized (this) {
+                running = false;
+            }
+        }
+
+        if (completed > 0) enforceQuotaNow();
+
+        if (completed > 0 || failed > 0) {
+            final int c = completed, f = failed;
+            mainHandler.post(() -> {
+                Listener l;
+                synchronized (DownloadScheduler.this) {
+                    l = listener;
+                }
+                if (l != null) l.onDownloadsFinished(c, f);
+            });
+        }
+    }
+
+    /** Torna a aplicar la quota (p. ex. quan l'usuari la canvia o deixa de fixar una playlist). */
+    public void enforceQuota() {
+        worker.execute(this::enforceQuotaNow);
+    }
+
+    private void enforceQuotaNow() {
+        long budgetMb = prefs.getInt(KEY_QUOTA_MB, 0);
+        if (budgetMb <= 0) return;
+        long budget = budgetMb * 1024 * 1024;
+        long freed = db.evictToBudget(budget);
+        if (freed > 0) Log.d(TAG, "Quota: alliberats " + (freed / (1024 * 1024)) + " MB");
+        // Les playlists fixades no es toquen mai, encara que passin del límit
+        if (db.getStorageUsage() > budget) Log.w(TAG, "Les playlists fixades ocupen més que la quota de " + budgetMb + " MB");
+    }
+
+    /** Retorna {completades, fallides definitivament}. */
+    private int[] runBatch(List<OfflineDB.DownloadJob> jobs) {
+        // El listener de cada cançó s'executa als fils del PlaylistDownloader
+        final AtomicIntegerArray result = new AtomicIntegerArray(2);
+        final int queuedAfter = db.countDownloads(null, OfflineDB.STATE_QUEUED);
+
+        // Cada feina porta el seu usuari: agrupem per poder passar-lo al motor
+        Map<String, List<OfflineDB.DownloadJob>> byUser = new LinkedHashMap<>();
+        for (OfflineDB.DownloadJob job : jobs) {
+            List<OfflineDB.DownloadJob> group = byUser.get(job.username);
+            if (group == null) {
+                group = new ArrayList<>();
+                byUser.put(job.username, group);
+            }
+            group.add(job);
+        }
+
+        for (Map.Entry<String, List<OfflineDB.DownloadJob>> entry : byUser.entrySet()) {
+            final Map<PlaylistDownloader.Task, OfflineDB.DownloadJob> jobByTask = new IdentityHashMap<>();
+            List<PlaylistDownloader.Task> tasks = new ArrayList<>();
+            for (OfflineDB.DownloadJob job : entry.getValue()) {
+                // La cançó ja és al magatzem per una altra playlist: només cal apuntar-hi
+                OfflineDB.Blob blob = db.findBlobForServerPath(job.serverPath);
+                if (blob != null) {
+                    final boolean[] state = new boolean[2];
+                    db.inTransaction(() -> {
+                        if (!db.markDownloadDone(job)) return;
+                        state[0] = true;
+                        state[1] = db.saveSongWithBlob(job.serverPath, job.name, job.playlist, job.artist, blob);
+                        if (!state[1]) db.requeueDownload(job);
+                    });
+                    if (!state[0]) continue;
+                    if (state[1]) {
+                        result.incrementAndGet(0);
+                        continue;
+                    }
+                }
+                PlaylistDownloader.Task task = new PlaylistDownloader.Task(job.serverPath, job.name, new File(job.filePath));
+                jobByTask.put(task, job);
+                tasks.add(task);
+            }
+
+            final PlaylistDownloader downloader = new PlaylistDownloader(context, HttpStack.get());
+            downloader.setTaskListener(task -> {
+                OfflineDB.DownloadJob job = jobByTask.get(task);
+                // Llegir tot l'MP3 per al SHA-1 és lent: es fa abans de la transacció (i de blobLock)
+                // perquè les altres descàrregues paral·leles, la sincronització i la cua no s'hi esperin
+                final String hash = task.isDone() ? hashFile(task.target) : null;
+                if (task.isDone()) {
+                    // No s'ha pogut llegir el fitxer baixat: compta com un intent fallit
+                    if (hash == null) {
+                        task.target.delete();
+                        db.markDownloadFailed(job, MAX_JOB_ATTEMPTS);
+                        if (job.attempts + 1 >= MAX_JOB_ATTEMPTS) result.incrementAndGet(1);
+                    } else {
+                        // La feina només consta com a feta si la cançó s'ha desat: una sola transacció
+                        final boolean[] done = new boolean[1];
+                        try {
+                            db.inTransaction(() -> {
+                                // Si la playlist s'ha esborrat mentre baixava, la feina ja no hi és
+                                // i no la tornem a crear
+                                if (!db.markDownloadDone(job)) return;
+                                done[0] = true;
+                                db.saveDownloadedSong(job.serverPath, job.name, job.playlist, job.artist, task.target, blobDir(), hash);
+                            });
+                            if (done[0]) result.incrementAndGet(0);
+                            else task.target.delete();
+                        } catch (Exception e) {
+                            Log.e(TAG, "No s'ha pogut guardar " + job.name + ": " + e.getMessage());
+                            db.requeueDownload(job);
+                        }
+                    }
+                } else if (downloader.isCancelled()) {
+                    db.requeueDownload(job);
+                } else {
+                    db.markDownloadFailed(job, MAX_JOB_ATTEMPTS);
+                    if (job.attempts + 1 >= MAX_JOB_ATTEMPTS) result.incrementAndGet(1);
+                }
+            });
+            current = downloader;
+            if (stoppedByConstraints) downloader.cancel();
+
+            final String title = jobs.get(0).playlist;
+            final long startedAt = System.currentTimeMillis();
+            final long[] lastSample = {startedAt, 0};
+            downloader.download(tasks, entry.getKey(), (bytesDone, bytesTotal, filesDone, filesTotal, currentName) -> {
+                updateRate(downloader.getBytesTransferred(), lastSample, bytesTotal - bytesDone);
+                showProgress(title, bytesDone, bytesTotal, filesDone, filesTotal, queuedAfter, currentName);
+            });
+            current = null;
+        }
+        return new int[]{result.get(0), result.get(1)};
+    }
+
+    // Les baixades van a staging/ amb un nom fix per ruta (així es poden reprendre) i,
+    // un cop acabades, es mouen a blobs/<sha1 del contingut>.mp3
+    private File stagingFile(String serverPath) {
+        File dir = new File(context.getDir("offline_music", Context.MODE_PRIVATE), "staging");
+        if (!dir.exists()) dir.mkdirs();
+        return new File(dir, AudioCache.keyFor(serverPath) + ".mp3");
+    }
+
+    private File blobDir() {
+        return new File(context.getDir("offline_music", Context.MODE_PRIVATE), "blobs");
+    }
+
+    private static String hashFile(File file) {
+        try (InputStream in = new FileInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[16 * 1024];
+            int n;
+            while ((n = in.read(buffer)) != -1) digest.update(buffer, 0, n);
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) sb.append(String.format(Locale.ROOT, "%02x", b));
+            return sb.toString();
+        } catch (Exception e) {
+            Log.w(TAG, "No s'ha pogut calcular el hash de " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void updateRate(long transferred, long[] lastSample, long bytesRemaining) {
+        long now = System.currentTimeMillis();
+        long elapsed = now - lastSample[0];
+        if (elapsed <= 0) return;
+        double sample = (transferred - lastSample[1]) * 1000.0 / elapsed;
+        lastSample[0] = now;
+        lastSample[1] = transferred;
+        double rate = bytesPerSecond == 0 ? sample : RATE_SMOOTHING * sample + (1 - RATE_SMOOTHING) * bytesPerSecond;
+        bytesPerSecond = rate;
+        etaSeconds = rate > 0 && bytesRemaining > 0 ? (long) (bytesRemaining / rate) : -1;
+    }
+
+    private void showProgress(String playlist, long bytesDone, long bytesTotal, int filesDone, int filesTotal,
+                              int queuedAfter, String currentName) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            notificationManager.createNotificationChannel(new NotificationChannel(
+                    CHANNEL_ID, "Descàrregues de Música", NotificationManager.IMPORTANCE_LOW));
+        }
+
+        int permille = bytesTotal > 0 ? (int) Math.min(1000, bytesDone * 1000 / bytesTotal) : 0;
+        StringBuilder text = new StringBuilder();
+        text.append("[").append(permille / 10).append("%] ").append(filesDone).append("/").append(filesTotal);
+        if (bytesPerSecond > 0) text.append(" · ").append(formatRate(bytesPerSecond));
+        if (etaSeconds >= 0) text.append(" · ").append(formatEta(etaSeconds));
+        text.append(" · ").append(currentName.replace(".mp3", ""));
+
+        String title = "Descarregant " + playlist;
+        if (queuedAfter > 0) title += " (+" + queuedAfter + " a la cua)";
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(context, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setContentTitle(title)
+                .setContentText(text.toString())
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setProgress(1000, permille, bytesTotal <= 0);
+        notificationManager.notify(NOTIFICATION_ID, builder.build());
+    }
+
+    private static String formatRate(double bytesPerSecond) {
+        if (bytesPerSecond >= 1024 * 1024) return String.format(Locale.ROOT, "%.1f MB/s", bytesPerSecond / (1024 * 1024));
+        return String.format(Locale.ROOT, "%d KB/s", (long) (bytesPerSecond / 1024));
+    }
+
+    private static String formatEta(long seconds) {
+        if (seconds < 60) return seconds + " s";
+        if (seconds < 3600) return (seconds / 60) + " min";
+        return (seconds / 3600) + " h " + ((seconds % 3600) / 60) + " min";
+    }
+}
@@ -0,0 +1,166 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Puja l'historial del Wrapped (playback_history) a /stats/sync en lots de com a molt
+ * CHUNK_SIZE reproduccions, comprimits amb gzip. Cada lot porta la seva clau d'idempotència
+ * (Idempotency-Key): si la resposta es perd i es reenvia, el servidor no el compta dues vegades.
+ * Només hi ha una pujada en marxa; les peticions que arriben mentrestant es fusionen en una
+ * passada més. Si falla es reintenta amb espera exponencial mentre hi hagi xarxa.
+ */
+public class HistorySync {
+
+    private static final String TAG = "HistorySync";
+    private static final int CHUNK_SIZE = 200;
+    private static final long MIN_BACKOFF_MS = 30 * 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 60 * 1000;
+    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+
+    private static HistorySync instance;
+
+    private final Context context;
+    private final OfflineDB db;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final Runnable retry = this::requestSync;
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<>();
+
+    private boolean running = false;
+    private boolean pending = false;
+    private long backoffMs = 0;
+
+    public static synchronized HistorySync get(Context context) {
+        if (instance == null) instance = new HistorySync(context.getApplicationContext());
+        return instance;
+    }
+
+    private HistorySync(Context context) {
+        this.context = context;
+        this.db = OfflineDB.get(context);
+
+        // En tornar la xarxa no cal esperar el reintent programat
+        NetworkReceiver networkReceiver = new NetworkReceiver(isConnected -> {
+            if (!isConnected) return;
+            mainHandler.removeCallbacks(retry);
+            requestSync();
+        });
+        context.registerReceiver(networkReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    /** Avisat al fil principal cada cop que s'ha pujat algun lot. */
+    public void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+
+    /** Demana una pujada; si ja n'hi ha una en marxa, en farà una altra en acabar. */
+    public synchronized void requestSync() {
+        if (running) {
+            pending = true;
+            return;
+        }
+        running = true;
+        pending = false;
+        worker.execute(this::drain);
+    }
+
+    private void drain() {
+        boolean ok;
+        while (true) {
+            ok = uploadPending();
+            synchronized (this) {
+                if (!ok || !pending) {
+                    running = false;
+                    break;
+                }
+                pending = false;
+            }
+        }
+
+        if (ok) {
+            backoffMs = 0;
+        } else if (NetworkReceiver.isConnected(context)) {
+            backoffMs = backoffMs == 0 ? MIN_BACKOFF_MS : Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+            Log.w(TAG, "Reintent en " + (backoffMs / 1000) + " s");
+            mainHandler.removeCallbacks(retry);
+            mainHandler.postDelayed(retry, backoffMs);
+        }
+        // Sense xarxa no es programa res: ja avisarà el NetworkReceiver
+    }
+
+    /** Puja lots fins que no en queda cap. Retorna false si algun ha fallat. */
+    private boolean uploadPending() {
+        SessionManager session = new SessionManager(context);
+        if (!session.isWrappedEnabled()) return true;
+        if (!NetworkReceiver.isConnected(context)) return false;
+
+        int sent = 0;
+        while (true) {
+            OfflineDB.SyncBatch batch = db.claimSyncBatch(CHUNK_SIZE);
+            if (batch == null) break;
+            try {
+                upload(session.getUsername(), batch);
+            } catch (Exception e) {
+                Log.w(TAG, "No s'ha pogut pujar el lot " + batch.key + ": " + e.getMessage());
+                return false;
+            }
+            db.markBatchSynced(batch.key);
+            sent += batch.plays.length();
+        }
+        if (sent > 0) {
+            Log.d(TAG, "Pujades " + sent + " reproduccions");
+            // Ja no consten com a pendents: les còpies del Wrapped propi s'han de refer
+            StatsCache cache = StatsCache.get(context);
+            for (String period : new String[]{"week", "month", "year"}) {
+                cache.expire(StatsCache.statsUrl(session.getUsername(), period));
+            }
+            for (Runnable listener : listeners) mainHandler.post(listener);
+        }
+        return true;
+    }
+
+    private void upload(String username, OfflineDB.SyncBatch batch) throws Exception {
+        JSONObject json = new JSONObject();
+        json.put("username", username);
+        json.put("plays", batch.plays);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            gzip.write(json.toString().getBytes("UTF-8"));
+        }
+
+        Request request = new Request.Builder()
+                .url(Config.SERVER_URL + "/stats/sync")
+                .header("x-secret-key", Config.API_SECRET_KEY)
+                .header("Content-Encoding", "gzip")
+                .header("Idempotency-Key", batch.key)
+                .post(RequestBody.create(JSON, bytes.toByteArray()))
+                .build();
+
+        try (Response response = HttpStack.get().newCall(request).execute()) {
+            if (!response.isSuccessful()) throw new Exception("HTTP " + response.code());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.resonode;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Client HTTP únic de l'aplicació. Tothom (activitats, servei, proxy, Glide) parteix
+ * d'aquest client perquè comparteixin el pool de connexions i no refacin el TLS amb el túnel.
+ * Si algú necessita timeouts diferents ha de fer get().newBuilder(), que manté el pool.
+ */
+public final class HttpStack {
+
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 6;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static OkHttpClient client;
+
+    private static final AtomicLong connectionsAcquired = new AtomicLong();
+    private static final AtomicLong connectionsOpened = new AtomicLong();
+
+    private HttpStack() {}
+
+    public static synchronized OkHttpClient get() {
+        if (client == null) client = build();
+        return client;
+    }
+
+    /** Mateix pool i dispatcher, però amb un timeout de lectura propi (streaming, pujades...). */
+    public static OkHttpClient withReadTimeout(long seconds) {
+        return get().newBuilder().readTimeout(seconds, TimeUnit.SECONDS).build();
+    }
+
+    private static OkHttpClient build() {
+        // Els límits del Dispatcher només compten les crides amb enqueue() (Glide, cerca, Wrapped).
+        // Les de execute() no hi passen: les limita el fil que les fa (un sol executor per pantalla,
+        // el paral·lelisme fix del PlaylistDownloader, un fil per connexió del proxy)
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(MAX_REQUESTS);
+        dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .connectTimeout(15, TimeUnit.SECONDS)
+                .readTimeout(30, TimeUnit.SECONDS)
+                .writeTimeout(30, TimeUnit.SECONDS)
+                .eventListener(new EventListener() {
+                    @Override
+                    public void connectionAcquired(Call call, Connection connection) {
+                        connectionsAcquired.incrementAndGet();
+                    }
+
+                    @Override
+                    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+                        connectionsOpened.incrementAndGet();
+                    }
+                })
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        Request original = chain.request();
+                        // Només enviem la clau al nostre servidor, no a URLs de tercers que carregui Glide
+                        if (!isOwnServer(original.url())) return chain.proceed(original);
+                        Request request = original.newBuilder()
+                                .header("x-secret-key", Config.API_SECRET_KEY)
+                                .method(original.method(), original.body())
+                                .build();
+                        return chain.proceed(request);
+                    }
+                });
+        return Tls12SocketFactory.enableTls12OnPreLollipop(builder).build();
+    }
+
+    private static boolean isOwnServer(HttpUrl url) {
+        HttpUrl server = HttpUrl.parse(Config.SERVER_URL);
+        return server != null && server.host().equalsIgnoreCase(url.host());
+    }
+
+    public static long getConnectionsAcquired() { return connectionsAcquired.get(); }
+    public static long getConnectionsOpened() { return connectionsOpened.get(); }
+
+    public static long getConnectionsReused() {
+        return Math.max(0, connectionsAcquired.get() - connectionsOpened.get());
+    }
+
+    public static String getStats() {
+        return "acquired=" + getConnectionsAcquired() + " opened=" + getConnectionsOpened()
+                + " reused=" + getConnectionsReused()
+                + " idle=" + get().connectionPool().idleConnectionCount()
+                + " pooled=" + get().connectionPool().connectionCount();
+    }
+}
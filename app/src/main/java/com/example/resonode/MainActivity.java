@@ -44,7 +44,6 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.bumptech.glide.signature.ObjectKey;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.navigation.NavigationView;
@@ -62,9 +61,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
-import okhttp3.Interceptor;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
@@ -102,6 +99,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private TextView tvTitle, tvArtist, tvCurrentTime, tvTotalTime;
     private ImageButton btnPlay, btnNext, btnPrev, btnClosePlayer;
     private ImageView ivCover;
+    private static final int PLAYER_ART_SIZE = 800;
     private SeekBar seekBar;
     private boolean isPlayerExpanded = false;
     private androidx.constraintlayout.widget.ConstraintSet miniSet = new androidx.constraintlayout.widget.ConstraintSet();
@@ -128,27 +126,20 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private Handler retryHandler = new Handler(Looper.getMainLooper());
     private Runnable retryRunnable;
     private OfflineDB offlineDB;
+    private BrowseCache browseCache;
+
+    public static final String KEY_BROWSE_PAGE_SIZE = "browse_page_size";
+    public static final String KEY_BROWSE_PREFETCH_DISTANCE = "browse_prefetch_distance";
+    private static final int DEFAULT_BROWSE_PAGE_SIZE = 200;
+    private static final int DEFAULT_BROWSE_PREFETCH_DISTANCE = 30;
+    // Paginació de la carpeta actual: offset de la pàgina següent (-1 si ja la tenim sencera)
+    private int browseNextOffset = -1;
+    private boolean browseLoadingPage = false;
+    private int browseGeneration = 0;
 
     private MusicItem playlistCoverTarget = null;
 
-    private OkHttpClient createClient() {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                .connectTimeout(15, TimeUnit.SECONDS)
-                .readTimeout(15, TimeUnit.SECONDS)
-                .addInterceptor(new Interceptor() {
-                    @Override
-                    public Response intercept(Chain chain) throws IOException {
-                        Request original = chain.request();
-                        Request request = original.newBuilder()
-                                .header("x-secret-key", Config.API_SECRET_KEY)
-                                .method(original.method(), original.body())
-                                .build();
-                        return chain.proceed(request);
-                    }
-                });
-        return Tls12SocketFactory.enableTls12OnPreLollipop(builder).build();
-    }
-    private final OkHttpClient client = createClient();
+    private final OkHttpClient client = HttpStack.get();
 
     private final ActivityResultLauncher<Intent> pickImageLauncher = registerForActivityResult(
             new ActivityResultContracts.StartActivityForResult(),
@@ -198,15 +189,8 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private void showPlaylistSelectorForMultipleLocalSongs(final List<Uri> audioUris) {
         executor.execute(() -> {
             try {
-                Response r = client.newCall(new Request.Builder().url(Config.SERVER_URL + "/browse?username=" + session.getUsername() + "&folder=").build()).execute();
-                if(r.isSuccessful()) {
-                    JSONArray a = new JSONObject(r.body().string()).getJSONArray("items");
-                    final List<String> pList = new ArrayList<>();
-                    for (int x = 0; x < a.length(); x++) {
-                        if (a.getJSONObject(x).getString("type").equals("folder")) {
-                            pList.add(a.getJSONObject(x).getString("name"));
-                        }
-                    }
+                final List<String> pList = fetchPlaylistNames();
+                if (pList != null) {
 
                     mainHandler.post(() -> {
                         if (pList.isEmpty()) {
@@ -295,6 +279,13 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                             if (songToPlay != null) mainHandler.postDelayed(new Runnable() {
                                 @Override public void run() { playSongByName(songToPlay); }
                             }, 1000);
+                        } else if ("navigate_offline".equals(action)) {
+                            // Resultat de la cerca offline: obrim la playlist descarregada on és la cançó
+                            final String songToPlay = data.getStringExtra("play_song");
+                            loadOfflineContent(data.getStringExtra("path"));
+                            if (songToPlay != null) mainHandler.postDelayed(new Runnable() {
+                                @Override public void run() { playSongByName(songToPlay); }
+                            }, 1000);
                         } else if ("add_to_playlist".equals(action)) {
                             String pathId = data.getStringExtra("path_id");
                             MusicItem searchItem = new MusicItem("Cerca", "file", pathId);
@@ -405,7 +396,9 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
             currentVersionCode = pInfo.versionCode;
         } catch (Exception e) {}
 
-        offlineDB = new OfflineDB(this);
+        offlineDB = OfflineDB.get(this);
+        browseCache = new BrowseCache(this);
+        DownloadScheduler.get(this).setListener(downloadListener);
 
         checkAndRequestAppLinks();
 
@@ -422,7 +415,6 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private void fetchMusicContent(final String baseUrl, final String folderPath) {
         mainHandler.post(new Runnable() {
             @Override public void run() {
-                if (swipeRefresh != null) swipeRefresh.setRefreshing(true);
                 tvStatus.setVisibility(View.GONE);
                 if (isRetryingConnection) {
                     tvStatus.setText("Servidor reiniciat. Cercant nova adreça...");
@@ -437,87 +429,68 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         final String encodedPath = tempEncodedPath;
 
         final String effectiveUsername = isSharedPreview ? sharedOwner : session.getUsername();
-        final String currentTargetUrl = Config.SERVER_URL + "/browse?username=" + effectiveUsername + "&folder=" + encodedPath;
+        final String currentTargetUrl = Config.SERVER_URL + "/browse?username=" + effectiveUsername + "&folder=" + encodedPath
+                + "&offset=0&limit=" + getBrowsePageSize();
         final String currentFolderRequest = folderPath;
+        // Recarregar la carpeta que ja es veu (swipe, després d'un canvi) sempre revalida
+        final boolean forceRevalidate = folderPath.equals(currentPath);
 
         executor.execute(new Runnable() {
             @Override
             public void run() {
+                BrowseCache.Entry cached = browseCache.get(effectiveUsername, folderPath);
+                if (cached != null) {
+                    try (InputStream in = browseCache.openBody(cached)) {
+                        renderBrowseListing(BrowseJson.readListing(in));
+                    } catch (Exception e) {
+                        cached = null;
+                    }
+                }
+                if (cached == null) setRefreshingOnUI(true);
+                else if (!forceRevalidate && !browseCache.needsRevalidation(cached)) {
+                    setRefreshingOnUI(false);
+                    return;
+                }
+
                 try {
-                    Request request = new Request.Builder().url(currentTargetUrl).build();
-                    Response response = client.newCall(request).execute();
+                    Request.Builder builder = new Request.Builder().url(currentTargetUrl);
+                    if (cached != null && cached.etag != null) builder.header("If-None-Match", cached.etag);
+                    if (cached != null && cached.lastModified != null) builder.header("If-Modified-Since", cached.lastModified);
+                    Response response = client.newCall(builder.build()).execute();
 
                     if (response.code() == 403) throw new Exception("Clave Incorrecta");
+                    if (response.code() == 304 && cached != null) {
+                        response.close();
+                        isRetryingConnection = false;
+                        browseCache.touch(effectiveUsername, folderPath, cached);
+                        setRefreshingOnUI(false);
+                        return;
+                    }
                     if (!response.isSuccessful()) throw new Exception("Error " + response.code());
 
                     isRetryingConnection = false;
 
-                    JSONObject json = new JSONObject(response.body().string());
-                    if (json.has("current_path")) currentPath = json.getString("current_path");
-
-                    boolean isVault = json.optBoolean("is_vault", false);
-                    JSONArray items = json.getJSONArray("items");
-
-                    final List<MusicItem> temp = new ArrayList<>();
-                    boolean foundFolders = false;
-
-                    for (int i = 0; i < items.length(); i++) {
-                        JSONObject o = items.getJSONObject(i);
-                        String name = o.getString("name");
-                        String type = o.getString("type");
-                        String path = o.getString("path");
-                        String artist = o.optString("artist", "");
-                        MusicItem item = new MusicItem(name, type, path, artist);
-                        temp.add(item);
-                        if (item.isFolder()) foundFolders = true;
+                    BrowseJson.Listing listing;
+                    String digest;
+                    BrowseCache.Capture capture = browseCache.capture(effectiveUsername, folderPath, response.body().byteStream());
+                    try {
+                        listing = BrowseJson.readListing(capture);
+                        digest = capture.commit(response.header("ETag"), response.header("Last-Modified"));
+                    } catch (Exception e) {
+                        capture.abort();
+                        throw e;
+                    } finally {
+                        response.close();
                     }
-
-                    final boolean finalIsVault = isVault;
-
-                    mainHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                if (swipeRefresh != null) swipeRefresh.setRefreshing(false);
-                                if (!currentPath.isEmpty() && !currentPath.equals("General")) {
-                                    List<MusicItem> offlineSongs = offlineDB.getSongsInPlaylist(currentPath);
-                                    for (MusicItem os : offlineSongs) {
-                                        if (os.getPath().startsWith("content://")) temp.add(os);
-                                    }
-                                }
-                                musicList.clear();
-                                musicList.addAll(temp);
-                                updateTitleAndFab(currentPath, finalIsVault);
-                                if (adapter != null) adapter.setCurrentPath(currentPath);
-                                    updateHeaderImage();
-
-                                if (currentPath.equals("General") || currentPath.startsWith("General/")) adapter.setMode(PlaylistAdapter.MODE_PUBLIC);
-                                else if (finalIsVault) adapter.setMode(PlaylistAdapter.MODE_VAULT);
-                                else adapter.setMode(PlaylistAdapter.MODE_PRIVATE);
-
-                                if (isSharedPreview) {
-                                    adapter.setMode(PlaylistAdapter.MODE_SHARED);
-                                } else if (currentPath.equals("General") || currentPath.startsWith("General/")) {
-                                    adapter.setMode(PlaylistAdapter.MODE_PUBLIC);
-                                } else if (finalIsVault) {
-                                    adapter.setMode(PlaylistAdapter.MODE_VAULT);
-                                } else {
-                                    adapter.setMode(PlaylistAdapter.MODE_PRIVATE);
-                                }
-                                adapter.notifyDataSetChanged();
-                                if (isBound && musicService != null && musicService.getCurrentSong() != null) {
-                                    adapter.setPlayingState(musicService.getCurrentSong().getPath(), musicService.isPlaying());
-                                }
-                                mainHandler.postDelayed(() -> tvStatus.setVisibility(View.GONE), 3000);
-                            } catch (Throwable t) {
-                                tvStatus.setText("Error visual: " + t.getMessage());
-                                tvStatus.setVisibility(View.VISIBLE);
-                            }
-                        }
-                    });
+                    if (cached != null && digest.equals(cached.digest)) {
+                        setRefreshingOnUI(false);
+                        return;
+                    }
+                    renderBrowseListing(listing);
 
                 } catch (final Exception e) {
                     e.printStackTrace();
+                    final boolean hasCachedListing = cached != null;
 
                     mainHandler.post(new Runnable() {
                         @Override
@@ -533,7 +506,8 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                             isRetryingConnection = false;
                             android.util.Log.e("Offline", "Fallo red final, carregant offline: " + e.getMessage());
 
-                            loadOfflineContent(currentFolderRequest);
+                            // Si ja mostrem la llista guardada, la mantenim en lloc de passar a offline
+                            if (!hasCachedListing) loadOfflineContent(currentFolderRequest);
 
                             String msg = NetworkReceiver.isConnected(MainActivity.this) ? "Error Servidor (Offline?)" : "Sense Connexió";
                             tvStatus.setText(msg);
@@ -546,6 +520,104 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         });
     }
 
+    private void setRefreshingOnUI(final boolean refreshing) {
+        mainHandler.post(() -> { if (swipeRefresh != null) swipeRefresh.setRefreshing(refreshing); });
+    }
+
+    private void renderBrowseListing(BrowseJson.Listing listing) {
+        if (listing.currentPath != null) currentPath = listing.currentPath;
+
+        final List<MusicItem> temp = listing.items;
+        final boolean finalIsVault = listing.isVault;
+        final int nextOffset = listing.nextOffset;
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (swipeRefresh != null) swipeRefresh.setRefreshing(false);
+                    resetBrowsePaging();
+                    browseNextOffset = nextOffset;
+                    if (nextOffset < 0) temp.addAll(getLocalOnlySongs(currentPath));
+                    updateTitleAndFab(currentPath, finalIsVault);
+                    if (adapter != null) adapter.setCurrentPath(currentPath);
+                        updateHeaderImage();
+
+                    if (isSharedPreview) {
+                        adapter.setMode(PlaylistAdapter.MODE_SHARED);
+                    } else if (currentPath.equals("General") || currentPath.startsWith("General/")) {
+                        adapter.setMode(PlaylistAdapter.MODE_PUBLIC);
+                    } else if (finalIsVault) {
+                        adapter.setMode(PlaylistAdapter.MODE_VAULT);
+                    } else {
+                        adapter.setMode(PlaylistAdapter.MODE_PRIVATE);
+                    }
+                    adapter.submitList(temp);
+                    if (isBound && musicService != null && musicService.getCurrentSong() != null) {
+                        adapter.setPlayingState(musicService.getCurrentSong().getPath(), musicService.isPlaying());
+                    }
+                    mainHandler.postDelayed(() -> tvStatus.setVisibility(View.GONE), 3000);
+                } catch (Throwable t) {
+                    tvStatus.setText("Error visual: " + t.getMessage());
+                    tvStatus.setVisibility(View.VISIBLE);
+                }
+            }
+        });
+    }
+
+    // Les cançons importades (content://) no són al servidor; van al final de la llista
+    private List<MusicItem> getLocalOnlySongs(String playlist) {
+        List<MusicItem> result = new ArrayList<>();
+        if (playlist.isEmpty() || playlist.equals("General")) return result;
+        for (MusicItem os : offlineDB.getSongsInPlaylist(playlist)) {
+            if (os.getPath().startsWith("content://")) result.add(os);
+        }
+        return result;
+    }
+
+    private void resetBrowsePaging() {
+        browseGeneration++;
+        browseNextOffset = -1;
+        browseLoadingPage = false;
+    }
+
+    private int getBrowsePageSize() {
+        return getSharedPreferences("ResoNodePrefs", MODE_PRIVATE).getInt(KEY_BROWSE_PAGE_SIZE, DEFAULT_BROWSE_PAGE_SIZE);
+    }
+
+    private void loadNextBrowsePage() {
+        // Fins que no s'aplica el diff de la primera pàgina no sabem on afegir la següent
+        if (browseNextOffset < 0 || browseLoadingPage || adapter.hasPendingUpdates()) return;
+        browseLoadingPage = true;
+        final int generation = browseGeneration;
+        final int offset = browseNextOffset;
+        final int pageSize = getBrowsePageSize();
+        final String folder = currentPath;
+        final String owner = isSharedPreview ? sharedOwner : session.getUsername();
+
+        executor.execute(() -> {
+            BrowseJson.Listing page = null;
+            try (Response response = client.newCall(new Request.Builder().url(BrowseJson.browseUrl(owner, folder, offset, pageSize)).build()).execute()) {
+                if (response.isSuccessful()) page = BrowseJson.readListing(response.body().byteStream());
+            } catch (Exception e) {
+                android.util.Log.w("Browse", "Error carregant pàgina " + offset + ": " + e.getMessage());
+            }
+            final BrowseJson.Listing result = page;
+            mainHandler.post(() -> {
+                // La llista ha canviat mentre carregàvem (navegació, refresc): descartem la pàgina
+                if (generation != browseGeneration) return;
+                browseLoadingPage = false;
+                if (result == null) return;
+                browseNextOffset = result.nextOffset;
+                List<MusicItem> added = new ArrayList<>(result.items);
+                if (result.nextOffset < 0) added.addAll(getLocalOnlySongs(folder));
+                int start = musicList.size();
+                musicList.addAll(added);
+                adapter.notifyItemRangeInserted(start, added.size());
+            });
+        });
+    }
+
     private void updateHeaderImage() {
         View cardHeader = findViewById(R.id.card_header);
         if (ivPlaylistHeader == null || cardHeader == null) return;
@@ -615,8 +687,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
             @Override
             public void run() {
                 if (swipeRefresh != null) swipeRefresh.setRefreshing(false);
-                musicList.clear();
-                musicList.addAll(offlineItems);
+                resetBrowsePaging();
 
                 if (getSupportActionBar() != null) getSupportActionBar().setTitle(displayTitle);
                 fabAdd.hide();
@@ -628,7 +699,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 if (ivPlaylistHeader != null) ivPlaylistHeader.setVisibility(View.GONE);
 
                 adapter.setMode(PlaylistAdapter.MODE_PRIVATE);
-                adapter.notifyDataSetChanged();
+                adapter.submitList(offlineItems);
             }
         });
     }
@@ -675,6 +746,9 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 urlToPlay = Config.SERVER_URL + "/stream?username=" + effectiveUsername + "&path=" + encodedPath;
             }
             musicService.playUrl(urlToPlay, musicList, currentSongIndex, effectiveUsername);
+            if (browseNextOffset >= 0) {
+                musicService.setQueueContinuation(currentPath, browseNextOffset, getBrowsePageSize());
+            }
         } catch (Exception e) {
             Toast.makeText(this, "Error al reproduir", Toast.LENGTH_SHORT).show();
         }
@@ -698,69 +772,35 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
 
         updatePlayIcons(isPlaying);
 
-        String urlToTry = null;
-        File localBackup = null;
+        if (ivCover == null) return;
 
+        String owner = isSharedPreview ? sharedOwner : session.getUsername();
+        String coverPath = null;
+        String localUri = null;
+        String playlistName = null;
         if (song.getPath().startsWith("content://")) {
-            android.media.MediaMetadataRetriever mmr = new android.media.MediaMetadataRetriever();
-            try {
-                mmr.setDataSource(this, Uri.parse(song.getPath()));
-                byte[] embeddedArt = mmr.getEmbeddedPicture();
-                if (embeddedArt != null) {
-                    if (ivCover != null)
-                        Glide.with(this).load(embeddedArt).placeholder(R.mipmap.ic_launcher).into(ivCover);
-                    return;
-                }
-            } catch (Exception e) {
-            } finally {
-                try {
-                    mmr.release();
-                } catch (Exception e) {
-                }
-            }
-            try {
-                urlToTry = Config.SERVER_URL + "/cover?username=" + (isSharedPreview ? sharedOwner : session.getUsername()) + "&path=" + URLEncoder.encode(currentPath, "UTF-8");
-            } catch (Exception e) {
-            }
+            localUri = song.getPath();
+            if (!currentPath.isEmpty()) coverPath = currentPath;
         } else if (song.getPath().startsWith("/")) {
             if (offlineDB != null) {
-                String originalPath = offlineDB.getServerPathForLocalFile(song.getPath());
-                if (originalPath != null) {
-                    try {
-                        urlToTry = Config.SERVER_URL + "/cover?username=" + (isSharedPreview ? sharedOwner : session.getUsername()) + "&path=" + URLEncoder.encode(originalPath, "UTF-8");
-                    } catch (Exception e) {}
-                }
-
-                List<MusicItem> playlists = offlineDB.getOfflinePlaylists();
-                for (MusicItem pl : playlists) {
-                    List<MusicItem> songsInPl = offlineDB.getSongsInPlaylist(pl.getName());
-                    for (MusicItem s : songsInPl) {
-                        if (s.getPath().equals(song.getPath())) {
-                            File dir = getDir("offline_music", Context.MODE_PRIVATE);
-                            String safeName = "cover_" + pl.getName().replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg";
-                            File f = new File(dir, safeName);
-                            if (f.exists()) localBackup = f;
-                            break;
-                        }
-                    }
-                    if (localBackup != null) break;
-                }
+                coverPath = offlineDB.getServerPathForLocalFile(song.getPath());
+                OfflineDB.LocalSong localSong = offlineDB.findLocalSong(song.getPath(), null, null);
+                if (localSong != null) playlistName = localSong.playlist;
             }
         } else {
-            try {
-                urlToTry = Config.SERVER_URL + "/cover?username=" + (isSharedPreview ? sharedOwner : session.getUsername()) + "&path=" + URLEncoder.encode(song.getPath(), "UTF-8");
-            } catch (Exception e) {}
+            coverPath = song.getPath();
         }
 
-        if (ivCover != null) {
-            Glide.with(this)
-                    .load(urlToTry)
-                    .override(800, 800)
-                    .diskCacheStrategy(DiskCacheStrategy.ALL)
-                    .error(Glide.with(this).load(localBackup).override(800, 800))
-                    .placeholder(R.mipmap.ic_launcher)
-                    .into(ivCover);
+        final ArtworkRepository.Request request = new ArtworkRepository.Request(localUri, coverPath, playlistName, owner);
+        final String requestKey = request.key(PLAYER_ART_SIZE);
+        if (!requestKey.equals(ivCover.getTag())) {
+            ivCover.setTag(requestKey);
+            ivCover.setImageResource(R.mipmap.ic_launcher);
         }
+        ArtworkRepository.get(this).load(request, PLAYER_ART_SIZE, bitmap -> {
+            if (!requestKey.equals(ivCover.getTag())) return;
+            if (bitmap != null) ivCover.setImageBitmap(bitmap);
+        });
     }
 
     private String formatTime(int ms) {
@@ -822,7 +862,19 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         swipeRefresh = findViewById(R.id.swipe_refresh);
         ivPlaylistHeader = findViewById(R.id.iv_playlist_header);
 
-        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView rv, int dx, int dy) {
+                if (dy <= 0 || browseNextOffset < 0) return;
+                int distance = getSharedPreferences("ResoNodePrefs", MODE_PRIVATE)
+                        .getInt(KEY_BROWSE_PREFETCH_DISTANCE, DEFAULT_BROWSE_PREFETCH_DISTANCE);
+                if (layoutManager.findLastVisibleItemPosition() >= musicList.size() - 1 - distance) {
+                    loadNextBrowsePage();
+                }
+            }
+        });
         swipeRefresh.setColorSchemeColors(0xFF1DB954);
         swipeRefresh.setOnRefreshListener(() -> {
             isRetryingConnection = false;
@@ -846,6 +898,9 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                     else if (action.equals("Afegir a Playlist")) showPlaylistSelectorForVaultItem(item);
                     else if (action.equals("Descarregar Offline")) downloadPlaylist(item);
                     else if (action.equals("Borrar Offline")) deleteOfflinePlaylist(item);
+                    else if (action.equals("Sincronitzar Offline")) syncOfflinePlaylist(item);
+                    else if (action.equals("Fixar Offline")) setOfflinePinned(item, true);
+                    else if (action.equals("Desfixar Offline")) setOfflinePinned(item, false);
                     else if (action.equals("Canviar Portada")) {
                         playlistCoverTarget = item;
                         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
@@ -948,7 +1003,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 .setMessage("Aquesta acció eliminarà les cançons seleccionades de la playlist.")
                 .setPositiveButton("SI", (dialog, which) -> {
 
-                    if (offlineDB == null) offlineDB = new OfflineDB(MainActivity.this);
+                    if (offlineDB == null) offlineDB = OfflineDB.get(MainActivity.this);
                     boolean hasLocals = false;
                     for (MusicItem i : items) {
                         if (i.getPath().startsWith("content://")) {
@@ -988,135 +1043,36 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 .show();
     }
 
+    /** Només baixa les cançons noves i treu les que s'han esborrat al servidor. */
+    private void syncOfflinePlaylist(final MusicItem playlistItem) {
+        Toast.makeText(this, "Sincronitzant " + playlistItem.getName() + "...", Toast.LENGTH_SHORT).show();
+        DownloadScheduler.get(this).syncPlaylist(playlistItem.getName());
+    }
+
+    /** Una playlist no fixada pot perdre les cançons menys escoltades quan es passa de la quota. */
+    private void setOfflinePinned(final MusicItem playlistItem, final boolean pinned) {
+        // L'escriptura pot esperar blobLock mentre es desa una descàrrega
+        executor.execute(() -> {
+            offlineDB.setPlaylistPinned(playlistItem.getName(), pinned);
+            if (!pinned) DownloadScheduler.get(this).enforceQuota();
+        });
+        Toast.makeText(this, pinned ? "Playlist fixada: no s'alliberarà automàticament"
+                : "Playlist desfixada: es pot alliberar si cal espai", Toast.LENGTH_SHORT).show();
+    }
+
     private void downloadPlaylist(final MusicItem playlistItem) {
         if (offlineDB.isPlaylistDownloaded(playlistItem.getName())) {
-            Toast.makeText(this, "Esta playlist ja està descarregada", Toast.LENGTH_SHORT).show();
+            syncOfflinePlaylist(playlistItem);
             return;
         }
-
-        Toast.makeText(this, "Iniciant descàrrega...", Toast.LENGTH_SHORT).show();
-
-        final android.app.NotificationManager notificationManager = (android.app.NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-        final String channelId = "DownloadChannel";
-        final int notificationId = 888;
-
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            android.app.NotificationChannel channel = new android.app.NotificationChannel(
-                    channelId, "Descàrregues de Música", android.app.NotificationManager.IMPORTANCE_LOW);
-            notificationManager.createNotificationChannel(channel);
+        if (offlineDB.hasPendingDownloads(playlistItem.getName())) {
+            Toast.makeText(this, "Aquesta playlist ja està a la cua de descàrregues", Toast.LENGTH_SHORT).show();
+            DownloadScheduler.get(this).kick();
+            return;
         }
 
-        final androidx.core.app.NotificationCompat.Builder builder = new androidx.core.app.NotificationCompat.Builder(this, channelId)
-                .setSmallIcon(R.mipmap.ic_launcher)
-                .setContentTitle("Descarregant " + playlistItem.getName())
-                .setContentText("Calculant cançons...")
-                .setPriority(androidx.core.app.NotificationCompat.PRIORITY_LOW)
-                .setOngoing(true)
-                .setOnlyAlertOnce(true)
-                .setProgress(100, 0, false);
-
-        notificationManager.notify(notificationId, builder.build());
-
-        executor.execute(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    String folderPath = playlistItem.getPath();
-                    String encodedFolder = URLEncoder.encode(folderPath, "UTF-8");
-                    String username = session.getUsername();
-
-                    String urlList = Config.SERVER_URL + "/browse?username=" + username + "&folder=" + encodedFolder;
-                    Request requestList = new Request.Builder().url(urlList).build();
-                    Response responseList = client.newCall(requestList).execute();
-
-                    if (!responseList.isSuccessful()) throw new Exception("Error al llegir playlist");
-
-                    JSONObject json = new JSONObject(responseList.body().string());
-                    JSONArray items = json.getJSONArray("items");
-
-                    int totalSongs = 0;
-                    for (int i = 0; i < items.length(); i++) {
-                        if (items.getJSONObject(i).getString("type").equals("file")) {
-                            totalSongs++;
-                        }
-                    }
-
-                    File privateDir = getDir("offline_music", Context.MODE_PRIVATE);
-                    if (!privateDir.exists()) privateDir.mkdirs();
-
-                    try {
-                        String coverUrl = Config.SERVER_URL + "/cover?username=" + username + "&path=" + encodedFolder;
-                        Request reqCover = new Request.Builder().url(coverUrl).build();
-                        Response resCover = client.newCall(reqCover).execute();
-
-                        if (resCover.isSuccessful()) {
-                            String safeCoverName = "cover_" + playlistItem.getName().replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg";
-                            File localCover = new File(privateDir, safeCoverName);
-                            FileOutputStream fos = new FileOutputStream(localCover);
-                            fos.write(resCover.body().bytes());
-                            fos.close();
-                        }
-                        resCover.close();
-                    } catch (Exception e) {
-                        android.util.Log.e("DL_COVER", "No s'ha pogut baixar portada: " + e.getMessage());
-                    }
-
-                    int downloadedCount = 0;
-                    for (int i = 0; i < items.length(); i++) {
-                        JSONObject o = items.getJSONObject(i);
-                        if (!o.getString("type").equals("file")) continue;
-
-                        String serverPath = o.getString("path");
-                        String name = o.getString("name");
-                        String artist = o.optString("artist", "Desconegut");
-
-                        downloadedCount++;
-                        int progressPercent = 0;
-                        if (totalSongs > 0) progressPercent = (int) ((downloadedCount * 100L) / totalSongs);
-
-                        builder.setProgress(totalSongs, downloadedCount, false)
-                                .setContentText("[" + progressPercent + "%] " + name.replace(".mp3", ""));
-                        notificationManager.notify(notificationId, builder.build());
-
-                        String encodedFilePath = URLEncoder.encode(serverPath, "UTF-8");
-                        String streamUrl = Config.SERVER_URL + "/stream?username=" + username + "&path=" + encodedFilePath;
-
-                        Request reqFile = new Request.Builder().url(streamUrl).header("x-secret-key", Config.API_SECRET_KEY).build();
-                        Response resFile = client.newCall(reqFile).execute();
-
-                        if (resFile.isSuccessful()) {
-                            String safeFileName = name.replaceAll("[^a-zA-Z0-9.-]", "_");
-                            File localFile = new File(privateDir, safeFileName);
-                            FileOutputStream fos = new FileOutputStream(localFile);
-                            fos.write(resFile.body().bytes());
-                            fos.close();
-
-                            offlineDB.saveSong(serverPath, name, playlistItem.getName(), localFile.getAbsolutePath(), artist);
-                        }
-                        resFile.close();
-                    }
-
-                    notificationManager.cancel(notificationId);
-
-                    final int count = downloadedCount;
-                    mainHandler.post(new Runnable() {
-                        @Override public void run() {
-                            Toast.makeText(MainActivity.this, "Descarregades " + count + " cançons", Toast.LENGTH_LONG).show();
-                            if (adapter != null) adapter.notifyDataSetChanged();
-                        }
-                    });
-
-                } catch (final Exception e) {
-                    e.printStackTrace();
-
-                    notificationManager.cancel(notificationId);
-
-                    mainHandler.post(new Runnable() {
-                        @Override public void run() { Toast.makeText(MainActivity.this, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show(); }
-                    });
-                }
-            }
-        });
+        Toast.makeText(this, "Iniciant descàrrega...", Toast.LENGTH_SHORT).show();
+        DownloadScheduler.get(this).enqueuePlaylist(playlistItem, session.getUsername());
     }
 
     private void setupPlayer() {
@@ -1269,6 +1225,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                             }
                         });
                         Glide.get(MainActivity.this).clearDiskCache();
+                        ArtworkRepository.get(MainActivity.this).clear();
 
                         mainHandler.post(new Runnable() {
                             @Override
@@ -1329,6 +1286,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                     RequestBody body = RequestBody.create(MediaType.parse("application/json"), jsonBody);
                     Request request = new Request.Builder().url(Config.SERVER_URL + endpoint).header("x-secret-key", Config.API_SECRET_KEY).post(body).build();
                     if(client.newCall(request).execute().isSuccessful()) {
+                        browseCache.markAllStale();
                         if(onSuccess != null) onSuccess.run();
                     }
                 } catch (Exception e) { showErrorOnUI("Error servidor"); }
@@ -1336,6 +1294,15 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         });
     }
 
+    /** Noms de les playlists de l'usuari (carpetes de l'arrel), o null si el servidor falla. */
+    private List<String> fetchPlaylistNames() throws IOException {
+        Request request = new Request.Builder().url(Config.SERVER_URL + "/browse?username=" + session.getUsername() + "&folder=").build();
+        try (Response r = client.newCall(request).execute()) {
+            if (!r.isSuccessful()) return null;
+            return BrowseJson.readListing(r.body().byteStream()).folderNames();
+        }
+    }
+
     private void showErrorOnUI(final String m) {
         mainHandler.post(new Runnable() {
             @Override public void run() {
@@ -1445,9 +1412,17 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        DownloadScheduler.get(this).removeListener(downloadListener);
         if(isBound) unbindService(serviceConnection);
     }
 
+    private final DownloadScheduler.Listener downloadListener = (completed, failed) -> {
+        String msg = "Descarregades " + completed + " cançons";
+        if (failed > 0) msg += " (" + failed + " han fallat)";
+        Toast.makeText(MainActivity.this, msg, Toast.LENGTH_LONG).show();
+        if (adapter != null) adapter.notifyDataSetChanged();
+    };
+
     private void showCreatePlaylistDialog() {
         EditText i=new EditText(this);
         new AlertDialog.Builder(this)
@@ -1478,7 +1453,7 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                     @Override public void onClick(DialogInterface d, int w) {
 
                         if (i.getPath().startsWith("content://")) {
-                            if (offlineDB == null) offlineDB = new OfflineDB(MainActivity.this);
+                            if (offlineDB == null) offlineDB = OfflineDB.get(MainActivity.this);
                             offlineDB.removeLocalSong(i.getPath(), currentPath);
                             Toast.makeText(MainActivity.this, "Cançó local eliminada", Toast.LENGTH_SHORT).show();
                             fetchMusicContent(Config.SERVER_URL, currentPath);
@@ -1528,14 +1503,13 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         executor.execute(new Runnable() {
             @Override public void run() {
                 try{
-                    Response r=client.newCall(new Request.Builder().url(Config.SERVER_URL+"/browse?username="+session.getUsername()+"&folder=").build()).execute();
-                    if(r.isSuccessful()){
-                        JSONArray a=new JSONObject(r.body().string()).getJSONArray("items");
+                    final List<String> names=fetchPlaylistNames();
+                    if(names!=null){
                         final List<String> l=new ArrayList<>();
 
                         l.add("Nova...");
 
-                        for(int x=0;x<a.length();x++) if(a.getJSONObject(x).getString("type").equals("folder")) l.add(a.getJSONObject(x).getString("name"));
+                        l.addAll(names);
                         mainHandler.post(new Runnable() {
                             @Override public void run() {
                                 new AlertDialog.Builder(MainActivity.this).setItems(l.toArray(new String[0]), new DialogInterface.OnClickListener() {
@@ -1605,12 +1579,11 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         executor.execute(new Runnable() {
             @Override public void run() {
                 try{
-                    Response r=client.newCall(new Request.Builder().url(Config.SERVER_URL+"/browse?username="+session.getUsername()+"&folder=").build()).execute();
-                    if(r.isSuccessful()){
-                        JSONArray a=new JSONObject(r.body().string()).getJSONArray("items");
+                    final List<String> names=fetchPlaylistNames();
+                    if(names!=null){
                         final List<String> n=new ArrayList<>();
                         n.add("Nova...");
-                        for(int x=0;x<a.length();x++) if(a.getJSONObject(x).getString("type").equals("folder")) n.add(a.getJSONObject(x).getString("name"));
+                        n.addAll(names);
                         mainHandler.post(new Runnable() {
                             @Override public void run() {
                                 new AlertDialog.Builder(MainActivity.this).setItems(n.toArray(new String[0]), new DialogInterface.OnClickListener() {
@@ -1840,22 +1813,22 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
                 .setPositiveButton("BORRAR", new DialogInterface.OnClickListener() {
                     @Override
                     public void onClick(DialogInterface dialog, int which) {
-                        List<String> files = offlineDB.getPlaylistFilePaths(item.getName());
-
-                        for (String path : files) {
-                            File f = new File(path);
-                            if (f.exists()) f.delete();
-                        }
-
-                        File privateDir = getDir("offline_music", Context.MODE_PRIVATE);
-                        String safeCoverName = "cover_" + item.getName().replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg";
-                        File cover = new File(privateDir, safeCoverName);
-                        if (cover.exists()) cover.delete();
+                        // Esborrar i el GC poden esperar blobLock mentre es desa una descàrrega
+                        executor.execute(() -> {
+                            File privateDir = getDir("offline_music", Context.MODE_PRIVATE);
+                            String safeCoverName = "cover_" + item.getName().replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg";
+                            File cover = new File(privateDir, safeCoverName);
+                            if (cover.exists()) cover.delete();
 
-                        offlineDB.deletePlaylist(item.getName());
+                            offlineDB.deletePlaylist(item.getName());
+                            // Els fitxers compartits amb altres playlists es queden
+                            offlineDB.collectGarbage();
 
-                        Toast.makeText(MainActivity.this, "Descargàrregues eliminades", Toast.LENGTH_SHORT).show();
-                        adapter.notifyDataSetChanged();
+                            mainHandler.post(() -> {
+                                Toast.makeText(MainActivity.this, "Descargàrregues eliminades", Toast.LENGTH_SHORT).show();
+                                adapter.notifyDataSetChanged();
+                            });
+                        });
                     }
                 })
                 .setNegativeButton("CANCEL·LAR", null)
@@ -2197,15 +2170,8 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
         executor.execute(new Runnable() {
             @Override public void run() {
                 try {
-                    Response r = client.newCall(new Request.Builder().url(Config.SERVER_URL + "/browse?username=" + session.getUsername() + "&folder=").build()).execute();
-                    if(r.isSuccessful()) {
-                        JSONArray a = new JSONObject(r.body().string()).getJSONArray("items");
-                        final List<String> pList = new ArrayList<>();
-                        for (int x = 0; x < a.length(); x++) {
-                            if (a.getJSONObject(x).getString("type").equals("folder")) {
-                                pList.add(a.getJSONObject(x).getString("name"));
-                            }
-                        }
+                    final List<String> pList = fetchPlaylistNames();
+                    if (pList != null) {
 
                         mainHandler.post(new Runnable() {
                             @Override public void run() {
@@ -2348,12 +2314,14 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
 
                         if (type.equals("file")) {
                             MusicItem item = new MusicItem(name, "file", path, artist);
+                            resetBrowsePaging();
                             musicList.clear();
                             musicList.add(item);
                             currentPath = name;
 
                             adapter.setCurrentPath(currentPath);
                             adapter.setMode(PlaylistAdapter.MODE_SHARED);
+                            adapter.notifyDataSetChanged();
                             updateTitleAndFab("Shared", false);
 
                             currentSongIndex = 0;
@@ -2378,12 +2346,11 @@ public class MainActivity extends AppCompatActivity implements NavigationView.On
     private void showAddToPlaylistDialogForShared(final List<MusicItem> l) {
         executor.execute(() -> {
             try {
-                Response r=client.newCall(new Request.Builder().url(Config.SERVER_URL+"/browse?username="+session.getUsername()+"&folder=").build()).execute();
-                if(r.isSuccessful()){
-                    JSONArray a=new JSONObject(r.body().string()).getJSONArray("items");
+                final List<String> names=fetchPlaylistNames();
+                if(names!=null){
                     final List<String> n=new ArrayList<>();
                     n.add("Nova...");
-                    for(int x=0;x<a.length();x++) if(a.getJSONObject(x).getString("type").equals("folder")) n.add(a.getJSONObject(x).getString("name"));
+                    n.addAll(names);
                     mainHandler.post(() -> {
                         new AlertDialog.Builder(MainActivity.this).setItems(n.toArray(new String[0]), (d, w) -> {
                             if(w==0) showCreatePlaylistForSharedAddDialog(l);
@@ -27,14 +27,10 @@ import android.support.v4.media.session.PlaybackStateCompat;
 import android.view.KeyEvent;
 import android.widget.Toast;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.media.session.MediaButtonReceiver;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.request.target.CustomTarget;
-import com.bumptech.glide.request.transition.Transition;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -50,9 +46,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
-import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.Response;
@@ -60,10 +54,16 @@ import okhttp3.Response;
 public class MusicService extends Service implements AudioManager.OnAudioFocusChangeListener {
 
     private static final String CHANNEL_ID = "ResoNodeChannel";
+    private static final int NOTIFICATION_ART_SIZE = 256;
     private static final int NOTIFICATION_ID = 1;
     private static final String PREFS_NAME = "ResoNodeState";
 
     private MediaPlayer mediaPlayer;
+    private MediaPlayer nextPlayer;
+    private int nextIndex = -1;
+    private boolean nextPlayerReady = false;
+    private boolean nextIsLocal = false;
+    private boolean currentIsLocal = false;
     private MediaSessionCompat mediaSession;
     private AudioManager audioManager;
     private final IBinder binder = new LocalBinder();
@@ -75,38 +75,60 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
     private boolean resumeOnFocusGain = false;
 
     private int failureCount = 0;
-    private static final int MAX_RETRIES = 3;
+    private static final int MAX_RETRIES = 5;
+    private static final long RETRY_BASE_DELAY_MS = 1000;
+    private static final long RETRY_MAX_DELAY_MS = 15000;
+
+    private int resumeIndex = -1;
+    private int resumePositionMs = 0;
+    private long recoveryStartedAt = 0;
+    private long lastResumeLatencyMs = -1;
+    // Última posició llegida mentre sonava: un reproductor en estat d'error ja no la sap
+    private static final long PROGRESS_TICK_MS = 1000;
+    private final Handler progressHandler = new Handler(Looper.getMainLooper());
+    private int lastGoodIndex = -1;
+    private int lastGoodPositionMs = 0;
+    private final Runnable progressTick = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (mediaPlayer == null || !mediaPlayer.isPlaying()) return;
+                lastGoodIndex = currentIndex;
+                lastGoodPositionMs = mediaPlayer.getCurrentPosition();
+            } catch (Exception e) {
+                return;
+            }
+            progressHandler.postDelayed(this, PROGRESS_TICK_MS);
+        }
+    };
 
     private OnSongChangedListener callback;
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private static final int QUEUE_EXTEND_THRESHOLD = 5;
+    private String queueFolder = null;
+    private int queueNextOffset = -1;
+    private int queuePageSize = 0;
+    private int queueGeneration = 0;
+    private boolean queueExtending = false;
+    private boolean advanceAfterExtend = false;
     private File tempFile = null;
     
     private OfflineDB offlineDB;
 
     private boolean isRepeatOne = false;
 
-    public void toggleRepeatOne() { this.isRepeatOne = !this.isRepeatOne; }
+    public void toggleRepeatOne() {
+        this.isRepeatOne = !this.isRepeatOne;
+        if (nextIndex != -1) prepareNextPlayer();
+    }
     public boolean isRepeatOneEnabled() { return isRepeatOne; }
 
-    private OkHttpClient createClient() {
-        OkHttpClient.Builder builder = new OkHttpClient.Builder()
-                .connectTimeout(30, TimeUnit.SECONDS)
-                .readTimeout(120, TimeUnit.SECONDS)
-                .addInterceptor(new Interceptor() {
-                    @Override
-                    public Response intercept(Chain chain) throws IOException {
-                        Request original = chain.request();
-                        Request request = original.newBuilder()
-                                .header("x-secret-key", Config.API_SECRET_KEY)
-                                .method(original.method(), original.body())
-                                .build();
-                        return chain.proceed(request);
-                    }
-                });
-        return Tls12SocketFactory.enableTls12OnPreLollipop(builder).build();
-    }
-    private final OkHttpClient client = createClient();
+    private final OkHttpClient client = HttpStack.withReadTimeout(120);
+    private StreamProxy streamProxy;
+    private PrefetchScheduler prefetchScheduler;
+    private NetworkReceiver networkReceiver;
 
     private final BroadcastReceiver bluetoothReceiver = new BroadcastReceiver() {
         @Override
@@ -141,7 +163,11 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
 
         
-        offlineDB = new OfflineDB(this);
+        offlineDB = OfflineDB.get(this);
+
+        streamProxy = new StreamProxy(new AudioCache(this), client);
+        streamProxy.start();
+        prefetchScheduler = new PrefetchScheduler(this, streamProxy);
 
         createNotificationChannel();
         showPlaceholderNotification();
@@ -155,6 +181,24 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         filter.addAction(android.bluetooth.BluetoothDevice.ACTION_ACL_DISCONNECTED);
         filter.addAction(android.media.AudioManager.ACTION_AUDIO_BECOMING_NOISY);
         registerReceiver(bluetoothReceiver, filter);
+
+        networkReceiver = new NetworkReceiver(isConnected -> {
+            if (isConnected && isPlaying()) schedulePrefetch();
+            else prefetchScheduler.cancel();
+        });
+        registerReceiver(networkReceiver, new IntentFilter(android.net.ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_RUNNING_LOW && prefetchScheduler != null) prefetchScheduler.cancel();
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (prefetchScheduler != null) prefetchScheduler.cancel();
     }
 
     private void showPlaceholderNotification() {
@@ -172,28 +216,32 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
     }
 
     private void initializePlayer() {
-        mediaPlayer = new MediaPlayer();
-        mediaPlayer.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
-        mediaPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+        mediaPlayer = createPlayer();
+        nextPlayer = createPlayer();
+    }
+
+    private MediaPlayer createPlayer() {
+        MediaPlayer player = new MediaPlayer();
+        player.setWakeMode(getApplicationContext(), PowerManager.PARTIAL_WAKE_LOCK);
+        player.setAudioStreamType(AudioManager.STREAM_MUSIC);
 
-        mediaPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+        player.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
             @Override
             public void onPrepared(MediaPlayer mp) {
+                if (mp == nextPlayer) {
+                    onNextPlayerPrepared();
+                    return;
+                }
                 failureCount = 0;
+                applyResumePoint(mp);
                 mp.start();
-
-                songStartTime = System.currentTimeMillis();
-
-                updateNotification();
-                saveState();
-                if (callback != null && currentIndex != -1 && currentIndex < playlist.size()) {
-                    callback.onSongChanged(playlist.get(currentIndex), true);
-                    callback.onPlaybackStateChanged(true);
-                }
+                onTrackStarted();
             }
         });
 
-        mediaPlayer.setOnCompletionListener(mp -> {
+        player.setOnCompletionListener(mp -> {
+            if (mp != mediaPlayer) return;
+
             int currentPos = 0;
             int songDurationMs = 0;
             try {
@@ -203,8 +251,12 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
 
             boolean reallyFinished = (songDurationMs <= 0) || (currentPos >= songDurationMs - 5000);
 
+            if (!reallyFinished && promoteIfNextStarted()) return;
+
             if (!reallyFinished) {
                 android.util.Log.w("MusicService", "Tall de xarxa detectat. Reintentant...");
+                rememberResumePoint(Math.max(currentPos, lastGoodPosition()));
+                discardNextPlayer();
                 handlePlaybackError();
                 return;
             }
@@ -214,15 +266,17 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
             if (songDurationMs > 30000 && currentItem != null) {
                 final int secondsToLog = songDurationMs / 1000;
                 executor.execute(() -> {
-                    OfflineDB db = new OfflineDB(getApplicationContext());
+                    OfflineDB db = OfflineDB.get(getApplicationContext());
                     db.logPlay(currentItem.getName(), currentItem.getArtist(), secondsToLog);
-                    syncHistory(getApplicationContext());
+                    HistorySync.get(getApplicationContext()).requestSync();
                 });
             }
 
             failureCount = 0;
 
-            if (isRepeatOne) {
+            if (nextPlayerReady) {
+                promoteNextPlayer(false);
+            } else if (isRepeatOne) {
                 if (currentItem != null) playInternal(currentItem);
                 else playNext();
             } else {
@@ -230,27 +284,205 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
             }
         });
 
-        mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
+        player.setOnErrorListener(new MediaPlayer.OnErrorListener() {
             @Override
             public boolean onError(MediaPlayer mp, int what, int extra) {
+                if (mp == nextPlayer) {
+                    onNextPlayerFailed();
+                    return true;
+                }
+                if (mp != mediaPlayer) return true;
+                if (promoteIfNextStarted()) return true;
+
+                rememberResumePoint(lastGoodPosition());
+                MusicItem item = getCurrentSong();
+                if (!currentIsLocal && item != null) {
+                    String localPath = findLocalPath(item);
+                    if (localPath != null) {
+                        android.util.Log.d("MusicService", "Error Stream -> Fallback Local");
+                        requestAudioFocusAndPlay(localPath, item, true);
+                        return true;
+                    }
+                }
                 handlePlaybackError();
                 return true;
             }
         });
+        return player;
+    }
+
+    private void onTrackStarted() {
+        songStartTime = System.currentTimeMillis();
+        startProgressTicks();
+
+        updateNotification();
+        saveState();
+        if (callback != null && currentIndex != -1 && currentIndex < playlist.size()) {
+            callback.onSongChanged(playlist.get(currentIndex), true);
+            callback.onPlaybackStateChanged(true);
+        }
+        maybeExtendQueue();
+        prepareNextPlayer();
+        schedulePrefetch();
+    }
+
+    private void schedulePrefetch() {
+        if (prefetchScheduler == null || playlist.isEmpty() || currentIndex == -1) return;
+        int count = prefetchScheduler.getTargetCount();
+        if (count <= 0) return;
+
+        // La pista que prepara nextPlayer ja la baixa el proxy i la desa mentre la llegeix. AudioCache
+        // només admet un escriptor per clau: si el prefetch també la demanés, un dels dos no la guardaria
+        MusicItem preparing = null;
+        if (nextIndex != -1 && nextIndex < playlist.size() && !nextIsLocal) preparing = playlist.get(nextIndex);
+
+        List<MusicItem> upcoming = new ArrayList<>();
+        if (!isShuffle && !isRepeatOne) {
+            int index = currentIndex;
+            for (int i = 0; i < playlist.size() && upcoming.size() < count; i++) {
+                index = (index + 1) % playlist.size();
+                if (index == currentIndex) break;
+                MusicItem item = playlist.get(index);
+                if (item.isFolder() || item == preparing || upcoming.contains(item)) continue;
+                upcoming.add(item);
+            }
+        }
+
+        List<MusicItem> remote = new ArrayList<>();
+        for (MusicItem item : upcoming) {
+            if (remote.size() >= count) break;
+            if (item.getPath().startsWith("/") || item.getPath().startsWith("content://")) continue;
+            remote.add(item);
+        }
+        prefetchScheduler.schedule(remote, currentUsername);
+    }
+
+    private int pickNextIndex() {
+        if (playlist.isEmpty()) return -1;
+        if (isRepeatOne && currentIndex >= 0 && currentIndex < playlist.size()
+                && !playlist.get(currentIndex).isFolder()) {
+            return currentIndex;
+        }
+
+        int candidate = currentIndex;
+        for (int tries = 0; tries < playlist.size(); tries++) {
+            // No tornem a l'inici si encara queden pàgines de la carpeta per carregar
+            if (!isShuffle && candidate + 1 >= playlist.size() && queueNextOffset >= 0) return -1;
+            if (isShuffle) candidate = new java.util.Random().nextInt(playlist.size());
+            else candidate = (candidate + 1) % playlist.size();
+            if (!playlist.get(candidate).isFolder()) return candidate;
+        }
+        return -1;
+    }
+
+    private void prepareNextPlayer() {
+        discardNextPlayer();
+        int index = pickNextIndex();
+        if (index == -1) return;
+
+        MusicItem item = playlist.get(index);
+        String url = resolvePlayableUrl(item);
+        if (url == null) return;
+
+        if (!prepareNextSource(url, isLocalSource(url))) {
+            String localPath = findLocalPath(item);
+            if (localPath == null || localPath.equals(url) || !prepareNextSource(localPath, true)) return;
+        }
+        nextIndex = index;
+    }
+
+    private boolean prepareNextSource(String url, boolean isLocalFile) {
+        try {
+            nextPlayer.reset();
+            setPlayerDataSource(nextPlayer, url, isLocalFile);
+            nextPlayer.prepareAsync();
+            nextIsLocal = isLocalFile;
+            return true;
+        } catch (Exception e) {
+            nextPlayer.reset();
+            return false;
+        }
+    }
+
+    private void onNextPlayerPrepared() {
+        if (nextIndex == -1) return;
+        try {
+            mediaPlayer.setNextMediaPlayer(nextPlayer);
+            nextPlayerReady = true;
+        } catch (Exception e) {
+            discardNextPlayer();
+        }
+    }
+
+    private void onNextPlayerFailed() {
+        int index = nextIndex;
+        discardNextPlayer();
+        if (index == -1 || index >= playlist.size()) return;
+
+        MusicItem item = playlist.get(index);
+        String localPath = findLocalPath(item);
+        if (localPath != null && prepareNextSource(localPath, true)) {
+            android.util.Log.d("MusicService", "Error precàrrega -> Fallback Local");
+            nextIndex = index;
+        }
+    }
+
+    private void discardNextPlayer() {
+        nextIndex = -1;
+        nextPlayerReady = false;
+        try { if (mediaPlayer != null) mediaPlayer.setNextMediaPlayer(null); } catch (Exception e) {}
+        try { if (nextPlayer != null) nextPlayer.reset(); } catch (Exception e) {}
+    }
+
+    /**
+     * Si setNextMediaPlayer ja ha engegat la següent, reintentar l'actual la tallaria a mitja
+     * transició (un salt o una estrebada): es dóna la pista per acabada i es continua amb la que sona.
+     */
+    private boolean promoteIfNextStarted() {
+        boolean started = false;
+        try { started = nextPlayerReady && nextPlayer != null && nextPlayer.isPlaying(); } catch (Exception e) {}
+        if (!started) return false;
+        android.util.Log.w("MusicService", "La pista s'ha tallat però la següent ja sona: es continua");
+        failureCount = 0;
+        clearResumePoint();
+        promoteNextPlayer(false);
+        return true;
+    }
+
+    private void promoteNextPlayer(boolean startNow) {
+        MediaPlayer finished = mediaPlayer;
+        try { finished.setNextMediaPlayer(null); } catch (Exception e) {}
+
+        mediaPlayer = nextPlayer;
+        nextPlayer = finished;
+        currentIndex = nextIndex;
+        currentIsLocal = nextIsLocal;
+        nextIndex = -1;
+        nextPlayerReady = false;
+
+        try { finished.reset(); } catch (Exception e) {}
+        if (startNow && !mediaPlayer.isPlaying()) mediaPlayer.start();
+        lastGoodIndex = currentIndex;
+        lastGoodPositionMs = 0;
+
+        onTrackStarted();
     }
 
     private void handlePlaybackError() {
         failureCount++;
         if (failureCount < MAX_RETRIES) {
-            // ✅ Reintentar la misma canción con delay, no saltar
+            // Reintentar la misma canción con backoff exponencial, no saltar
+            long delay = Math.min(RETRY_MAX_DELAY_MS, RETRY_BASE_DELAY_MS << (failureCount - 1));
+            delay += (long) (Math.random() * delay / 2);
             new Handler(Looper.getMainLooper()).postDelayed(() -> {
                 if (currentIndex != -1 && !playlist.isEmpty()) {
                     playInternal(playlist.get(currentIndex));
                 }
-            }, 1500); // 1.5s de espera antes de reintentar
+            }, delay);
         } else {
             failureCount = 0;
-            // Solo después de 3 fallos reales, pasar a la siguiente
+            clearResumePoint();
+            // Solo después de MAX_RETRIES fallos reales, pasar a la siguiente
             new Handler(Looper.getMainLooper()).post(() -> {
                 Toast.makeText(getApplicationContext(), "Error reproducció", Toast.LENGTH_SHORT).show();
                 playNext();
@@ -259,6 +491,53 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         }
     }
 
+    private void startProgressTicks() {
+        progressHandler.removeCallbacks(progressTick);
+        progressHandler.postDelayed(progressTick, PROGRESS_TICK_MS);
+    }
+
+    private int lastGoodPosition() {
+        return lastGoodIndex == currentIndex ? lastGoodPositionMs : 0;
+    }
+
+    private void rememberResumePoint(int positionMs) {
+        if (currentIndex == -1) return;
+        if (resumeIndex != currentIndex) {
+            resumeIndex = currentIndex;
+            resumePositionMs = 0;
+        }
+        // Un reintent fallit torna 0: no perdre l'última posició bona
+        if (positionMs > resumePositionMs) resumePositionMs = positionMs;
+        if (recoveryStartedAt == 0) recoveryStartedAt = System.currentTimeMillis();
+    }
+
+    private void clearResumePoint() {
+        resumeIndex = -1;
+        resumePositionMs = 0;
+        recoveryStartedAt = 0;
+    }
+
+    private void applyResumePoint(MediaPlayer mp) {
+        // Comença una reproducció nova d'aquesta pista: la posició bona és on comença
+        lastGoodIndex = currentIndex;
+        lastGoodPositionMs = 0;
+        if (resumeIndex == -1) return;
+        if (resumeIndex == currentIndex && resumePositionMs > 0) {
+            mp.seekTo(resumePositionMs);
+            lastGoodPositionMs = resumePositionMs;
+            lastResumeLatencyMs = System.currentTimeMillis() - recoveryStartedAt;
+
+            long cachedBytes = 0;
+            MusicItem item = getCurrentSong();
+            if (item != null && streamProxy != null) cachedBytes = streamProxy.getCache().getCachedLength(AudioCache.keyFor(item.getPath()));
+            android.util.Log.d("MusicService", "Reprenent a " + resumePositionMs + "ms en " + lastResumeLatencyMs
+                    + "ms (bytes en cache: " + cachedBytes + ")");
+        }
+        clearResumePoint();
+    }
+
+    public long getLastResumeLatencyMs() { return lastResumeLatencyMs; }
+
     private void initializeMediaSession() {
         mediaSession = new MediaSessionCompat(this, "MusicService");
         mediaSession.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
@@ -335,6 +614,8 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
 
     public void playUrl(String url, List<MusicItem> list, int index, String username) {
         this.failureCount = 0;
+        clearResumePoint();
+        clearQueueContinuation();
         this.playlist = new ArrayList<>(list);
         this.currentIndex = index;
         this.currentUsername = username;
@@ -347,69 +628,54 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
 
     
     private void playInternal(MusicItem item) {
-        try {
-            String urlToPlay = "";
-            boolean isLocal = false;
+        discardNextPlayer();
+        String urlToPlay = resolvePlayableUrl(item);
+        if (urlToPlay == null) {
+            Toast.makeText(getApplicationContext(), "No disponible offline", Toast.LENGTH_SHORT).show();
+            handlePlaybackError();
+            return;
+        }
+        requestAudioFocusAndPlay(urlToPlay, item, isLocalSource(urlToPlay));
+    }
 
+    private String resolvePlayableUrl(MusicItem item) {
+        if (item.getPath().startsWith("/") || item.getPath().startsWith("content://")) {
+            return item.getPath();
+        }
 
-            if (item.getPath().startsWith("/") || item.getPath().startsWith("content://")) {
-                urlToPlay = item.getPath();
-                isLocal = true;
-            }
-            
-            else {
-                
-                boolean hasInternet = NetworkReceiver.isConnected(getApplicationContext());
+        boolean hasInternet = NetworkReceiver.isConnected(getApplicationContext());
+        boolean proxyReady = streamProxy != null && streamProxy.isRunning();
 
-                
-                String localPath = findLocalPath(item);
+        if (proxyReady && streamProxy.getCache().isComplete(AudioCache.keyFor(item.getPath()))) {
+            try { return streamProxy.getProxyUrl(currentUsername, item.getPath()); } catch (Exception e) {}
+        }
 
-                if (!hasInternet) {
-                    
-                    if (localPath != null) {
-                        urlToPlay = localPath;
-                        isLocal = true;
-                        android.util.Log.d("MusicService", "Offline: Cambiando a archivo local -> " + localPath);
-                    } else {
-                        
-                        Toast.makeText(getApplicationContext(), "No disponible offline", Toast.LENGTH_SHORT).show();
-                        handlePlaybackError();
-                        return;
-                    }
-                } else {
-                    
-                    
-                    
-                    String encodedPath = URLEncoder.encode(item.getPath(), "UTF-8");
-                    urlToPlay = Config.SERVER_URL + "/stream?username=" + currentUsername + "&path=" + encodedPath;
-                }
+        if (!hasInternet) {
+            String localPath = findLocalPath(item);
+            if (localPath != null) {
+                android.util.Log.d("MusicService", "Offline: Cambiando a archivo local -> " + localPath);
             }
+            return localPath;
+        }
 
-            
-            requestAudioFocusAndPlay(urlToPlay, item, isLocal);
-
-        } catch(Exception e){
-            handlePlaybackError();
+        try {
+            if (proxyReady) return streamProxy.getProxyUrl(currentUsername, item.getPath());
+            String encodedPath = URLEncoder.encode(item.getPath(), "UTF-8");
+            return Config.SERVER_URL + "/stream?username=" + currentUsername + "&path=" + encodedPath;
+        } catch (Exception e) {
+            return null;
         }
     }
 
+    private boolean isLocalSource(String url) {
+        return !url.startsWith("http");
+    }
+
     
     private String findLocalPath(MusicItem item) {
         if (offlineDB == null) return null;
-        try {
-            
-            List<MusicItem> playlists = offlineDB.getOfflinePlaylists();
-            for (MusicItem pl : playlists) {
-                List<MusicItem> songs = offlineDB.getSongsInPlaylist(pl.getName());
-                for (MusicItem s : songs) {
-                    
-                    if (s.getPath().equals(item.getPath()) || s.getName().equals(item.getName())) {
-                        File f = new File(s.getPath()); 
-                        if (f.exists()) return s.getPath();
-                    }
-                }
-            }
-        } catch (Exception e) {}
+        OfflineDB.LocalSong song = offlineDB.findLocalSong(item.getPath(), item.getName(), item.getArtist());
+        if (song != null && new File(song.filePath).exists()) return song.filePath;
         return null;
     }
 
@@ -418,35 +684,13 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         if (result == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
             try {
                 mediaPlayer.reset();
-
-                if (url.startsWith("content://")) {
-                    mediaPlayer.setDataSource(getApplicationContext(), Uri.parse(url));
-                } else if (!isLocalFile && url.startsWith("http")) {
-                    Map<String, String> headers = new HashMap<>();
-                    headers.put("x-secret-key", Config.API_SECRET_KEY);
-                    mediaPlayer.setDataSource(getApplicationContext(), Uri.parse(url), headers);
-                } else {
-                    mediaPlayer.setDataSource(url);
-                }
-                
-                mediaPlayer.setOnErrorListener(new MediaPlayer.OnErrorListener() {
-                    @Override
-                    public boolean onError(MediaPlayer mp, int what, int extra) {
-                        
-                        if (!isLocalFile) {
-                            String localPath = findLocalPath(originalItem);
-                            if (localPath != null) {
-                                android.util.Log.d("MusicService", "Error Stream -> Fallback Local");
-                                requestAudioFocusAndPlay(localPath, originalItem, true);
-                                return true; 
-                            }
-                        }
-                        handlePlaybackError();
-                        return true;
-                    }
-                });
-
+                currentIsLocal = isLocalFile;
+                setPlayerDataSource(mediaPlayer, url, isLocalFile);
                 mediaPlayer.prepareAsync();
+                // Per a la quota: els fitxers escoltats fa poc són els últims que s'alliberen
+                if (isLocalFile && url.startsWith("/") && offlineDB != null) {
+                    executor.execute(() -> offlineDB.markFilePlayed(url));
+                }
 
             } catch (Exception e) {
                 
@@ -462,10 +706,23 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         }
     }
 
+    private void setPlayerDataSource(MediaPlayer player, String url, boolean isLocalFile) throws IOException {
+        if (url.startsWith("content://")) {
+            player.setDataSource(getApplicationContext(), Uri.parse(url));
+        } else if (!isLocalFile && url.startsWith("http")) {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("x-secret-key", Config.API_SECRET_KEY);
+            player.setDataSource(getApplicationContext(), Uri.parse(url), headers);
+        } else {
+            player.setDataSource(url);
+        }
+    }
+
     public void resumeMusic() {
         if (mediaPlayer != null && !mediaPlayer.isPlaying()) {
             if (audioManager.requestAudioFocus(this, AudioManager.STREAM_MUSIC, AudioManager.AUDIOFOCUS_GAIN) == AudioManager.AUDIOFOCUS_REQUEST_GRANTED) {
                 mediaPlayer.start();
+                startProgressTicks();
                 updateNotification();
                 if (callback != null) callback.onPlaybackStateChanged(true);
             }
@@ -483,12 +740,26 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
 
     public void playNextByUser() {
         failureCount = 0;
+        clearResumePoint();
         playNext();
     }
 
     public void playNext() {
         if (playlist.isEmpty()) return;
 
+        if (nextPlayerReady && !isRepeatOne) {
+            try { mediaPlayer.pause(); } catch (Exception e) {}
+            failureCount = 0;
+            promoteNextPlayer(true);
+            return;
+        }
+
+        if (!isShuffle && currentIndex + 1 >= playlist.size() && queueNextOffset >= 0) {
+            advanceAfterExtend = true;
+            maybeExtendQueue();
+            return;
+        }
+
         int nextIndex;
 
         if (isShuffle) {
@@ -510,8 +781,78 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         playInternal(nextItem);
     }
 
+    /**
+     * La cua ve d'una carpeta paginada de la qual només hi ha carregada una part:
+     * quan ens acostem al final en demanem la pàgina següent.
+     */
+    public void setQueueContinuation(String folder, int nextOffset, int pageSize) {
+        queueFolder = folder;
+        queueNextOffset = nextOffset;
+        queuePageSize = pageSize;
+        queueGeneration++;
+        maybeExtendQueue();
+    }
+
+    private void clearQueueContinuation() {
+        queueFolder = null;
+        queueNextOffset = -1;
+        queueExtending = false;
+        advanceAfterExtend = false;
+        queueGeneration++;
+    }
+
+    private void maybeExtendQueue() {
+        if (queueNextOffset < 0 || queueExtending || queueFolder == null) return;
+        boolean nearEnd = playlist.size() - 1 - currentIndex <= QUEUE_EXTEND_THRESHOLD;
+        if (!nearEnd && !isShuffle && !advanceAfterExtend) return;
+
+        queueExtending = true;
+        final int generation = queueGeneration;
+        final String folder = queueFolder;
+        final int offset = queueNextOffset;
+        final int pageSize = queuePageSize;
+        final String owner = currentUsername;
+        executor.execute(() -> {
+            BrowseJson.Listing page = null;
+            try {
+                Request request = new Request.Builder().url(BrowseJson.browseUrl(owner, folder, offset, pageSize)).build();
+                try (Response response = client.newCall(request).execute()) {
+                    if (response.isSuccessful()) page = BrowseJson.readListing(response.body().byteStream());
+                }
+            } catch (Exception e) {
+                android.util.Log.w("MusicService", "No s'ha pogut ampliar la cua: " + e.getMessage());
+            }
+            final BrowseJson.Listing result = page;
+            new Handler(Looper.getMainLooper()).post(() -> onQueuePageLoaded(generation, result));
+        });
+    }
+
+    private void onQueuePageLoaded(int generation, BrowseJson.Listing page) {
+        if (generation != queueGeneration) return;
+        queueExtending = false;
+        boolean advance = advanceAfterExtend;
+        advanceAfterExtend = false;
+
+        if (page == null) {
+            // Sense xarxa o error: ens quedem amb el que tenim i la cua torna a ser circular
+            queueNextOffset = -1;
+        } else {
+            playlist.addAll(page.items);
+            queueNextOffset = page.nextOffset;
+        }
+
+        if (advance) {
+            playNext();
+            return;
+        }
+        // Si el següent preparat era una volta a l'inici, ara ja hi ha cançons noves a continuació
+        if (nextIndex == -1 || (!isRepeatOne && !isShuffle && nextIndex <= currentIndex)) prepareNextPlayer();
+        maybeExtendQueue();
+    }
+
     public void playPrev() {
         failureCount = 0;
+        clearResumePoint();
         if (playlist.isEmpty()) return;
         int prevIndex = (currentIndex - 1 + playlist.size()) % playlist.size();
         MusicItem prevItem = playlist.get(prevIndex);
@@ -601,54 +942,26 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
         if (currentIndex == -1 || playlist.isEmpty()) return;
         final MusicItem item = playlist.get(currentIndex);
 
-        String artUrl = "";
-        File localCover = null;
-
-        
+        String coverPath = null;
+        String localUri = null;
+        String playlistName = null;
         if (item.getPath().startsWith("/")) {
-            
             if (offlineDB != null) {
-                String originalPath = offlineDB.getServerPathForLocalFile(item.getPath());
-                if (originalPath != null) {
-                    try { artUrl = Config.SERVER_URL + "/cover?username=" + currentUsername + "&path=" + URLEncoder.encode(originalPath, "UTF-8"); } catch (Exception e) {}
-                }
-                
-                List<MusicItem> playlists = offlineDB.getOfflinePlaylists();
-                for(MusicItem pl : playlists) {
-                    List<MusicItem> songs = offlineDB.getSongsInPlaylist(pl.getName());
-                    for(MusicItem s : songs) {
-                        if(s.getPath().equals(item.getPath()) || s.getName().equals(item.getName())) {
-                            File dir = getDir("offline_music", Context.MODE_PRIVATE);
-                            localCover = new File(dir, "cover_" + pl.getName().replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg");
-                            break;
-                        }
-                    }
-                    if(localCover != null && localCover.exists()) break;
-                }
+                coverPath = offlineDB.getServerPathForLocalFile(item.getPath());
+                OfflineDB.LocalSong song = offlineDB.findLocalSong(item.getPath(), item.getName(), item.getArtist());
+                if (song != null) playlistName = song.playlist;
             }
+        } else if (item.getPath().startsWith("content://")) {
+            localUri = item.getPath();
         } else {
-            try { artUrl = Config.SERVER_URL + "/cover?username=" + currentUsername + "&path=" + URLEncoder.encode(item.getPath(), "UTF-8"); } catch (Exception e) {}
+            coverPath = item.getPath();
         }
 
-        final Bitmap defaultIcon = BitmapFactory.decodeResource(getResources(), R.mipmap.ic_launcher);
-        final File finalLocalCover = localCover;
-
-        Glide.with(this)
-                .asBitmap()
-                .load(artUrl)
-                .error(Glide.with(this).asBitmap().load(finalLocalCover)) 
-                .placeholder(R.mipmap.ic_launcher)
-                .into(new CustomTarget<Bitmap>() {
-                    @Override
-                    public void onResourceReady(@NonNull Bitmap resource, @Nullable Transition<? super Bitmap> transition) {
-                        renderNotification(item, resource);
-                    }
-                    @Override public void onLoadCleared(@Nullable android.graphics.drawable.Drawable placeholder) {}
-                    @Override
-                    public void onLoadFailed(@Nullable android.graphics.drawable.Drawable errorDrawable) {
-                        renderNotification(item, defaultIcon);
-                    }
-                });
+        ArtworkRepository.Request request = new ArtworkRepository.Request(localUri, coverPath, playlistName, currentUsername);
+        ArtworkRepository.get(this).load(request, NOTIFICATION_ART_SIZE, bitmap -> {
+            if (bitmap == null) bitmap = BitmapFactory.decodeResource(getResources(), R.mipmap.ic_launcher);
+            renderNotification(item, bitmap);
+        });
     }
 
     private void renderNotification(MusicItem item, Bitmap largeIcon) {
@@ -717,61 +1030,25 @@ public class MusicService extends Service implements AudioManager.OnAudioFocusCh
     @Override public void onDestroy() {
         super.onDestroy();
         try { unregisterReceiver(bluetoothReceiver); } catch (Exception e) {}
+        try { unregisterReceiver(networkReceiver); } catch (Exception e) {}
+        if (prefetchScheduler != null) prefetchScheduler.shutdown();
+        progressHandler.removeCallbacks(progressTick);
 
         saveState();
         if (mediaPlayer != null) { mediaPlayer.release(); mediaPlayer = null; }
+        if (nextPlayer != null) { nextPlayer.release(); nextPlayer = null; }
+        if (streamProxy != null) streamProxy.stop();
+        android.util.Log.d("Artwork", ArtworkRepository.get(this).getStats());
+        android.util.Log.d("HttpStack", HttpStack.getStats());
         if (mediaSession != null) { mediaSession.release(); }
         if (tempFile != null && tempFile.exists()) { tempFile.delete(); }
     }
 
-    public static void syncHistory(Context context) {
-        final OfflineDB db = new OfflineDB(context);
-        final List<JSONObject> unsynced = db.getUnsyncedPlays();
-        if (unsynced.isEmpty()) return;
-
-        new Thread(() -> {
-            try {
-                SessionManager session = new SessionManager(context);
-                if (!session.isWrappedEnabled()) return;
-
-                JSONObject json = new JSONObject();
-                json.put("username", session.getUsername());
-
-                JSONArray plays = new JSONArray();
-                List<Integer> idsToMark = new ArrayList<>();
-
-                for (JSONObject p : unsynced) {
-                    plays.put(p);
-                    idsToMark.add(p.getInt("id"));
-                }
-                json.put("plays", plays);
-
-                OkHttpClient client = new OkHttpClient();
-                okhttp3.RequestBody body = okhttp3.RequestBody.create(
-                        okhttp3.MediaType.parse("application/json; charset=utf-8"),
-                        json.toString()
-                );
-
-                Request request = new Request.Builder()
-                        .url(Config.SERVER_URL + "/stats/sync")
-                        .header("x-secret-key", Config.API_SECRET_KEY)
-                        .post(body)
-                        .build();
-
-                try (Response response = client.newCall(request).execute()) {
-                    if (response.isSuccessful()) {
-                        db.markAsSynced(idsToMark);
-                    }
-                }
-
-            } catch (Exception e) { e.printStackTrace(); }
-        }).start();
-    }
-
     private boolean isShuffle = false;
 
     public void toggleShuffle() {
         this.isShuffle = !this.isShuffle;
+        if (nextIndex != -1) prepareNextPlayer();
     }
 
     public boolean isShuffleEnabled() {
@@ -18,6 +18,9 @@ public class MyApplication extends MultiDexApplication {
         
         AppCompatDelegate.setCompatVectorFromResourcesEnabled(true);
 
+        // Reprèn les descàrregues que havien quedat a mitges en un procés anterior
+        DownloadScheduler.get(this).start();
+
         
         final Thread.UncaughtExceptionHandler defaultHandler = Thread.getDefaultUncaughtExceptionHandler();
 
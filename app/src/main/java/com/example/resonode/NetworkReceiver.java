@@ -34,4 +34,13 @@ public class NetworkReceiver extends BroadcastReceiver {
             return false;
         }
     }
-}
\ No newline at end of file
+
+    public static boolean isMetered(Context context) {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            return cm.isActiveNetworkMetered();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+}
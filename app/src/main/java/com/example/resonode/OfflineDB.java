@@ -6,17 +6,28 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import androidx.annotation.VisibleForTesting;
+
 import org.json.JSONObject;
 import org.json.JSONArray;
 
+import java.io.File;
+import java.text.Normalizer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 public class OfflineDB extends SQLiteOpenHelper {
 
-    private static final int DATABASE_VERSION = 3;
-    private static final String DATABASE_NAME = "offline.db";
+    private static final int DATABASE_VERSION = 12;
+    static final String DATABASE_NAME = "offline.db";
 
+    // Des de la v8 "songs" és una vista de només lectura sobre l'esquema normalitzat (vegeu createSchema)
     private static final String TABLE_SONGS = "songs";
     private static final String KEY_ID = "id";
     private static final String KEY_SERVER_PATH = "server_path";
@@ -24,26 +35,171 @@ public class OfflineDB extends SQLiteOpenHelper {
     private static final String KEY_PLAYLIST = "playlist_name";
     private static final String KEY_FILE_PATH = "file_path";
     private static final String KEY_ARTIST = "artist";
+    // Nom, artista i playlist normalitzats (minúscules, sense accents) per a l'índex FTS
+    private static final String KEY_SEARCH_TEXT = "search_text";
+
+    private static final String TABLE_SONGS_FTS = "songs_fts";
 
     private static final String TABLE_HISTORY = "playback_history";
     private static final String KEY_TIMESTAMP = "timestamp";
     private static final String KEY_DURATION = "duration";
     private static final String KEY_SYNCED = "synced";
+    // Clau d'idempotència del lot de pujada al qual s'ha assignat la reproducció
+    private static final String KEY_SYNC_BATCH = "sync_batch";
+
+    // Acumulats diaris de l'historial (dia = timestamp / 86400, en UTC) per al Wrapped local
+    private static final String TABLE_STATS_DAILY = "stats_daily";
+    private static final String TABLE_STATS_TRACKS = "stats_daily_tracks";
+    private static final String TABLE_STATS_ARTISTS = "stats_daily_artists";
+    private static final String KEY_DAY = "day";
+    // Blocs de 30 dies per als tops de mes i any: unes 13 files per cançó l'any en lloc de 365
+    private static final String TABLE_STATS_MONTHLY_TRACKS = "stats_monthly_tracks";
+    private static final String TABLE_STATS_MONTHLY_ARTISTS = "stats_monthly_artists";
+    private static final String KEY_MONTH = "month";
+    private static final int DAYS_PER_MONTH = 30;
+    private static final String KEY_PLAYS = "plays";
+    private static final String KEY_SECONDS = "seconds";
+
+    // Cua persistent de descàrregues: una fila per cançó de cada playlist
+    private static final String TABLE_DOWNLOADS = "download_jobs";
+    private static final String KEY_USERNAME = "username";
+    private static final String KEY_STATE = "state";
+    private static final String KEY_ATTEMPTS = "attempts";
+    private static final String KEY_UPDATED_AT = "updated_at";
+
+    public static final String STATE_QUEUED = "queued";
+    public static final String STATE_RUNNING = "running";
+    public static final String STATE_DONE = "done";
+    public static final String STATE_FAILED = "failed";
+
+    // Esquema normalitzat: una fila per cançó del servidor (tracks), per playlist (playlists),
+    // per pertinença (playlist_tracks) i per fitxer d'àudio a disc (files)
+    private static final String TABLE_TRACKS = "tracks";
+    private static final String TABLE_PLAYLISTS = "playlists";
+    private static final String TABLE_PLAYLIST_TRACKS = "playlist_tracks";
+    private static final String KEY_PLAYLIST_ID = "playlist_id";
+    private static final String KEY_TRACK_ID = "track_id";
+    private static final String KEY_FILE_HASH = "file_hash";
+
+    // Magatzem per contingut: cada àudio es guarda una sola vegada (blobs/<hash>.mp3) i les
+    // cançons hi apunten amb file_hash. Els triggers porten el recompte de referències.
+    private static final String TABLE_FILES = "files";
+    private static final String KEY_HASH = "hash";
+    private static final String KEY_BLOB_HASH = "blob_hash";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_REFCOUNT = "refcount";
+    private static final Object blobLock = new Object();
+
+    // Quota: last_played per a l'ordre LRU, i playlists fixades que mai s'alliberen soles
+    private static final String KEY_LAST_PLAYED = "last_played";
+    private static final String KEY_PINNED = "pinned";
+    // Carpeta del servidor de la playlist descarregada, contra la qual es sincronitza
+    private static final String KEY_SERVER_FOLDER = "server_folder";
+
+    // Taules de les versions 6 i 7, només per a les migracions
+    private static final String LEGACY_TABLE_BLOBS = "blobs";
+    private static final String LEGACY_TABLE_OFFLINE_PLAYLISTS = "offline_playlists";
+
+    public static class LocalSong {
+        public final String serverPath;
+        public final String name;
+        public final String playlist;
+        public final String filePath;
+        public final String artist;
+
+        LocalSong(String serverPath, String name, String playlist, String filePath, String artist) {
+            this.serverPath = serverPath;
+            this.name = name;
+            this.playlist = playlist;
+            this.filePath = filePath;
+            this.artist = artist;
+        }
+    }
+
+    public static class Blob {
+        public final String hash;
+        public final String filePath;
+
+        Blob(String hash, String filePath) {
+            this.hash = hash;
+            this.filePath = filePath;
+        }
+    }
+
+    public static class DownloadJob {
+        public long id;
+        public final String playlist;
+        public final String serverPath;
+        public final String name;
+        public final String artist;
+        public final String filePath;
+        public final String username;
+        public int attempts;
 
-    public OfflineDB(Context context) {
+        public DownloadJob(String playlist, String serverPath, String name, String artist, String filePath, String username) {
+            this.playlist = playlist;
+            this.serverPath = serverPath;
+            this.name = name;
+            this.artist = artist;
+            this.filePath = filePath;
+            this.username = username;
+        }
+    }
+
+    // Índex en memòria compartit per totes les instàncies; es reconstrueix quan canvia la taula songs
+    private static final Object indexLock = new Object();
+    // Cada clau guarda totes les files que hi coincideixen (en ordre d'id), no només la primera
+    private static Map<String, List<LocalSong>> byServerPath;
+    private static Map<String, List<LocalSong>> byFilePath;
+    private static Map<String, List<LocalSong>> byName;
+
+    private static OfflineDB instance;
+
+    /**
+     * Una sola connexió per a tota l'app. Amb WAL els lectors (cerca, llistes) no esperen
+     * els escriptors (descàrregues, historial), i no cal tancar-la mai.
+     */
+    public static synchronized OfflineDB get(Context context) {
+        if (instance == null) instance = new OfflineDB(context.getApplicationContext());
+        return instance;
+    }
+
+    private OfflineDB(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /** Només per als tests: tanca la connexió perquè el pròxim get() torni a obrir (i migrar) el fitxer. */
+    @VisibleForTesting
+    static synchronized void resetForTests() {
+        if (instance != null) instance.close();
+        instance = null;
+        invalidateIndex();
+    }
+
+    /**
+     * Executa el lot d'escriptures en una sola transacció; si ja n'hi ha una d'oberta s'hi afegeix.
+     * Agafa blobLock abans d'obrir-la, com el GC, la quota i saveSongWithBlob: qui l'agafi no ha de
+     * tenir cap altre lock, o es podria creuar amb el monitor del SQLiteOpenHelper.
+     */
+    public void inTransaction(Runnable batch) {
+        synchronized (blobLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                batch.run();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String CREATE_SONGS_TABLE = "CREATE TABLE " + TABLE_SONGS + "("
-                + KEY_ID + " INTEGER PRIMARY KEY,"
-                + KEY_SERVER_PATH + " TEXT,"
-                + KEY_NAME + " TEXT,"
-                + KEY_PLAYLIST + " TEXT,"
-                + KEY_FILE_PATH + " TEXT,"
-                + KEY_ARTIST + " TEXT" + ")";
-        db.execSQL(CREATE_SONGS_TABLE);
+        createSchema(db);
+        createSchemaViews(db);
+        addPlaylistFolderColumn(db);
 
         String CREATE_HISTORY_TABLE = "CREATE TABLE " + TABLE_HISTORY + "("
                 + KEY_ID + " INTEGER PRIMARY KEY,"
@@ -51,34 +207,738 @@ public class OfflineDB extends SQLiteOpenHelper {
                 + KEY_NAME + " TEXT,"
                 + KEY_ARTIST + " TEXT,"
                 + KEY_DURATION + " INTEGER,"
-                + KEY_SYNCED + " INTEGER" + ")";
+                + KEY_SYNCED + " INTEGER,"
+                + KEY_SYNC_BATCH + " TEXT" + ")";
         db.execSQL(CREATE_HISTORY_TABLE);
+        createHistoryIndexes(db);
+        createSyncBatchIndex(db);
+        createStatsRollups(db);
+        createMonthlyRollups(db);
+        createStatsTrigger(db);
+        createDownloadsTable(db);
+    }
+
+    /**
+     * Esquema de la v8. Una cançó del servidor és una sola fila de tracks encara que sigui a
+     * diverses playlists; el fitxer (files) es comparteix per hash. Les importades del mòbil no
+     * tenen fitxer propi: la seva uri content:// és alhora server_path i ruta de reproducció.
+     */
+    private static void createSchema(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FILES + "("
+                + KEY_HASH + " TEXT PRIMARY KEY,"
+                + KEY_FILE_PATH + " TEXT,"
+                + KEY_SIZE + " INTEGER,"
+                + KEY_REFCOUNT + " INTEGER DEFAULT 0,"
+                + KEY_LAST_PLAYED + " INTEGER DEFAULT 0" + ")");
+        db.execSQL("CREATE INDEX files_path ON " + TABLE_FILES + "(" + KEY_FILE_PATH + ")");
+        db.execSQL("CREATE INDEX files_last_played ON " + TABLE_FILES + "(" + KEY_LAST_PLAYED + ")");
+
+        db.execSQL("CREATE TABLE " + TABLE_PLAYLISTS + "("
+                + KEY_ID + " INTEGER PRIMARY KEY,"
+                + KEY_NAME + " TEXT NOT NULL UNIQUE,"
+                + KEY_PINNED + " INTEGER DEFAULT 1" + ")");
+
+        db.execSQL("CREATE TABLE " + TABLE_TRACKS + "("
+                + KEY_ID + " INTEGER PRIMARY KEY,"
+                + KEY_SERVER_PATH + " TEXT NOT NULL UNIQUE,"
+                + KEY_NAME + " TEXT,"
+                + KEY_ARTIST + " TEXT,"
+                + KEY_FILE_HASH + " TEXT" + ")");
+        db.execSQL("CREATE INDEX tracks_name ON " + TABLE_TRACKS + "(" + KEY_NAME + ")");
+        db.execSQL("CREATE INDEX tracks_file ON " + TABLE_TRACKS + "(" + KEY_FILE_HASH + ")");
+
+        // search_text és per pertinença perquè inclou el nom de la playlist
+        db.execSQL("CREATE TABLE " + TABLE_PLAYLIST_TRACKS + "("
+                + KEY_ID + " INTEGER PRIMARY KEY,"
+                + KEY_PLAYLIST_ID + " INTEGER NOT NULL,"
+                + KEY_TRACK_ID + " INTEGER NOT NULL,"
+                + KEY_SEARCH_TEXT + " TEXT,"
+                + "UNIQUE(" + KEY_PLAYLIST_ID + ", " + KEY_TRACK_ID + "))");
+        db.execSQL("CREATE INDEX playlist_tracks_track ON " + TABLE_PLAYLIST_TRACKS + "(" + KEY_TRACK_ID + ")");
+    }
+
+    /**
+     * La vista songs conserva la forma de l'antiga taula (id és el de playlist_tracks), i els triggers
+     * mantenen el recompte de referències de files, l'índex FTS i treuen les tracks que queden òrfenes.
+     */
+    private static void createSchemaViews(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + TABLE_SONGS + " AS SELECT pt." + KEY_ID + " AS " + KEY_ID
+                + ", t." + KEY_SERVER_PATH + " AS " + KEY_SERVER_PATH
+                + ", t." + KEY_NAME + " AS " + KEY_NAME
+                + ", p." + KEY_NAME + " AS " + KEY_PLAYLIST
+                + ", IFNULL(f." + KEY_FILE_PATH + ", t." + KEY_SERVER_PATH + ") AS " + KEY_FILE_PATH
+                + ", t." + KEY_ARTIST + " AS " + KEY_ARTIST
+                + ", pt." + KEY_SEARCH_TEXT + " AS " + KEY_SEARCH_TEXT
+                + ", t." + KEY_FILE_HASH + " AS " + KEY_BLOB_HASH
+                + " FROM " + TABLE_PLAYLIST_TRACKS + " pt"
+                + " JOIN " + TABLE_TRACKS + " t ON t." + KEY_ID + " = pt." + KEY_TRACK_ID
+                + " JOIN " + TABLE_PLAYLISTS + " p ON p." + KEY_ID + " = pt." + KEY_PLAYLIST_ID
+                + " LEFT JOIN " + TABLE_FILES + " f ON f." + KEY_HASH + " = t." + KEY_FILE_HASH);
+
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_SONGS_FTS + " USING fts4(" + KEY_SEARCH_TEXT + ")");
+        String fileOf = "(SELECT " + KEY_FILE_HASH + " FROM " + TABLE_TRACKS + " WHERE " + KEY_ID + " = ";
+        db.execSQL("CREATE TRIGGER playlist_tracks_ai AFTER INSERT ON " + TABLE_PLAYLIST_TRACKS + " BEGIN "
+                + "UPDATE " + TABLE_FILES + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " + 1 WHERE " + KEY_HASH + " = " + fileOf + "new." + KEY_TRACK_ID + "); "
+                + "INSERT INTO " + TABLE_SONGS_FTS + "(docid, " + KEY_SEARCH_TEXT + ") VALUES (new." + KEY_ID + ", new." + KEY_SEARCH_TEXT + "); END");
+        db.execSQL("CREATE TRIGGER playlist_tracks_ad AFTER DELETE ON " + TABLE_PLAYLIST_TRACKS + " BEGIN "
+                + "UPDATE " + TABLE_FILES + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " - 1 WHERE " + KEY_HASH + " = " + fileOf + "old." + KEY_TRACK_ID + "); "
+                + "DELETE FROM " + TABLE_SONGS_FTS + " WHERE docid = old." + KEY_ID + "; "
+                + "DELETE FROM " + TABLE_TRACKS + " WHERE " + KEY_ID + " = old." + KEY_TRACK_ID
+                + " AND NOT EXISTS (SELECT 1 FROM " + TABLE_PLAYLIST_TRACKS + " WHERE " + KEY_TRACK_ID + " = old." + KEY_TRACK_ID + "); END");
+        db.execSQL("CREATE TRIGGER playlist_tracks_au AFTER UPDATE OF " + KEY_SEARCH_TEXT + " ON " + TABLE_PLAYLIST_TRACKS + " BEGIN "
+                + "DELETE FROM " + TABLE_SONGS_FTS + " WHERE docid = old." + KEY_ID + "; "
+                + "INSERT INTO " + TABLE_SONGS_FTS + "(docid, " + KEY_SEARCH_TEXT + ") VALUES (new." + KEY_ID + ", new." + KEY_SEARCH_TEXT + "); END");
+        // Una track que passa a un altre fitxer s'emporta les seves referències
+        String uses = "(SELECT COUNT(*) FROM " + TABLE_PLAYLIST_TRACKS + " WHERE " + KEY_TRACK_ID + " = new." + KEY_ID + ")";
+        db.execSQL("CREATE TRIGGER tracks_file_au AFTER UPDATE OF " + KEY_FILE_HASH + " ON " + TABLE_TRACKS
+                + " WHEN old." + KEY_FILE_HASH + " IS NOT new." + KEY_FILE_HASH + " BEGIN "
+                + "UPDATE " + TABLE_FILES + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " - " + uses + " WHERE " + KEY_HASH + " = old." + KEY_FILE_HASH + "; "
+                + "UPDATE " + TABLE_FILES + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " + " + uses + " WHERE " + KEY_HASH + " = new." + KEY_FILE_HASH + "; END");
+    }
+
+    /** Acumulats per dia, per dia i cançó i per dia i artista (v10). */
+    private static void createStatsRollups(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_STATS_DAILY + "("
+                + KEY_DAY + " INTEGER PRIMARY KEY,"
+                + KEY_PLAYS + " INTEGER NOT NULL DEFAULT 0,"
+                + KEY_SECONDS + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE " + TABLE_STATS_TRACKS + "("
+                + KEY_DAY + " INTEGER NOT NULL,"
+                + KEY_NAME + " TEXT NOT NULL,"
+                + KEY_PLAYS + " INTEGER NOT NULL DEFAULT 0,"
+                + KEY_SECONDS + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY(" + KEY_DAY + ", " + KEY_NAME + "))");
+        db.execSQL("CREATE TABLE " + TABLE_STATS_ARTISTS + "("
+                + KEY_DAY + " INTEGER NOT NULL,"
+                + KEY_ARTIST + " TEXT NOT NULL,"
+                + KEY_PLAYS + " INTEGER NOT NULL DEFAULT 0,"
+                + KEY_SECONDS + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY(" + KEY_DAY + ", " + KEY_ARTIST + "))");
+    }
+
+    /** Els mateixos acumulats per cançó i per artista, en blocs de DAYS_PER_MONTH dies (v12). */
+    private static void createMonthlyRollups(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_STATS_MONTHLY_TRACKS + "("
+                + KEY_MONTH + " INTEGER NOT NULL,"
+                + KEY_NAME + " TEXT NOT NULL,"
+                + KEY_PLAYS + " INTEGER NOT NULL DEFAULT 0,"
+                + KEY_SECONDS + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY(" + KEY_MONTH + ", " + KEY_NAME + "))");
+        db.execSQL("CREATE TABLE " + TABLE_STATS_MONTHLY_ARTISTS + "("
+                + KEY_MONTH + " INTEGER NOT NULL,"
+                + KEY_ARTIST + " TEXT NOT NULL,"
+                + KEY_PLAYS + " INTEGER NOT NULL DEFAULT 0,"
+                + KEY_SECONDS + " INTEGER NOT NULL DEFAULT 0,"
+                + "PRIMARY KEY(" + KEY_MONTH + ", " + KEY_ARTIST + "))");
+    }
+
+    /**
+     * El trigger actualitza tots els acumulats dins la mateixa sentència (i per tant la mateixa
+     * transacció) que l'INSERT de logPlay, de manera que getLocalStats no ha de recórrer l'historial.
+     */
+    private static void createStatsTrigger(SQLiteDatabase db) {
+        String day = "new." + KEY_TIMESTAMP + " / 86400";
+        String month = "new." + KEY_TIMESTAMP + " / " + (86400 * DAYS_PER_MONTH);
+        String name = "IFNULL(new." + KEY_NAME + ", '')";
+        String artist = "IFNULL(new." + KEY_ARTIST + ", '')";
+        String add = " SET " + KEY_PLAYS + " = " + KEY_PLAYS + " + 1, " + KEY_SECONDS + " = " + KEY_SECONDS
+                + " + IFNULL(new." + KEY_DURATION + ", 0) WHERE ";
+        String addDay = add + KEY_DAY + " = " + day;
+        String addMonth = add + KEY_MONTH + " = " + month;
+        db.execSQL("DROP TRIGGER IF EXISTS playback_history_ai");
+        db.execSQL("CREATE TRIGGER playback_history_ai AFTER INSERT ON " + TABLE_HISTORY + " BEGIN "
+                + "INSERT OR IGNORE INTO " + TABLE_STATS_DAILY + "(" + KEY_DAY + ") VALUES (" + day + "); "
+                + "UPDATE " + TABLE_STATS_DAILY + addDay + "; "
+                + "INSERT OR IGNORE INTO " + TABLE_STATS_TRACKS + "(" + KEY_DAY + ", " + KEY_NAME + ") VALUES (" + day + ", " + name + "); "
+                + "UPDATE " + TABLE_STATS_TRACKS + addDay + " AND " + KEY_NAME + " = " + name + "; "
+                + "INSERT OR IGNORE INTO " + TABLE_STATS_ARTISTS + "(" + KEY_DAY + ", " + KEY_ARTIST + ") VALUES (" + day + ", " + artist + "); "
+                + "UPDATE " + TABLE_STATS_ARTISTS + addDay + " AND " + KEY_ARTIST + " = " + artist + "; "
+                + "INSERT OR IGNORE INTO " + TABLE_STATS_MONTHLY_TRACKS + "(" + KEY_MONTH + ", " + KEY_NAME + ") VALUES (" + month + ", " + name + "); "
+                + "UPDATE " + TABLE_STATS_MONTHLY_TRACKS + addMonth + " AND " + KEY_NAME + " = " + name + "; "
+                + "INSERT OR IGNORE INTO " + TABLE_STATS_MONTHLY_ARTISTS + "(" + KEY_MONTH + ", " + KEY_ARTIST + ") VALUES (" + month + ", " + artist + "); "
+                + "UPDATE " + TABLE_STATS_MONTHLY_ARTISTS + addMonth + " AND " + KEY_ARTIST + " = " + artist + "; END");
+    }
+
+    /** Torna a calcular els acumulats a partir de tot l'historial (migració o reparació). */
+    private static void rebuildStatsRollups(SQLiteDatabase db) {
+        db.delete(TABLE_STATS_DAILY, null, null);
+        db.delete(TABLE_STATS_TRACKS, null, null);
+        db.delete(TABLE_STATS_ARTISTS, null, null);
+        String day = KEY_TIMESTAMP + " / 86400";
+        String totals = "COUNT(*), IFNULL(SUM(" + KEY_DURATION + "), 0) FROM " + TABLE_HISTORY;
+        db.execSQL("INSERT INTO " + TABLE_STATS_DAILY + " SELECT " + day + ", " + totals + " GROUP BY 1");
+        db.execSQL("INSERT INTO " + TABLE_STATS_TRACKS + " SELECT " + day + ", IFNULL(" + KEY_NAME + ", ''), " + totals + " GROUP BY 1, 2");
+        db.execSQL("INSERT INTO " + TABLE_STATS_ARTISTS + " SELECT " + day + ", IFNULL(" + KEY_ARTIST + ", ''), " + totals + " GROUP BY 1, 2");
+
+        db.delete(TABLE_STATS_MONTHLY_TRACKS, null, null);
+        db.delete(TABLE_STATS_MONTHLY_ARTISTS, null, null);
+        String month = KEY_DAY + " / " + DAYS_PER_MONTH;
+        String sums = "SUM(" + KEY_PLAYS + "), SUM(" + KEY_SECONDS + ") FROM ";
+        db.execSQL("INSERT INTO " + TABLE_STATS_MONTHLY_TRACKS + " SELECT " + month + ", " + KEY_NAME + ", " + sums + TABLE_STATS_TRACKS + " GROUP BY 1, 2");
+        db.execSQL("INSERT INTO " + TABLE_STATS_MONTHLY_ARTISTS + " SELECT " + month + ", " + KEY_ARTIST + ", " + sums + TABLE_STATS_ARTISTS + " GROUP BY 1, 2");
+    }
+
+    public void rebuildStatsRollups() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            rebuildStatsRollups(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void createSyncBatchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS playback_history_batch ON " + TABLE_HISTORY + "(" + KEY_SYNC_BATCH + ")");
+    }
+
+    private static void createHistoryIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS playback_history_synced ON " + TABLE_HISTORY + "(" + KEY_SYNCED + ")");
+        db.execSQL("CREATE INDEX IF NOT EXISTS playback_history_timestamp ON " + TABLE_HISTORY + "(" + KEY_TIMESTAMP + ")");
+    }
+
+    private static void createDownloadsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_DOWNLOADS + "("
+                + KEY_ID + " INTEGER PRIMARY KEY,"
+                + KEY_PLAYLIST + " TEXT,"
+                + KEY_SERVER_PATH + " TEXT,"
+                + KEY_NAME + " TEXT,"
+                + KEY_ARTIST + " TEXT,"
+                + KEY_FILE_PATH + " TEXT,"
+                + KEY_USERNAME + " TEXT,"
+                + KEY_STATE + " TEXT,"
+                + KEY_ATTEMPTS + " INTEGER DEFAULT 0,"
+                + KEY_UPDATED_AT + " INTEGER,"
+                + "UNIQUE(" + KEY_PLAYLIST + ", " + KEY_SERVER_PATH + "))");
+        db.execSQL("CREATE INDEX download_jobs_state ON " + TABLE_DOWNLOADS + "(" + KEY_STATE + ")");
     }
 
     public void removeLocalSong(String songPath, String playlistName) {
         android.database.sqlite.SQLiteDatabase db = this.getWritableDatabase();
-        db.delete(TABLE_SONGS, KEY_SERVER_PATH + " = ? AND " + KEY_PLAYLIST + " = ?", new String[]{songPath, playlistName});
-        db.close();
+        deleteEntries(db, KEY_SERVER_PATH + " = ? AND " + KEY_PLAYLIST + " = ?", new String[]{songPath, playlistName});
+        invalidateIndex();
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
-        db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
-        onCreate(db);
+        if (oldVersion < 3) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_HISTORY);
+            onCreate(db);
+            return;
+        }
+        // Cada pas parteix de l'esquema de la versió anterior; fins a la v7 "songs" encara és una taula
+        // i l'índex FTS no cal crear-lo fins a la v8, que el refà sencer
+        if (oldVersion < 4) {
+            db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + KEY_SEARCH_TEXT + " TEXT");
+            backfillSearchText(db);
+        }
+        if (oldVersion < 5) {
+            createDownloadsTable(db);
+        }
+        if (oldVersion < 6) {
+            db.execSQL("ALTER TABLE " + TABLE_SONGS + " ADD COLUMN " + KEY_BLOB_HASH + " TEXT");
+            createBlobStore(db);
+            adoptLegacyFiles(db);
+        }
+        if (oldVersion < 7) {
+            createQuotaTables(db);
+        }
+        if (oldVersion < 8) {
+            migrateToNormalizedSchema(db);
+        }
+        if (oldVersion < 9) {
+            db.execSQL("ALTER TABLE " + TABLE_HISTORY + " ADD COLUMN " + KEY_SYNC_BATCH + " TEXT");
+            createSyncBatchIndex(db);
+        }
+        if (oldVersion < 10) {
+            createStatsRollups(db);
+        }
+        if (oldVersion < 11) {
+            addPlaylistFolderColumn(db);
+            backfillPlaylistFolders(db);
+        }
+        if (oldVersion < 12) {
+            createMonthlyRollups(db);
+            createStatsTrigger(db);
+            rebuildStatsRollups(db);
+        }
+    }
+
+    /**
+     * v7 -> v8: copia songs/blobs/offline_playlists a l'esquema normalitzat conservant els id de
+     * songs, i llavors substitueix la taula songs per la vista. Si una ruta del servidor tenia
+     * fitxers diferents a cada playlist es queda el primer amb blob; els altres queden sense
+     * referències i se'n van al pròxim collectGarbage.
+     */
+    private static void migrateToNormalizedSchema(SQLiteDatabase db) {
+        createSchema(db);
+        db.execSQL("INSERT INTO " + TABLE_FILES + "(" + KEY_HASH + ", " + KEY_FILE_PATH + ", " + KEY_SIZE + ", " + KEY_LAST_PLAYED + ")"
+                + " SELECT " + KEY_HASH + ", " + KEY_FILE_PATH + ", " + KEY_SIZE + ", " + KEY_LAST_PLAYED + " FROM " + LEGACY_TABLE_BLOBS);
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_PLAYLISTS + "(" + KEY_NAME + ", " + KEY_PINNED + ")"
+                + " SELECT " + KEY_PLAYLIST + ", " + KEY_PINNED + " FROM " + LEGACY_TABLE_OFFLINE_PLAYLISTS);
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_PLAYLISTS + "(" + KEY_NAME + ")"
+                + " SELECT DISTINCT " + KEY_PLAYLIST + " FROM " + TABLE_SONGS + " WHERE " + KEY_PLAYLIST + " IS NOT NULL");
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_TRACKS + "(" + KEY_SERVER_PATH + ", " + KEY_NAME + ", " + KEY_ARTIST + ", " + KEY_FILE_HASH + ")"
+                + " SELECT " + KEY_SERVER_PATH + ", " + KEY_NAME + ", " + KEY_ARTIST + ", " + KEY_BLOB_HASH + " FROM " + TABLE_SONGS
+                + " WHERE " + KEY_SERVER_PATH + " IS NOT NULL ORDER BY " + KEY_BLOB_HASH + " IS NULL, " + KEY_ID);
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_PLAYLIST_TRACKS + "(" + KEY_ID + ", " + KEY_PLAYLIST_ID + ", " + KEY_TRACK_ID + ", " + KEY_SEARCH_TEXT + ")"
+                + " SELECT s." + KEY_ID + ", p." + KEY_ID + ", t." + KEY_ID + ", s." + KEY_SEARCH_TEXT + " FROM " + TABLE_SONGS + " s"
+                + " JOIN " + TABLE_PLAYLISTS + " p ON p." + KEY_NAME + " = s." + KEY_PLAYLIST
+                + " JOIN " + TABLE_TRACKS + " t ON t." + KEY_SERVER_PATH + " = s." + KEY_SERVER_PATH + " ORDER BY s." + KEY_ID);
+
+        // Amb la taula songs se'n van els seus triggers i índexs
+        db.execSQL("DROP TABLE " + TABLE_SONGS);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_SONGS_FTS);
+        db.execSQL("DROP TABLE " + LEGACY_TABLE_BLOBS);
+        db.execSQL("DROP TABLE " + LEGACY_TABLE_OFFLINE_PLAYLISTS);
+        createSchemaViews(db);
+
+        db.execSQL("INSERT INTO " + TABLE_SONGS_FTS + "(docid, " + KEY_SEARCH_TEXT + ") SELECT " + KEY_ID + ", " + KEY_SEARCH_TEXT
+                + " FROM " + TABLE_PLAYLIST_TRACKS);
+        db.execSQL("UPDATE " + TABLE_FILES + " SET " + KEY_REFCOUNT + " = (SELECT COUNT(*) FROM " + TABLE_PLAYLIST_TRACKS + " pt JOIN "
+                + TABLE_TRACKS + " t ON t." + KEY_ID + " = pt." + KEY_TRACK_ID + " WHERE t." + KEY_FILE_HASH + " = " + TABLE_FILES + "." + KEY_HASH + ")");
+        createHistoryIndexes(db);
+    }
+
+    /** v7: les playlists que ja hi havia es van baixar explícitament, queden fixades. */
+    private static void createQuotaTables(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + LEGACY_TABLE_BLOBS + " ADD COLUMN " + KEY_LAST_PLAYED + " INTEGER DEFAULT 0");
+        db.execSQL("CREATE TABLE " + LEGACY_TABLE_OFFLINE_PLAYLISTS + "("
+                + KEY_PLAYLIST + " TEXT PRIMARY KEY,"
+                + KEY_PINNED + " INTEGER DEFAULT 1" + ")");
+        db.execSQL("INSERT OR IGNORE INTO " + LEGACY_TABLE_OFFLINE_PLAYLISTS + "(" + KEY_PLAYLIST + ") SELECT DISTINCT "
+                + KEY_PLAYLIST + " FROM " + TABLE_SONGS + " WHERE " + KEY_BLOB_HASH + " IS NOT NULL");
+    }
+
+    /** v6: taula blobs amb el recompte portat per triggers sobre la taula songs. */
+    private static void createBlobStore(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + LEGACY_TABLE_BLOBS + "("
+                + KEY_HASH + " TEXT PRIMARY KEY,"
+                + KEY_FILE_PATH + " TEXT,"
+                + KEY_SIZE + " INTEGER,"
+                + KEY_REFCOUNT + " INTEGER DEFAULT 0" + ")");
+        db.execSQL("CREATE INDEX songs_blob ON " + TABLE_SONGS + "(" + KEY_BLOB_HASH + ")");
+        db.execSQL("CREATE TRIGGER songs_blob_ai AFTER INSERT ON " + TABLE_SONGS + " WHEN new." + KEY_BLOB_HASH + " IS NOT NULL BEGIN "
+                + "UPDATE " + LEGACY_TABLE_BLOBS + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " + 1 WHERE " + KEY_HASH + " = new." + KEY_BLOB_HASH + "; END");
+        db.execSQL("CREATE TRIGGER songs_blob_ad AFTER DELETE ON " + TABLE_SONGS + " WHEN old." + KEY_BLOB_HASH + " IS NOT NULL BEGIN "
+                + "UPDATE " + LEGACY_TABLE_BLOBS + " SET " + KEY_REFCOUNT + " = " + KEY_REFCOUNT + " - 1 WHERE " + KEY_HASH + " = old." + KEY_BLOB_HASH + "; END");
+    }
+
+    /**
+     * Els fitxers d'abans del magatzem es registren tal com són, amb una clau derivada de la ruta
+     * (no es llegeix l'àudio durant l'actualització). Així deixen d'esborrar-se si una altra playlist els fa servir.
+     */
+    private static void adoptLegacyFiles(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT DISTINCT " + KEY_FILE_PATH + " FROM " + TABLE_SONGS
+                + " WHERE " + KEY_FILE_PATH + " IS NOT NULL AND " + KEY_FILE_PATH + " NOT LIKE 'content://%'", null);
+        try {
+            while (cursor.moveToNext()) {
+                String filePath = cursor.getString(0);
+                String hash = "path-" + AudioCache.keyFor(filePath);
+                ContentValues blob = new ContentValues();
+                blob.put(KEY_HASH, hash);
+                blob.put(KEY_FILE_PATH, filePath);
+                blob.put(KEY_SIZE, new File(filePath).length());
+                db.insertWithOnConflict(LEGACY_TABLE_BLOBS, null, blob, SQLiteDatabase.CONFLICT_IGNORE);
+                ContentValues song = new ContentValues();
+                song.put(KEY_BLOB_HASH, hash);
+                db.update(TABLE_SONGS, song, KEY_FILE_PATH + " = ?", new String[]{filePath});
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("UPDATE " + LEGACY_TABLE_BLOBS + " SET " + KEY_REFCOUNT + " = (SELECT COUNT(*) FROM " + TABLE_SONGS
+                + " WHERE " + TABLE_SONGS + "." + KEY_BLOB_HASH + " = " + LEGACY_TABLE_BLOBS + "." + KEY_HASH + ")");
+    }
+
+    private static void backfillSearchText(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE_SONGS, new String[]{KEY_ID, KEY_NAME, KEY_ARTIST, KEY_PLAYLIST}, null, null, null, null, null);
+        try {
+            ContentValues values = new ContentValues();
+            while (cursor.moveToNext()) {
+                values.put(KEY_SEARCH_TEXT, searchText(cursor.getString(1), cursor.getString(2), cursor.getString(3)));
+                db.update(TABLE_SONGS, values, KEY_ID + " = ?", new String[]{String.valueOf(cursor.getLong(0))});
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Minúscules, sense diacrítics i amb la puntuació convertida en espais: "Cançó_01.mp3" -> "canco 01 mp3". */
+    static String normalize(String text) {
+        if (text == null) return "";
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}+", "");
+        return folded.toLowerCase(Locale.ROOT).replaceAll("[^\\p{L}\\p{N}]+", " ").trim();
+    }
+
+    /**
+     * Text de l'índex FTS (docid = playlist_tracks.id). Els accents es treuen a Java perquè
+     * el tokenizer unicode61 no existeix a l'SQLite d'Android 4.4.
+     */
+    private static String searchText(String name, String artist, String playlist) {
+        return normalize(name) + " " + normalize(artist) + " " + normalize(playlist);
     }
 
 
     public void saveSong(String serverPath, String name, String playlist, String filePath, String artist) {
         SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            // Un fitxer que no és la mateixa uri es registra a files perquè la vista el pugui tornar
+            String hash = null;
+            if (filePath != null && !filePath.equals(serverPath)) {
+                hash = "path-" + AudioCache.keyFor(filePath);
+                ContentValues file = new ContentValues();
+                file.put(KEY_HASH, hash);
+                file.put(KEY_FILE_PATH, filePath);
+                file.put(KEY_SIZE, new File(filePath).length());
+                db.insertWithOnConflict(TABLE_FILES, null, file, SQLiteDatabase.CONFLICT_IGNORE);
+            }
+            insertEntry(db, serverPath, name, playlist, artist, hash);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateIndex();
+    }
+
+    private static long playlistId(SQLiteDatabase db, String playlist) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_NAME, playlist);
+        db.insertWithOnConflict(TABLE_PLAYLISTS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        return longForQuery(db, "SELECT " + KEY_ID + " FROM " + TABLE_PLAYLISTS + " WHERE " + KEY_NAME + " = ?", playlist);
+    }
+
+    /** Crea o actualitza la track; un fileHash null li deixa el fitxer que ja tenia. */
+    private static long trackId(SQLiteDatabase db, String serverPath, String name, String artist, String fileHash) {
         ContentValues values = new ContentValues();
         values.put(KEY_SERVER_PATH, serverPath);
         values.put(KEY_NAME, name);
-        values.put(KEY_PLAYLIST, playlist);
-        values.put(KEY_FILE_PATH, filePath);
         values.put(KEY_ARTIST, artist);
-        db.insert(TABLE_SONGS, null, values);
-        db.close();
+        if (fileHash != null) values.put(KEY_FILE_HASH, fileHash);
+        if (db.insertWithOnConflict(TABLE_TRACKS, null, values, SQLiteDatabase.CONFLICT_IGNORE) == -1) {
+            values.remove(KEY_SERVER_PATH);
+            db.update(TABLE_TRACKS, values, KEY_SERVER_PATH + " = ?", new String[]{serverPath});
+        }
+        return longForQuery(db, "SELECT " + KEY_ID + " FROM " + TABLE_TRACKS + " WHERE " + KEY_SERVER_PATH + " = ?", serverPath);
+    }
+
+    private static void insertEntry(SQLiteDatabase db, String serverPath, String name, String playlist, String artist, String fileHash) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_PLAYLIST_ID, playlistId(db, playlist));
+        values.put(KEY_TRACK_ID, trackId(db, serverPath, name, artist, fileHash));
+        values.put(KEY_SEARCH_TEXT, searchText(name, artist, playlist));
+        db.insertWithOnConflict(TABLE_PLAYLIST_TRACKS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+    }
+
+    /** Esborra les pertinences que compleixen el filtre (escrit sobre les columnes de la vista songs). */
+    private static void deleteEntries(SQLiteDatabase db, String where, String[] args) {
+        db.delete(TABLE_PLAYLIST_TRACKS, KEY_ID + " IN (SELECT " + KEY_ID + " FROM " + TABLE_SONGS
+                + (where != null ? " WHERE " + where : "") + ")", args);
+    }
+
+    private static long longForQuery(SQLiteDatabase db, String sql, String arg) {
+        Cursor cursor = db.rawQuery(sql, new String[]{arg});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String stringForQuery(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Blob ja baixat per aquesta ruta del servidor (des d'una altra playlist), o null. */
+    public Blob findBlobForServerPath(String serverPath) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT f." + KEY_HASH + ", f." + KEY_FILE_PATH + " FROM " + TABLE_TRACKS + " t JOIN "
+                    + TABLE_FILES + " f ON f." + KEY_HASH + " = t." + KEY_FILE_HASH + " WHERE t." + KEY_SERVER_PATH + " = ?",
+                    new String[]{serverPath});
+            if (!cursor.moveToFirst()) return null;
+            Blob blob = new Blob(cursor.getString(0), cursor.getString(1));
+            return new File(blob.filePath).exists() ? blob : null;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /** Afegeix una cançó que reaprofita un blob existent. Retorna false si el blob ja no hi és. */
+    public boolean saveSongWithBlob(String serverPath, String name, String playlist, String artist, Blob blob) {
+        synchronized (blobLock) {
+            if (!new File(blob.filePath).exists()) return false;
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                insertEntry(db, serverPath, name, playlist, artist, blob.hash);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        invalidateIndex();
+        return true;
+    }
+
+    /**
+     * Porta un fitxer acabat de baixar al magatzem: si ja hi ha un blob amb el mateix contingut
+     * es descarta el nou, si no es mou a blobDir/<hash>.mp3. La cançó queda apuntant al blob.
+     */
+    public void saveDownloadedSong(String serverPath, String name, String playlist, String artist,
+                                   File staged, File blobDir, String hash) {
+        synchronized (blobLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                String filePath = null;
+                Cursor cursor = db.query(TABLE_FILES, new String[]{KEY_FILE_PATH}, KEY_HASH + " = ?", new String[]{hash}, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) filePath = cursor.getString(0);
+                } finally {
+                    cursor.close();
+                }
+
+                if (filePath != null && new File(filePath).exists()) {
+                    staged.delete();
+                } else {
+                    File target = new File(blobDir, hash + ".mp3");
+                    if (!blobDir.exists()) blobDir.mkdirs();
+                    if (!staged.getAbsolutePath().equals(target.getAbsolutePath())) {
+                        target.delete();
+                        if (!staged.renameTo(target)) throw new IllegalStateException("No s'ha pogut moure " + staged);
+                    }
+                    ContentValues blob = new ContentValues();
+                    blob.put(KEY_FILE_PATH, target.getAbsolutePath());
+                    blob.put(KEY_SIZE, target.length());
+                    // Acabat de baixar compta com a recent: no ha de ser el primer a marxar
+                    blob.put(KEY_LAST_PLAYED, System.currentTimeMillis());
+                    if (filePath == null) {
+                        blob.put(KEY_HASH, hash);
+                        blob.put(KEY_REFCOUNT, 0);
+                        db.insert(TABLE_FILES, null, blob);
+                    } else {
+                        db.update(TABLE_FILES, blob, KEY_HASH + " = ?", new String[]{hash});
+                    }
+                }
+
+                insertEntry(db, serverPath, name, playlist, artist, hash);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        invalidateIndex();
+    }
+
+    /** Esborra els blobs que ja no té cap cançó (fitxer i fila). Retorna els bytes alliberats. */
+    public long collectGarbage() {
+        long freed = 0;
+        synchronized (blobLock) {
+            SQLiteDatabase db = getWritableDatabase();
+            List<String> hashes = new ArrayList<>();
+            Cursor cursor = db.query(TABLE_FILES, new String[]{KEY_HASH, KEY_FILE_PATH, KEY_SIZE},
+                    KEY_REFCOUNT + " <= 0", null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    File f = new File(cursor.getString(1));
+                    if (f.exists() && f.delete()) freed += cursor.getLong(2);
+                    hashes.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            for (String hash : hashes) db.delete(TABLE_FILES, KEY_HASH + " = ?", new String[]{hash});
+        }
+        return freed;
+    }
+
+    /** Bytes que ens estalviem per no guardar més d'una còpia de cada blob. */
+    public long getDedupSavings() {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT SUM(" + KEY_SIZE + " * (" + KEY_REFCOUNT + " - 1)) FROM " + TABLE_FILES
+                    + " WHERE " + KEY_REFCOUNT + " > 1", null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /** Bytes ocupats per l'àudio offline, sense recórrer el disc. */
+    public long getStorageUsage() {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().rawQuery("SELECT SUM(" + KEY_SIZE + ") FROM " + TABLE_FILES, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /** MusicService ho crida en reproduir un fitxer offline. */
+    public void markFilePlayed(String filePath) {
+        try {
+            ContentValues values = new ContentValues();
+            values.put(KEY_LAST_PLAYED, System.currentTimeMillis());
+            getWritableDatabase().update(TABLE_FILES, values, KEY_FILE_PATH + " = ?", new String[]{filePath});
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Carpeta del servidor d'on es va baixar la playlist (v11); la fa servir la sincronització. */
+    private static void addPlaylistFolderColumn(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_PLAYLISTS + " ADD COLUMN " + KEY_SERVER_FOLDER + " TEXT");
+    }
+
+    /**
+     * v10 -> v11: abans la carpeta es deduïa de la primera cançó. Només es guarda quan totes les
+     * cançons de la playlist són a la mateixa carpeta; si no, no se sincronitza fins que es torni a baixar.
+     */
+    private static void backfillPlaylistFolders(SQLiteDatabase db) {
+        Map<String, String> folders = new HashMap<>();
+        Set<String> ambiguous = new HashSet<>();
+        Cursor cursor = db.rawQuery("SELECT " + KEY_PLAYLIST + ", " + KEY_SERVER_PATH + " FROM " + TABLE_SONGS, null);
+        try {
+            while (cursor.moveToNext()) {
+                String playlist = cursor.getString(0);
+                String path = cursor.getString(1);
+                if (playlist == null || path == null || path.startsWith("content://")) continue;
+                String folder = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : null;
+                String known = folders.get(playlist);
+                if (folder == null || (known != null && !known.equals(folder))) ambiguous.add(playlist);
+                else folders.put(playlist, folder);
+            }
+        } finally {
+            cursor.close();
+        }
+        for (Map.Entry<String, String> e : folders.entrySet()) {
+            if (ambiguous.contains(e.getKey())) continue;
+            ContentValues values = new ContentValues();
+            values.put(KEY_SERVER_FOLDER, e.getValue());
+            db.update(TABLE_PLAYLISTS, values, KEY_NAME + " = ?", new String[]{e.getKey()});
+        }
+    }
+
+    public void setPlaylistFolder(String playlistName, String serverFolder) {
+        SQLiteDatabase db = getWritableDatabase();
+        playlistId(db, playlistName);
+        ContentValues values = new ContentValues();
+        values.put(KEY_SERVER_FOLDER, serverFolder);
+        db.update(TABLE_PLAYLISTS, values, KEY_NAME + " = ?", new String[]{playlistName});
+    }
+
+    /** Carpeta del servidor amb què es va descarregar la playlist, o null si no consta. */
+    public String getPlaylistFolder(String playlistName) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_PLAYLISTS, new String[]{KEY_SERVER_FOLDER},
+                    KEY_NAME + " = ?", new String[]{playlistName}, null, null, null);
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } catch (Exception e) {
+            return null;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /** Sense fila (p. ex. cançons importades del dispositiu) es considera fixada. */
+    public boolean isPlaylistPinned(String playlistName) {
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE_PLAYLISTS, new String[]{KEY_PINNED},
+                    KEY_NAME + " = ?", new String[]{playlistName}, null, null, null);
+            return !cursor.moveToFirst() || cursor.getInt(0) != 0;
+        } catch (Exception e) {
+            return true;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    public void setPlaylistPinned(String playlistName, boolean pinned) {
+        // Sense REPLACE: canviaria l'id de la playlist i deixaria òrfenes les seves cançons
+        SQLiteDatabase db = getWritableDatabase();
+        playlistId(db, playlistName);
+        ContentValues values = new ContentValues();
+        values.put(KEY_PINNED, pinned ? 1 : 0);
+        db.update(TABLE_PLAYLISTS, values, KEY_NAME + " = ?", new String[]{playlistName});
+    }
+
+    /**
+     * Allibera els blobs menys escoltats fins a quedar dins del pressupost. Només es toquen els que
+     * no fa servir cap playlist fixada; se n'esborren les cançons i la feina de descàrrega
+     * (per no tornar-los a baixar tot seguit). Retorna els bytes alliberats.
+     */
+    public long evictToBudget(long budgetBytes) {
+        long freed;
+        synchronized (blobLock) {
+            long usage = getStorageUsage();
+            if (usage <= budgetBytes) return 0;
+
+            SQLiteDatabase db = getWritableDatabase();
+            List<String> victims = new ArrayList<>();
+            Cursor cursor = db.rawQuery("SELECT f." + KEY_HASH + ", f." + KEY_SIZE + " FROM " + TABLE_FILES + " f"
+                    + " WHERE NOT EXISTS (SELECT 1 FROM " + TABLE_TRACKS + " t"
+                    + " JOIN " + TABLE_PLAYLIST_TRACKS + " pt ON pt." + KEY_TRACK_ID + " = t." + KEY_ID
+                    + " JOIN " + TABLE_PLAYLISTS + " p ON p." + KEY_ID + " = pt." + KEY_PLAYLIST_ID
+                    + " WHERE t." + KEY_FILE_HASH + " = f." + KEY_HASH + " AND p." + KEY_PINNED + " = 1)"
+                    + " ORDER BY f." + KEY_LAST_PLAYED + " ASC", null);
+            try {
+                long remaining = usage;
+                while (remaining > budgetBytes && cursor.moveToNext()) {
+                    victims.add(cursor.getString(0));
+                    remaining -= cursor.getLong(1);
+                }
+            } finally {
+                cursor.close();
+            }
+            if (victims.isEmpty()) return 0;
+
+            db.beginTransactionNonExclusive();
+            try {
+                for (String hash : victims) {
+                    db.execSQL("DELETE FROM " + TABLE_DOWNLOADS + " WHERE EXISTS (SELECT 1 FROM " + TABLE_SONGS + " s"
+                            + " WHERE s." + KEY_BLOB_HASH + " = ? AND s." + KEY_PLAYLIST + " = " + TABLE_DOWNLOADS + "." + KEY_PLAYLIST
+                            + " AND s." + KEY_SERVER_PATH + " = " + TABLE_DOWNLOADS + "." + KEY_SERVER_PATH + ")", new Object[]{hash});
+                    deleteEntries(db, KEY_BLOB_HASH + " = ?", new String[]{hash});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            freed = collectGarbage();
+        }
+        invalidateIndex();
+        return freed;
+    }
+
+    /** Esborra totes les cançons offline, la cua de descàrregues i els blobs. */
+    public void deleteAllOffline() {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_PLAYLIST_TRACKS, null, null);
+        db.delete(TABLE_DOWNLOADS, null, null);
+        db.delete(TABLE_PLAYLISTS, null, null);
+        collectGarbage();
+        invalidateIndex();
     }
 
     public List<MusicItem> getOfflinePlaylists() {
@@ -119,7 +979,12 @@ public class OfflineDB extends SQLiteOpenHelper {
         return songs;
     }
 
+    /** Descarregada del tot: té cançons i no li queda cap descàrrega pendent ni fallida. */
     public boolean isPlaylistDownloaded(String playlistName) {
+        return hasOfflineSongs(playlistName) && countDownloads(playlistName, STATE_QUEUED, STATE_RUNNING, STATE_FAILED) == 0;
+    }
+
+    public boolean hasOfflineSongs(String playlistName) {
         boolean exists = false;
         Cursor cursor = null;
         try {
@@ -135,6 +1000,136 @@ public class OfflineDB extends SQLiteOpenHelper {
         return exists;
     }
 
+    public boolean hasPendingDownloads(String playlistName) {
+        return countDownloads(playlistName, STATE_QUEUED, STATE_RUNNING) > 0;
+    }
+
+    /** Nombre de cançons en algun dels estats donats; playlistName null compta totes les playlists. */
+    public int countDownloads(String playlistName, String... states) {
+        StringBuilder where = new StringBuilder(KEY_STATE + " IN (");
+        List<String> args = new ArrayList<>();
+        for (int i = 0; i < states.length; i++) {
+            where.append(i == 0 ? "?" : ",?");
+            args.add(states[i]);
+        }
+        where.append(")");
+        if (playlistName != null) {
+            where.append(" AND ").append(KEY_PLAYLIST).append(" = ?");
+            args.add(playlistName);
+        }
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            cursor = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_DOWNLOADS + " WHERE " + where, args.toArray(new String[0]));
+            return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+    }
+
+    /**
+     * Afegeix les cançons a la cua. Les que ja hi eren i havien fallat tornen a la cua amb
+     * els intents a zero; les que ja estan fetes o en marxa no es toquen.
+     */
+    public void enqueueDownloads(List<DownloadJob> jobs) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        long now = System.currentTimeMillis();
+        db.beginTransactionNonExclusive();
+        try {
+            for (DownloadJob job : jobs) {
+                ContentValues values = new ContentValues();
+                values.put(KEY_PLAYLIST, job.playlist);
+                values.put(KEY_SERVER_PATH, job.serverPath);
+                values.put(KEY_NAME, job.name);
+                values.put(KEY_ARTIST, job.artist);
+                values.put(KEY_FILE_PATH, job.filePath);
+                values.put(KEY_USERNAME, job.username);
+                values.put(KEY_STATE, STATE_QUEUED);
+                values.put(KEY_ATTEMPTS, 0);
+                values.put(KEY_UPDATED_AT, now);
+                playlistId(db, job.playlist);
+                if (db.insertWithOnConflict(TABLE_DOWNLOADS, null, values, SQLiteDatabase.CONFLICT_IGNORE) == -1) {
+                    ContentValues retry = new ContentValues();
+                    retry.put(KEY_STATE, STATE_QUEUED);
+                    retry.put(KEY_ATTEMPTS, 0);
+                    retry.put(KEY_UPDATED_AT, now);
+                    db.update(TABLE_DOWNLOADS, retry, KEY_PLAYLIST + " = ? AND " + KEY_SERVER_PATH + " = ? AND " + KEY_STATE + " = ?",
+                            new String[]{job.playlist, job.serverPath, STATE_FAILED});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** Agafa les següents cançons de la cua i les marca com a "running". */
+    public List<DownloadJob> claimQueuedDownloads(int limit) {
+        List<DownloadJob> jobs = new ArrayList<>();
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = db.query(TABLE_DOWNLOADS,
+                    new String[]{KEY_ID, KEY_PLAYLIST, KEY_SERVER_PATH, KEY_NAME, KEY_ARTIST, KEY_FILE_PATH, KEY_USERNAME, KEY_ATTEMPTS},
+                    KEY_STATE + " = ?", new String[]{STATE_QUEUED}, null, null, KEY_ID, String.valueOf(limit));
+            try {
+                while (cursor.moveToNext()) {
+                    DownloadJob job = new DownloadJob(cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                            cursor.getString(4), cursor.getString(5), cursor.getString(6));
+                    job.id = cursor.getLong(0);
+                    job.attempts = cursor.getInt(7);
+                    jobs.add(job);
+                }
+            } finally {
+                cursor.close();
+            }
+            for (DownloadJob job : jobs) setDownloadState(db, job.id, STATE_RUNNING, job.attempts);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return jobs;
+    }
+
+    public void deleteDownloadJob(String playlistName, String serverPath) {
+        getWritableDatabase().delete(TABLE_DOWNLOADS, KEY_PLAYLIST + " = ? AND " + KEY_SERVER_PATH + " = ?",
+                new String[]{playlistName, serverPath});
+    }
+
+    /** Retorna false si la feina ja no existeix (s'ha esborrat la playlist mentre baixava). */
+    public boolean markDownloadDone(DownloadJob job) {
+        return setDownloadState(getWritableDatabase(), job.id, STATE_DONE, job.attempts) > 0;
+    }
+
+    /** Compta un intent més; quan s'arriba al màxim queda com a fallida fins que es torni a demanar. */
+    public void markDownloadFailed(DownloadJob job, int maxAttempts) {
+        int attempts = job.attempts + 1;
+        setDownloadState(getWritableDatabase(), job.id, attempts >= maxAttempts ? STATE_FAILED : STATE_QUEUED, attempts);
+    }
+
+    /** Torna a la cua sense comptar intent (cancel·lació per restriccions, no per error). */
+    public void requeueDownload(DownloadJob job) {
+        setDownloadState(getWritableDatabase(), job.id, STATE_QUEUED, job.attempts);
+    }
+
+    /** En arrencar, el que constava com a "running" és d'un procés que ja no existeix. */
+    public void resetRunningDownloads() {
+        ContentValues values = new ContentValues();
+        values.put(KEY_STATE, STATE_QUEUED);
+        getWritableDatabase().update(TABLE_DOWNLOADS, values, KEY_STATE + " = ?", new String[]{STATE_RUNNING});
+    }
+
+    private static int setDownloadState(SQLiteDatabase db, long id, String state, int attempts) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_STATE, state);
+        values.put(KEY_ATTEMPTS, attempts);
+        values.put(KEY_UPDATED_AT, System.currentTimeMillis());
+        return db.update(TABLE_DOWNLOADS, values, KEY_ID + " = ?", new String[]{String.valueOf(id)});
+    }
+
     public List<String> getPlaylistFilePaths(String playlistName) {
         List<String> paths = new ArrayList<>();
         SQLiteDatabase db = this.getReadableDatabase();
@@ -153,26 +1148,190 @@ public class OfflineDB extends SQLiteOpenHelper {
         return paths;
     }
 
+    /**
+     * Cançons de la playlist que vénen del servidor (les importades des del mòbil tenen
+     * una uri content:// com a server_path i no es poden contrastar amb /browse).
+     */
+    public List<LocalSong> getSyncableSongs(String playlistName) {
+        List<LocalSong> songs = new ArrayList<>();
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            cursor = db.query(TABLE_SONGS, new String[]{KEY_SERVER_PATH, KEY_NAME, KEY_PLAYLIST, KEY_FILE_PATH, KEY_ARTIST},
+                    KEY_PLAYLIST + " = ? AND " + KEY_SERVER_PATH + " NOT LIKE 'content://%'", new String[]{playlistName},
+                    null, null, KEY_ID);
+            while (cursor.moveToNext()) {
+                songs.add(new LocalSong(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4)));
+            }
+        } catch (Exception e) { e.printStackTrace();
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        return songs;
+    }
+
+    public void updateSongMetadata(String playlistName, String serverPath, String name, String artist) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            ContentValues track = new ContentValues();
+            track.put(KEY_NAME, name);
+            track.put(KEY_ARTIST, artist);
+            db.update(TABLE_TRACKS, track, KEY_SERVER_PATH + " = ?", new String[]{serverPath});
+            ContentValues entry = new ContentValues();
+            entry.put(KEY_SEARCH_TEXT, searchText(name, artist, playlistName));
+            db.update(TABLE_PLAYLIST_TRACKS, entry, KEY_ID + " IN (SELECT " + KEY_ID + " FROM " + TABLE_SONGS
+                    + " WHERE " + KEY_PLAYLIST + " = ? AND " + KEY_SERVER_PATH + " = ?)", new String[]{playlistName, serverPath});
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateIndex();
+    }
+
     public void deletePlaylist(String playlistName) {
         try {
             SQLiteDatabase db = this.getWritableDatabase();
-            db.delete(TABLE_SONGS, KEY_PLAYLIST + " = ?", new String[]{playlistName});
-            db.close();
+            deleteEntries(db, KEY_PLAYLIST + " = ?", new String[]{playlistName});
+            db.delete(TABLE_DOWNLOADS, KEY_PLAYLIST + " = ?", new String[]{playlistName});
+            db.delete(TABLE_PLAYLISTS, KEY_NAME + " = ?", new String[]{playlistName});
         } catch (Exception e) { e.printStackTrace(); }
+        invalidateIndex();
     }
 
-    public String getServerPathForLocalFile(String localPath) {
-        SQLiteDatabase db = this.getReadableDatabase();
-        String serverPath = null;
+    /**
+     * Cerca a la biblioteca offline. Cada paraula de la consulta és un prefix ("radi cre" troba
+     * "Radiohead - Creep"), sense tenir en compte accents ni majúscules. Primer surten les cançons
+     * el nom de les quals comença per la consulta, després les que la contenen al nom i finalment
+     * les que només coincideixen per artista o playlist. Una cançó descarregada a diverses
+     * playlists només surt una vegada. Es puntuen totes les coincidències (l'FTS les torna en
+     * ordre de docid), i només es para abans si ja hi ha prou noms que comencen per la consulta.
+     */
+    public List<MusicItem> searchLocal(String query, int limit) {
+        List<MusicItem> results = new ArrayList<>();
+        String normalized = normalize(query);
+        if (normalized.isEmpty()) return results;
+
+        StringBuilder match = new StringBuilder();
+        for (String token : normalized.split(" ")) {
+            if (match.length() > 0) match.append(' ');
+            match.append(token).append('*');
+        }
+
+        // tiers[0]: el nom comença per la consulta, [1]: el nom la conté, [2]: la resta
+        List<List<MusicItem>> tiers = new ArrayList<>();
+        for (int i = 0; i < 3; i++) tiers.add(new ArrayList<>());
+        Set<String> seen = new HashSet<>();
+        Cursor cursor = null;
         try {
-            Cursor cursor = db.query(TABLE_SONGS, new String[]{KEY_SERVER_PATH},
-                    KEY_FILE_PATH + "=?", new String[]{localPath}, null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                serverPath = cursor.getString(0);
+            SQLiteDatabase db = this.getReadableDatabase();
+            cursor = db.rawQuery("SELECT s." + KEY_NAME + ", s." + KEY_FILE_PATH + ", s." + KEY_ARTIST + ", s." + KEY_SERVER_PATH
+                    + " FROM " + TABLE_SONGS_FTS + " f JOIN " + TABLE_SONGS + " s ON s." + KEY_ID + " = f.docid"
+                    + " WHERE " + TABLE_SONGS_FTS + " MATCH ?", new String[]{match.toString()});
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String serverPath = cursor.getString(3);
+                if (!seen.add(serverPath != null ? serverPath : cursor.getString(1))) continue;
+                String normalizedName = normalize(name);
+                List<MusicItem> tier = tiers.get(normalizedName.startsWith(normalized) ? 0 : normalizedName.contains(normalized) ? 1 : 2);
+                if (tier.size() < limit) tier.add(new MusicItem(name, "file", cursor.getString(1), cursor.getString(2)));
+                if (tiers.get(0).size() >= limit) break;
             }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
             if (cursor != null) cursor.close();
-        } catch (Exception e) {}
-        return serverPath;
+        }
+
+        for (List<MusicItem> tier : tiers) {
+            for (MusicItem item : tier) {
+                if (results.size() >= limit) return results;
+                results.add(item);
+            }
+        }
+        return results;
+    }
+
+    public String getServerPathForLocalFile(String localPath) {
+        List<LocalSong> songs = ensureIndex().get(localPath);
+        return songs != null ? songs.get(0).serverPath : null;
+    }
+
+    /**
+     * Primera còpia local utilitzable de la cançó: per ruta del servidor, després per fitxer i, només
+     * si també coincideix l'artista, pel nom. Una còpia el fitxer de la qual ja no hi és se salta.
+     */
+    public LocalSong findLocalSong(String path, String name, String artist) {
+        List<LocalSong> byPath, byFile, named;
+        synchronized (indexLock) {
+            ensureIndex();
+            byPath = byServerPath.get(path);
+            byFile = byFilePath.get(path);
+            named = name != null && artist != null ? byName.get(name) : null;
+        }
+        LocalSong song = firstUsable(byPath, null);
+        if (song == null) song = firstUsable(byFile, null);
+        if (song == null) song = firstUsable(named, artist);
+        return song;
+    }
+
+    private static LocalSong firstUsable(List<LocalSong> candidates, String artist) {
+        if (candidates == null) return null;
+        for (LocalSong song : candidates) {
+            if (artist != null && !artist.equalsIgnoreCase(song.artist)) continue;
+            if (song.filePath == null) continue;
+            // Una uri content:// no es pot comprovar amb File
+            if (song.filePath.startsWith("content://") || new File(song.filePath).exists()) return song;
+        }
+        return null;
+    }
+
+    private Map<String, List<LocalSong>> ensureIndex() {
+        synchronized (indexLock) {
+            if (byFilePath != null) return byFilePath;
+
+            Map<String, List<LocalSong>> serverIdx = new HashMap<>();
+            Map<String, List<LocalSong>> fileIdx = new HashMap<>();
+            Map<String, List<LocalSong>> nameIdx = new HashMap<>();
+            Cursor cursor = null;
+            try {
+                SQLiteDatabase db = this.getReadableDatabase();
+                cursor = db.query(TABLE_SONGS, new String[]{KEY_SERVER_PATH, KEY_NAME, KEY_PLAYLIST, KEY_FILE_PATH, KEY_ARTIST},
+                        null, null, null, null, KEY_ID);
+                while (cursor.moveToNext()) {
+                    LocalSong song = new LocalSong(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3), cursor.getString(4));
+                    addToIndex(serverIdx, song.serverPath, song);
+                    addToIndex(fileIdx, song.filePath, song);
+                    addToIndex(nameIdx, song.name, song);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+            byServerPath = serverIdx;
+            byName = nameIdx;
+            byFilePath = fileIdx;
+            return byFilePath;
+        }
+    }
+
+    private static void addToIndex(Map<String, List<LocalSong>> index, String key, LocalSong song) {
+        if (key == null) return;
+        List<LocalSong> songs = index.get(key);
+        if (songs == null) {
+            songs = new ArrayList<>(1);
+            index.put(key, songs);
+        }
+        songs.add(song);
+    }
+
+    private static void invalidateIndex() {
+        synchronized (indexLock) {
+            byServerPath = null;
+            byFilePath = null;
+            byName = null;
+        }
     }
 
     public void logPlay(String name, String artist, int durationSeconds) {
@@ -184,85 +1343,141 @@ public class OfflineDB extends SQLiteOpenHelper {
         values.put(KEY_DURATION, durationSeconds);
         values.put(KEY_SYNCED, 0);
         db.insert(TABLE_HISTORY, null, values);
-        db.close();
     }
 
-    public List<JSONObject> getUnsyncedPlays() {
-        List<JSONObject> list = new ArrayList<>();
-        String selectQuery = "SELECT * FROM " + TABLE_HISTORY + " WHERE " + KEY_SYNCED + " = 0";
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor = db.rawQuery(selectQuery, null);
+    /** Lot de reproduccions pendents de pujar, identificat per la seva clau d'idempotència. */
+    public static class SyncBatch {
+        public final String key;
+        public final JSONArray plays;
 
-        if (cursor.moveToFirst()) {
-            do {
-                try {
-                    JSONObject obj = new JSONObject();
-                    obj.put("id", cursor.getInt(0));
-                    obj.put("timestamp", cursor.getLong(1));
-                    obj.put("song", cursor.getString(2));
-                    obj.put("artist", cursor.getString(3));
-                    obj.put("duration", cursor.getInt(4));
-                    list.add(obj);
-                } catch (Exception e) {}
-            } while (cursor.moveToNext());
+        SyncBatch(String key, JSONArray plays) {
+            this.key = key;
+            this.plays = plays;
         }
-        cursor.close();
-        return list;
     }
 
-    public void markAsSynced(List<Integer> ids) {
+    /**
+     * Retorna el lot pendent de pujar. Si un lot anterior no s'ha confirmat es torna el mateix amb
+     * la mateixa clau, perquè el servidor el pugui descartar si ja l'havia rebut; si no, se'n reserva
+     * un de nou amb com a molt maxPlays reproduccions. Null si no queda res per pujar.
+     */
+    public SyncBatch claimSyncBatch(int maxPlays) {
         SQLiteDatabase db = this.getWritableDatabase();
+        String key;
+        db.beginTransactionNonExclusive();
+        try {
+            key = stringForQuery(db, "SELECT " + KEY_SYNC_BATCH + " FROM " + TABLE_HISTORY + " WHERE " + KEY_SYNCED + " = 0 AND "
+                    + KEY_SYNC_BATCH + " IS NOT NULL ORDER BY " + KEY_ID + " LIMIT 1");
+            if (key == null) {
+                key = UUID.randomUUID().toString();
+                db.execSQL("UPDATE " + TABLE_HISTORY + " SET " + KEY_SYNC_BATCH + " = ? WHERE " + KEY_ID + " IN (SELECT " + KEY_ID
+                        + " FROM " + TABLE_HISTORY + " WHERE " + KEY_SYNCED + " = 0 AND " + KEY_SYNC_BATCH + " IS NULL ORDER BY "
+                        + KEY_ID + " LIMIT " + maxPlays + ")", new Object[]{key});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        JSONArray plays = new JSONArray();
+        Cursor cursor = db.query(TABLE_HISTORY, new String[]{KEY_ID, KEY_TIMESTAMP, KEY_NAME, KEY_ARTIST, KEY_DURATION},
+                KEY_SYNC_BATCH + " = ? AND " + KEY_SYNCED + " = 0", new String[]{key}, null, null, KEY_ID);
+        try {
+            while (cursor.moveToNext()) {
+                JSONObject obj = new JSONObject();
+                obj.put("id", cursor.getInt(0));
+                obj.put("timestamp", cursor.getLong(1));
+                obj.put("song", cursor.getString(2));
+                obj.put("artist", cursor.getString(3));
+                obj.put("duration", cursor.getInt(4));
+                plays.put(obj);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            cursor.close();
+        }
+        return plays.length() == 0 ? null : new SyncBatch(key, plays);
+    }
+
+    public void markBatchSynced(String key) {
         ContentValues values = new ContentValues();
         values.put(KEY_SYNCED, 1);
-        for (int id : ids) {
-            db.update(TABLE_HISTORY, values, KEY_ID + " = ?", new String[]{String.valueOf(id)});
-        }
-        db.close();
+        getWritableDatabase().update(TABLE_HISTORY, values, KEY_SYNC_BATCH + " = ?", new String[]{key});
     }
 
-    public JSONObject getLocalStats(String period) {
+    private static long periodStart(String period) {
         long now = System.currentTimeMillis() / 1000;
         long limit = 0;
 
         if (period.equals("week")) limit = now - (7 * 24 * 3600);
         else if (period.equals("month")) limit = now - (30 * 24 * 3600);
         else if (period.equals("year")) limit = now - (365 * 24 * 3600);
+        return limit;
+    }
+
+    /**
+     * Reproduccions del període que encara no consten al servidor: segons totals i, per cada
+     * "cançó - artista" (la clau del top_5 del servidor), quantes vegades s'ha escoltat. Les que ja
+     * són dins d'un lot no compten: el servidor les pot haver aplicat abans que es marquin.
+     */
+    public JSONObject getUnsyncedStats(String period) {
+        JSONObject result = new JSONObject();
+        JSONObject plays = new JSONObject();
+        long seconds = 0;
+        Cursor cursor = getReadableDatabase().rawQuery("SELECT " + KEY_NAME + ", " + KEY_ARTIST + ", COUNT(*), SUM(" + KEY_DURATION + ") FROM "
+                + TABLE_HISTORY + " WHERE " + KEY_SYNCED + " = 0 AND " + KEY_SYNC_BATCH + " IS NULL AND " + KEY_TIMESTAMP + " > ? GROUP BY 1, 2",
+                new String[]{String.valueOf(periodStart(period))});
+        try {
+            while (cursor.moveToNext()) {
+                String key = cursor.getString(0) + " - " + cursor.getString(1);
+                plays.put(key, plays.optInt(key) + cursor.getInt(2));
+                seconds += cursor.getLong(3);
+            }
+            result.put("seconds", seconds);
+            result.put("plays", plays);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Estadístiques del període (timestamp > inici, com el servidor). Els dies sencers surten dels
+     * acumulats i el dia de tall, que només compta en part, de playback_history per l'índex de timestamp.
+     * Per als tops, els blocs de 30 dies sencers surten de les taules mensuals i només els dies
+     * que en sobren de les diàries.
+     */
+    public JSONObject getLocalStats(String period) {
+        long limit = periodStart(period);
+        long cutDay = limit / 86400;
+        long firstMonth = cutDay / DAYS_PER_MONTH + 1;
+        String[] args = {
+                String.valueOf(firstMonth),
+                String.valueOf(cutDay), String.valueOf(firstMonth * DAYS_PER_MONTH),
+                String.valueOf(limit), String.valueOf((cutDay + 1) * 86400)};
 
         SQLiteDatabase db = this.getReadableDatabase();
         JSONObject result = new JSONObject();
 
         try {
-            String queryTime = "SELECT SUM(" + KEY_DURATION + ") FROM " + TABLE_HISTORY + " WHERE " + KEY_TIMESTAMP + " >= ?";
-            Cursor cursorTime = db.rawQuery(queryTime, new String[]{String.valueOf(limit)});
+            String queryTime = "SELECT IFNULL((SELECT SUM(" + KEY_SECONDS + ") FROM " + TABLE_STATS_DAILY + " WHERE " + KEY_DAY + " > ?), 0)"
+                    + " + IFNULL((SELECT SUM(" + KEY_DURATION + ") FROM " + TABLE_HISTORY
+                    + " WHERE " + KEY_TIMESTAMP + " > ? AND " + KEY_TIMESTAMP + " < ?), 0)";
+            Cursor cursorTime = db.rawQuery(queryTime, new String[]{args[1], args[3], args[4]});
 
-            int totalSeconds = 0;
+            long totalSeconds = 0;
             if (cursorTime.moveToFirst()) {
-                totalSeconds = cursorTime.getInt(0);
+                totalSeconds = cursorTime.getLong(0);
             }
             cursorTime.close();
 
             result.put("total_minutes", totalSeconds / 60);
             result.put("total_hours", totalSeconds / 3600.0);
-
-            String queryTop = "SELECT " + KEY_NAME + ", COUNT(*) as plays FROM " + TABLE_HISTORY +
-                    " WHERE " + KEY_TIMESTAMP + " >= ? " +
-                    " GROUP BY " + KEY_NAME +
-                    " ORDER BY plays DESC LIMIT 5";
-
-            Cursor cursorTop = db.rawQuery(queryTop, new String[]{String.valueOf(limit)});
-            JSONArray topSongs = new JSONArray();
-
-            if (cursorTop.moveToFirst()) {
-                do {
-                    JSONObject song = new JSONObject();
-                    song.put("name", cursorTop.getString(0));
-                    song.put("plays", cursorTop.getInt(1));
-                    topSongs.put(song);
-                } while (cursorTop.moveToNext());
-            }
-            cursorTop.close();
-
-            result.put("top_5", topSongs);
+            result.put("top_5", topFromRollup(db, TABLE_STATS_MONTHLY_TRACKS, TABLE_STATS_TRACKS, KEY_NAME, args));
+            result.put("top_artists", topFromRollup(db, TABLE_STATS_MONTHLY_ARTISTS, TABLE_STATS_ARTISTS, KEY_ARTIST, args));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -270,4 +1485,28 @@ public class OfflineDB extends SQLiteOpenHelper {
 
         return result;
     }
+
+    /** args: primer bloc sencer, dia de tall, primer dia del primer bloc, inici exacte, fi del dia de tall. */
+    private static JSONArray topFromRollup(SQLiteDatabase db, String monthly, String daily, String column, String[] args) throws Exception {
+        String queryTop = "SELECT " + column + ", SUM(" + KEY_PLAYS + ") as plays FROM ("
+                + "SELECT " + column + ", " + KEY_PLAYS + " FROM " + monthly + " WHERE " + KEY_MONTH + " >= ?"
+                + " UNION ALL SELECT " + column + ", " + KEY_PLAYS + " FROM " + daily + " WHERE " + KEY_DAY + " > ? AND " + KEY_DAY + " < ?"
+                + " UNION ALL SELECT IFNULL(" + column + ", ''), 1 FROM " + TABLE_HISTORY + " WHERE " + KEY_TIMESTAMP + " > ? AND " + KEY_TIMESTAMP + " < ?"
+                + ") GROUP BY " + column
+                + " ORDER BY plays DESC LIMIT 5";
+
+        Cursor cursorTop = db.rawQuery(queryTop, args);
+        JSONArray top = new JSONArray();
+        try {
+            while (cursorTop.moveToNext()) {
+                JSONObject item = new JSONObject();
+                item.put("name", cursorTop.getString(0));
+                item.put("plays", cursorTop.getInt(1));
+                top.put(item);
+            }
+        } finally {
+            cursorTop.close();
+        }
+        return top;
+    }
 }
\ No newline at end of file
@@ -1,6 +1,9 @@
 package com.example.resonode;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,15 +13,13 @@ import android.widget.PopupMenu;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
-import com.bumptech.glide.Glide;
-import com.bumptech.glide.load.engine.DiskCacheStrategy;
-
-import java.io.File;
-import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHolder> {
 
@@ -45,9 +46,20 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
     private final OnItemMenuClickListener menuListener;
 
     private OfflineDB offlineDB;
+    private static final int ROW_ART_SIZE_DP = 56;
+    private final int rowArtSize;
 
     private int iconColor = 0xFFF2B327;
 
+    // Payload per refrescar només l'estat de reproducció sense tornar a pintar tota la fila
+    private static final Object PAYLOAD_PLAYING = new Object();
+
+    // Un sol fil per tots els adaptadors: els diffs s'apliquen en ordre i no bloquegen la UI
+    private static ExecutorService diffExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private int submitGeneration = 0;
+    private boolean diffPending = false;
+
     private final List<MusicItem> selectedItems = new ArrayList<>();
     private OnSelectionChangedListener selectionListener;
     private boolean isSelectionActive = false;
@@ -65,12 +77,114 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         this.menuListener = menuListener;
         this.isSelectionActive = false;
 
-        this.offlineDB = new OfflineDB(context);
+        this.offlineDB = OfflineDB.get(context);
+        this.rowArtSize = (int) (ROW_ART_SIZE_DP * context.getResources().getDisplayMetrics().density);
         SessionManager session = new SessionManager(context);
         this.currentUsername = session.getUsername();
+        setHasStableIds(true);
+    }
+
+    private static synchronized ExecutorService getDiffExecutor() {
+        if (diffExecutor == null) {
+            diffExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(() -> {
+                    android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }, "PlaylistDiff");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return diffExecutor;
+    }
+
+    public void submitList(List<MusicItem> newItems) {
+        submitList(newItems, null);
+    }
+
+    /**
+     * Substitueix el contingut de la llista calculant el diff en segon pla i enviant només
+     * les insercions, moviments i canvis reals. La llista compartida (musicList, searchResults)
+     * s'actualitza al fil principal just abans de notificar. Si mentrestant arriba una altra
+     * llista, aquest diff es descarta; si algú modifica la llista directament, es torna a calcular.
+     */
+    public void submitList(List<MusicItem> newItems, final Runnable onCommitted) {
+        final int generation = ++submitGeneration;
+        final List<MusicItem> oldSnapshot = new ArrayList<>(items);
+        final List<MusicItem> target = new ArrayList<>(newItems);
+        diffPending = true;
+
+        getDiffExecutor().execute(() -> {
+            final DiffUtil.DiffResult result = DiffUtil.calculateDiff(new ItemDiff(oldSnapshot, target));
+            mainHandler.post(() -> {
+                if (generation != submitGeneration) return;
+                diffPending = false;
+                if (!sameItems(items, oldSnapshot)) {
+                    // La llista ha canviat per sota: es refà el diff des del contingut actual
+                    submitList(target, onCommitted);
+                    return;
+                }
+                items.clear();
+                items.addAll(target);
+                result.dispatchUpdatesTo(PlaylistAdapter.this);
+                if (onCommitted != null) onCommitted.run();
+            });
+        });
+    }
+
+    public boolean hasPendingUpdates() {
+        return diffPending;
+    }
+
+    private static boolean sameItems(List<MusicItem> a, List<MusicItem> b) {
+        if (a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) if (a.get(i) != b.get(i)) return false;
+        return true;
+    }
+
+    private static class ItemDiff extends DiffUtil.Callback {
+        private final List<MusicItem> oldItems;
+        private final List<MusicItem> newItems;
+
+        ItemDiff(List<MusicItem> oldItems, List<MusicItem> newItems) {
+            this.oldItems = oldItems;
+            this.newItems = newItems;
+        }
+
+        @Override public int getOldListSize() { return oldItems.size(); }
+        @Override public int getNewListSize() { return newItems.size(); }
+
+        @Override
+        public boolean areItemsTheSame(int oldPos, int newPos) {
+            MusicItem a = oldItems.get(oldPos), b = newItems.get(newPos);
+            return TextUtils.equals(a.getPath(), b.getPath()) && TextUtils.equals(a.getType(), b.getType());
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPos, int newPos) {
+            MusicItem a = oldItems.get(oldPos), b = newItems.get(newPos);
+            return TextUtils.equals(a.getName(), b.getName()) && TextUtils.equals(a.getArtist(), b.getArtist());
+        }
+    }
+
+    /**
+     * Identificador estable per cada element (tipus + ruta) perquè el RecyclerView reaprofiti les files.
+     * És un hash FNV-1a de 64 bits de la clau: no cal guardar cap taula que creixi amb la navegació.
+     */
+    @Override
+    public long getItemId(int position) {
+        MusicItem item = items.get(position);
+        String key = item.getType() + "|" + item.getPath();
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
     }
 
     public void setMode(int newMode) {
+        if (newMode == mode && !isSelectionActive) return;
         this.mode = newMode;
         this.selectedItems.clear();
         this.isSelectionActive = false;
@@ -78,14 +192,23 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
     }
 
     public void setPlayingState(String path, boolean playing) {
+        String previous = playingSongPath;
         this.playingSongPath = (path != null) ? path : "";
         this.isPlaying = playing;
-        notifyDataSetChanged();
+        notifyPlayingRows(previous);
+        if (!previous.equals(playingSongPath)) notifyPlayingRows(playingSongPath);
     }
 
     public void setIconColor(int color) {
         this.iconColor = color;
-        notifyDataSetChanged();
+        notifyPlayingRows(playingSongPath);
+    }
+
+    private void notifyPlayingRows(String path) {
+        if (path.isEmpty()) return;
+        for (int i = 0; i < items.size(); i++) {
+            if (path.equals(items.get(i).getPath())) notifyItemChanged(i, PAYLOAD_PLAYING);
+        }
     }
 
     public void setCurrentPath(String path) {
@@ -111,6 +234,14 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         return new ViewHolder(view);
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position, @NonNull List<Object> payloads) {
+        boolean onlyPlaying = !payloads.isEmpty();
+        for (Object p : payloads) if (p != PAYLOAD_PLAYING) onlyPlaying = false;
+        if (onlyPlaying) bindPlayingState(holder, items.get(position));
+        else onBindViewHolder(holder, position);
+    }
+
     @Override
     public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
         final MusicItem item = items.get(position);
@@ -125,71 +256,40 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         else infoText = (item.getArtist() != null && !item.getArtist().isEmpty() && !item.getArtist().equals("ResoNode")) ? item.getArtist() : "Cançó";
         holder.tvArtist.setText(infoText);
 
-        File backupCover = null;
-        File offlineDir = context.getDir("offline_music", Context.MODE_PRIVATE);
         String coverNameTarget = item.isFolder() ? item.getName() : currentPath;
-        if (!coverNameTarget.isEmpty()) {
-            String safeName = "cover_" + coverNameTarget.replaceAll("[^a-zA-Z0-9.-]", "_") + ".jpg";
-            File f = new File(offlineDir, safeName);
-            if (f.exists()) backupCover = f;
+        String playlistName = coverNameTarget.isEmpty() ? null : coverNameTarget;
+        String coverPath = null;
+        String localUri = null;
+        if (item.getPath().startsWith("content://")) {
+            localUri = item.getPath();
+            if (!currentPath.isEmpty()) coverPath = currentPath;
+        } else if (item.getPath().startsWith("/")) {
+            coverPath = offlineDB.getServerPathForLocalFile(item.getPath());
+        } else {
+            coverPath = item.getPath();
         }
 
+        final ArtworkRepository.Request request = new ArtworkRepository.Request(localUri, coverPath, playlistName, currentUsername);
+        final String requestKey = request.key(rowArtSize);
+        final boolean hasRemoteSource = localUri != null || coverPath != null;
+        holder.ivIcon.setTag(requestKey);
         holder.ivIcon.setVisibility(View.VISIBLE);
         holder.tvIcon.setVisibility(View.GONE);
-
-        if (item.getPath().startsWith("content://")) {
-            byte[] embeddedArt = getEmbeddedArt(item.getPath());
-            if (embeddedArt != null) {
-                Glide.with(context)
-                        .load(embeddedArt)
-                        .placeholder(R.mipmap.ic_launcher)
-                        .into(holder.ivIcon);
-            } else {
-                String playlistCoverUrl = null;
-                if (!currentPath.isEmpty()) {
-                    try {
-                        playlistCoverUrl = Config.SERVER_URL + "/cover?username=" + currentUsername + "&path=" + URLEncoder.encode(currentPath, "UTF-8");
-                    } catch (Exception e) {}
-                }
-                Glide.with(context)
-                        .load(playlistCoverUrl)
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .error(Glide.with(context).load(backupCover))
-                        .placeholder(R.mipmap.ic_launcher)
-                        .into(holder.ivIcon);
-            }
-        } else {
-            String onlineUrlToTry = null;
-            if (item.getPath().startsWith("/")) {
-                String originalServerPath = offlineDB.getServerPathForLocalFile(item.getPath());
-                if (originalServerPath != null) {
-                    try {
-                        onlineUrlToTry = Config.SERVER_URL + "/cover?username=" + currentUsername + "&path=" + URLEncoder.encode(originalServerPath, "UTF-8");
-                    } catch (Exception e) {}
-                }
-            } else {
-                try {
-                    onlineUrlToTry = Config.SERVER_URL + "/cover?username=" + currentUsername + "&path=" + URLEncoder.encode(item.getPath(), "UTF-8");
-                } catch (Exception e) {}
-            }
-
-            if (onlineUrlToTry != null) {
-                Glide.with(context)
-                        .load(onlineUrlToTry)
-                        .diskCacheStrategy(DiskCacheStrategy.ALL)
-                        .error(Glide.with(context).load(backupCover))
-                        .placeholder(R.mipmap.ic_launcher)
-                        .into(holder.ivIcon);
-            } else if (backupCover != null) {
-                Glide.with(context).load(backupCover).circleCrop().into(holder.ivIcon);
-            } else {
+        holder.ivIcon.setImageResource(R.mipmap.ic_launcher);
+
+        if (holder.artworkTicket != null) holder.artworkTicket.cancel();
+        holder.artworkTicket = ArtworkRepository.get(context).load(request, rowArtSize, bitmap -> {
+            if (!requestKey.equals(holder.ivIcon.getTag())) return;
+            if (bitmap != null) {
+                holder.ivIcon.setImageBitmap(bitmap);
+            } else if (!hasRemoteSource) {
                 holder.ivIcon.setVisibility(View.GONE);
                 holder.tvIcon.setVisibility(View.VISIBLE);
                 String emoji = item.isFolder() ? (mode == MODE_VAULT && !item.getPath().contains("/") ? "👤" : "💿") : "🎵";
                 if (item.isFolder() && mode != MODE_VAULT) emoji = "📁";
                 holder.tvIcon.setText(emoji);
             }
-        }
+        });
 
         if (isSelectionActive) {
             holder.checkBox.setVisibility(View.VISIBLE);
@@ -201,7 +301,8 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
             holder.itemView.setOnClickListener(v -> {
                 if (selectedItems.contains(item)) selectedItems.remove(item);
                 else selectedItems.add(item);
-                notifyItemChanged(position);
+                int pos = holder.getAdapterPosition();
+                if (pos != RecyclerView.NO_POSITION) notifyItemChanged(pos);
                 if (selectionListener != null) selectionListener.onSelectionChanged(selectedItems.size());
             });
             holder.checkBox.setOnClickListener(v -> holder.itemView.performClick());
@@ -231,6 +332,10 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
             }
         }
 
+        bindPlayingState(holder, item);
+    }
+
+    private void bindPlayingState(ViewHolder holder, MusicItem item) {
         if (!item.isFolder() && item.getPath().equals(playingSongPath)) {
             holder.tvName.setTextColor(iconColor);
             if (holder.eqAnim != null) {
@@ -247,18 +352,6 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         }
     }
 
-    private byte[] getEmbeddedArt(String contentUriString) {
-        try {
-            android.media.MediaMetadataRetriever mmr = new android.media.MediaMetadataRetriever();
-            mmr.setDataSource(context, android.net.Uri.parse(contentUriString));
-            byte[] art = mmr.getEmbeddedPicture();
-            mmr.release();
-            return art;
-        } catch (Exception e) {
-            return null;
-        }
-    }
-
     private void showPopupMenu(View view, MusicItem item) {
         PopupMenu popup = new PopupMenu(context, view);
 
@@ -269,12 +362,23 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
 
         if (item.isFolder()) {
             boolean isDownloaded = false;
+            boolean hasSongs = false;
+            boolean pinned = true;
             try {
-                if (offlineDB != null) isDownloaded = offlineDB.isPlaylistDownloaded(item.getName());
+                if (offlineDB != null) {
+                    isDownloaded = offlineDB.isPlaylistDownloaded(item.getName());
+                    hasSongs = isDownloaded || offlineDB.hasOfflineSongs(item.getName());
+                    pinned = offlineDB.isPlaylistPinned(item.getName());
+                }
             } catch (Exception e) {}
 
-            if (isDownloaded) popup.getMenu().add("Borrar Offline");
-            else popup.getMenu().add("Descarregar Offline");
+            // Una playlist a mitges es pot reprendre i també esborrar
+            if (!isDownloaded) popup.getMenu().add("Descarregar Offline");
+            else popup.getMenu().add("Sincronitzar Offline");
+            if (hasSongs) {
+                popup.getMenu().add("Borrar Offline");
+                popup.getMenu().add(pinned ? "Desfixar Offline" : "Fixar Offline");
+            }
         }
 
         if (mode == MODE_PRIVATE) {
@@ -292,6 +396,16 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         popup.show();
     }
 
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        super.onViewRecycled(holder);
+        if (holder.artworkTicket != null) {
+            holder.artworkTicket.cancel();
+            holder.artworkTicket = null;
+        }
+        holder.ivIcon.setTag(null);
+    }
+
     @Override
     public int getItemCount() { return items.size(); }
 
@@ -301,6 +415,7 @@ public class PlaylistAdapter extends RecyclerView.Adapter<PlaylistAdapter.ViewHo
         ImageView btnMore;
         CheckBox checkBox;
         MiniEqView eqAnim;
+        ArtworkRepository.Ticket artworkTicket;
 
         public ViewHolder(@NonNull View itemView) {
             super(itemView);
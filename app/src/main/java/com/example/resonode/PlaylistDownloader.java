@@ -0,0 +1,260 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Motor de descàrrega de cançons per al mode offline. Cada fitxer s'escriu en streaming
+ * a un .part amb un buffer fix (mai sencer a memòria), es reprèn amb Range si ja n'hi ha un tros,
+ * es comprova la mida i només llavors es reanomena al nom definitiu.
+ * Es baixen diversos fitxers alhora, fins al límit configurat a "download_parallelism".
+ */
+public class PlaylistDownloader {
+
+    private static final String TAG = "Downloader";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_PARALLELISM = "download_parallelism";
+    private static final int DEFAULT_PARALLELISM = 3;
+    private static final int MAX_PARALLELISM = 4;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long PROGRESS_INTERVAL_MS = 300;
+    private static final String PART_EXT = ".part";
+
+    public interface Listener {
+        /** Es crida des dels fils de descàrrega, com a molt cada PROGRESS_INTERVAL_MS. */
+        void onProgress(long bytesDone, long bytesTotal, int filesDone, int filesTotal, String currentName);
+    }
+
+    public interface TaskListener {
+        /** Una tasca ha acabat (bé o malament, mireu isDone()); es crida des dels fils de descàrrega. */
+        void onTaskFinished(Task task);
+    }
+
+    public static class Task {
+        public final String serverPath;
+        public final String name;
+        public final File target;
+        long expectedSize = -1;
+        boolean done = false;
+
+        public Task(String serverPath, String name, File target) {
+            this.serverPath = serverPath;
+            this.name = name;
+            this.target = target;
+        }
+
+        public boolean isDone() { return done; }
+    }
+
+    private final OkHttpClient client;
+    private final int parallelism;
+    private volatile boolean cancelled = false;
+    private TaskListener taskListener;
+
+    private final AtomicLong bytesDone = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    // Només el que ha passat per la xarxa (sense els fitxers que ja hi eren), per calcular la velocitat
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong lastReport = new AtomicLong();
+
+    public PlaylistDownloader(Context context, OkHttpClient client) {
+        this.client = client;
+        int configured = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE)
+                .getInt(KEY_PARALLELISM, DEFAULT_PARALLELISM);
+        this.parallelism = Math.max(1, Math.min(MAX_PARALLELISM, configured));
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void setTaskListener(TaskListener listener) {
+        this.taskListener = listener;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * Baixa totes les tasques i bloqueja fins que acaben. Retorna les que han quedat completes
+     * (inclou les que ja eren a disc); les fallides deixen el .part per reprendre-les més tard.
+     */
+    public List<Task> download(final List<Task> tasks, final String username, final Listener listener) {
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "Download");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            // Primer les mides (HEAD) per poder donar un progrés per bytes de tota la playlist
+            List<Future<?>> sizing = new ArrayList<>();
+            for (final Task task : tasks) {
+                sizing.add(pool.submit(() -> {
+                    task.expectedSize = fetchSize(task, username);
+                    if (task.expectedSize > 0) bytesTotal.addAndGet(task.expectedSize);
+                }));
+            }
+            waitAll(sizing);
+
+            List<Future<?>> jobs = new ArrayList<>();
+            for (final Task task : tasks) {
+                jobs.add(pool.submit(() -> {
+                    for (int attempt = 1; attempt <= MAX_ATTEMPTS && !cancelled && !task.done; attempt++) {
+                        try {
+                            downloadOne(task, username, listener, tasks.size());
+                        } catch (IOException e) {
+                            Log.w(TAG, "Intent " + attempt + " fallit per " + task.name + ": " + e.getMessage());
+                        }
+                    }
+                    if (task.done) filesDone.incrementAndGet();
+                    if (taskListener != null) taskListener.onTaskFinished(task);
+                    report(listener, tasks.size(), task.name, true);
+                }));
+            }
+            waitAll(jobs);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<Task> completed = new ArrayList<>();
+        for (Task task : tasks) if (task.done) completed.add(task);
+        return Collections.unmodifiableList(completed);
+    }
+
+    private static void waitAll(List<Future<?>> futures) {
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (Exception e) {
+                Log.w(TAG, "Tasca interrompuda: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String streamUrl(Task task, String username) throws IOException {
+        return Config.SERVER_URL + "/stream?username=" + username + "&path=" + URLEncoder.encode(task.serverPath, "UTF-8");
+    }
+
+    private long fetchSize(Task task, String username) {
+        try (Response response = client.newCall(new Request.Builder().url(streamUrl(task, username)).head().build()).execute()) {
+            if (!response.isSuccessful()) return -1;
+            String length = response.header("Content-Length");
+            return length != null ? Long.parseLong(length) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private void downloadOne(Task task, String username, Listener listener, int filesTotal) throws IOException {
+        // Ja baixat en una execució anterior
+        if (task.target.exists() && (task.expectedSize < 0 || task.target.length() == task.expectedSize)) {
+            bytesDone.addAndGet(task.target.length());
+            task.done = true;
+            return;
+        }
+
+        File part = new File(task.target.getPath() + PART_EXT);
+        long offset = part.exists() ? part.length() : 0;
+        if (task.expectedSize > 0 && offset > task.expectedSize) {
+            part.delete();
+            offset = 0;
+        }
+        // El .part ja és sencer (s'havia tallat just abans de reanomenar)
+        if (task.expectedSize > 0 && offset == task.expectedSize && part.renameTo(task.target)) {
+            bytesDone.addAndGet(offset);
+            task.done = true;
+            return;
+        }
+
+        Request.Builder builder = new Request.Builder().url(streamUrl(task, username));
+        if (offset > 0) builder.header("Range", "bytes=" + offset + "-");
+
+        try (Response response = client.newCall(builder.build()).execute()) {
+            if (response.code() == 416) {
+                // El tros que teníem no quadra amb el fitxer del servidor: comencem de nou
+                part.delete();
+                throw new IOException("Range no vàlid");
+            }
+            if (!response.isSuccessful()) throw new IOException("Error " + response.code());
+
+            boolean append = offset > 0 && response.code() == 206;
+            if (!append) offset = 0;
+            long expected = task.expectedSize;
+            if (expected < 0 && response.body().contentLength() >= 0) {
+                expected = offset + response.body().contentLength();
+                task.expectedSize = expected;
+                bytesTotal.addAndGet(expected);
+            }
+
+            bytesDone.addAndGet(offset);
+            long written = offset;
+            try (InputStream in = response.body().byteStream();
+                 FileOutputStream out = new FileOutputStream(part, append)) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    if (cancelled) throw new IOException("Cancel·lat");
+                    out.write(buffer, 0, n);
+                    written += n;
+                    bytesDone.addAndGet(n);
+                    bytesTransferred.addAndGet(n);
+                    report(listener, filesTotal, task.name, false);
+                }
+                out.getFD().sync();
+            } catch (IOException e) {
+                // El que s'ha escrit queda al .part; no ho comptem fins que es reprengui
+                bytesDone.addAndGet(-written);
+                throw e;
+            }
+
+            if (expected >= 0 && written != expected) {
+                bytesDone.addAndGet(-written);
+                throw new IOException("Mida incorrecta: " + written + " de " + expected);
+            }
+            if (task.target.exists()) task.target.delete();
+            if (!part.renameTo(task.target)) {
+                bytesDone.addAndGet(-written);
+                throw new IOException("No s'ha pogut reanomenar " + part.getName());
+            }
+            task.done = true;
+        }
+    }
+
+    private void report(Listener listener, int filesTotal, String currentName, boolean force) {
+        if (listener == null) return;
+        long now = System.currentTimeMillis();
+        long last = lastReport.get();
+        if (!force && now - last < PROGRESS_INTERVAL_MS) return;
+        if (!lastReport.compareAndSet(last, now) && !force) return;
+        listener.onProgress(bytesDone.get(), bytesTotal.get(), filesDone.get(), filesTotal, currentName);
+    }
+}
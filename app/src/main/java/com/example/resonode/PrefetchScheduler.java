@@ -0,0 +1,89 @@
+package com.example.resonode;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetchScheduler {
+
+    private static final String TAG = "Prefetch";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_UNMETERED_COUNT = "prefetch_unmetered";
+    public static final String KEY_METERED_COUNT = "prefetch_metered";
+    private static final int DEFAULT_UNMETERED_COUNT = 3;
+    private static final int DEFAULT_METERED_COUNT = 1;
+    private static final long MIN_FREE_BYTES = 256L * 1024 * 1024;
+
+    private final Context context;
+    private final StreamProxy proxy;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor();
+    private final AtomicInteger generation = new AtomicInteger();
+
+    public PrefetchScheduler(Context context, StreamProxy proxy) {
+        this.context = context.getApplicationContext();
+        this.proxy = proxy;
+    }
+
+    public int getTargetCount() {
+        if (!NetworkReceiver.isConnected(context)) return 0;
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        return NetworkReceiver.isMetered(context)
+                ? prefs.getInt(KEY_METERED_COUNT, DEFAULT_METERED_COUNT)
+                : prefs.getInt(KEY_UNMETERED_COUNT, DEFAULT_UNMETERED_COUNT);
+    }
+
+    public void schedule(List<MusicItem> upcoming, final String username) {
+        final int gen = generation.incrementAndGet();
+        final List<MusicItem> items = new ArrayList<>(upcoming);
+        if (items.isEmpty() || !proxy.isRunning()) return;
+
+        worker.execute(() -> {
+            for (MusicItem item : items) {
+                if (gen != generation.get()) return;
+                if (isUnderPressure()) {
+                    Log.d(TAG, "Pausat per falta de memòria o espai");
+                    return;
+                }
+                warmCover(item, username);
+                try {
+                    long bytes = proxy.prefetch(username, item.getPath());
+                    if (bytes > 0) Log.d(TAG, "Precarregat " + item.getName() + " (" + bytes + "B)");
+                } catch (Exception e) {
+                    Log.w(TAG, "Error precarregant " + item.getName() + ": " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    public void shutdown() {
+        cancel();
+        worker.shutdownNow();
+    }
+
+    private void warmCover(MusicItem item, String username) {
+        ArtworkRepository.get(context).warm(new ArtworkRepository.Request(null, item.getPath(), null, username));
+    }
+
+    private boolean isUnderPressure() {
+        if (context.getCacheDir().getUsableSpace() < MIN_FREE_BYTES) return true;
+        try {
+            ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            ActivityManager.MemoryInfo info = new ActivityManager.MemoryInfo();
+            am.getMemoryInfo(info);
+            return info.lowMemory;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.util.LruCache;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageButton;
@@ -17,15 +18,18 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -46,19 +50,26 @@ public class SearchActivity extends AppCompatActivity {
     private TextView tvDefaultTitle;
     private List<MusicItem> searchResults = new ArrayList<>();
 
-    private final OkHttpClient client = new OkHttpClient.Builder()
-            .addInterceptor(chain -> {
-                Request original = chain.request();
-                Request request = original.newBuilder()
-                        .header("x-secret-key", API_SECRET_KEY)
-                        .method(original.method(), original.body())
-                        .build();
-                return chain.proceed(request);
-            }).build();
+    private final OkHttpClient client = HttpStack.get();
 
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
 
+    // Esperem que l'usuari pari d'escriure abans d'anar al servidor
+    private static final long SEARCH_DEBOUNCE_MS = 250;
+    private static final int SEARCH_CACHE_ENTRIES = 32;
+    private static final int LOCAL_RESULTS_LIMIT = 50;
+    private static final int ARTIST_SUGGESTIONS = 20;
+
+    private OfflineDB offlineDB;
+    private ArtistIndex artistIndex;
+
+    // Cada cerca (o llistat d'artistes) incrementa el número; les respostes antigues es descarten
+    private int searchSeq = 0;
+    private Call searchCall;
+    private Runnable pendingSearch;
+    private final LruCache<String, List<MusicItem>> searchCache = new LruCache<>(SEARCH_CACHE_ENTRIES);
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -70,6 +81,8 @@ public class SearchActivity extends AppCompatActivity {
         recyclerSearch = findViewById(R.id.recycler_search);
         progressBar = findViewById(R.id.progress_bar_search);
         tvDefaultTitle = findViewById(R.id.tv_default_title);
+        offlineDB = OfflineDB.get(this);
+        artistIndex = ArtistIndex.get(this);
         recyclerSearch.setLayoutManager(new LinearLayoutManager(this));
 
         android.content.SharedPreferences prefs = getSharedPreferences("ResoNodePrefs", MODE_PRIVATE);
@@ -114,71 +127,163 @@ public class SearchActivity extends AppCompatActivity {
         etSearch.addTextChangedListener(new TextWatcher() {
             @Override public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
             @Override public void onTextChanged(CharSequence s, int start, int before, int count) {
+                if (pendingSearch != null) mainHandler.removeCallbacks(pendingSearch);
+                pendingSearch = null;
+
                 if (s.toString().trim().isEmpty()) {
+                    cancelSearch();
                     tvDefaultTitle.setVisibility(View.VISIBLE);
                     fetchAllArtists();
                 } else {
                     tvDefaultTitle.setVisibility(View.GONE);
-                    performSearch(s.toString());
+                    onQueryChanged(s.toString());
                 }
             }
             @Override public void afterTextChanged(Editable s) {}
         });
     }
 
+    private static String cacheKey(String query) {
+        return query.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Si la consulta ja és a la cache es mostra directament (esborrar lletres és instantani).
+     * Si no, mentre arriba la resposta filtrem localment els resultats d'un prefix ja cercat:
+     * el servidor fa "conté", així que els resultats de "radio" inclouen els de "radiohead".
+     */
+    private void onQueryChanged(final String query) {
+        // La consulta anterior ja no interessa, tant si estava esperant resposta com si no
+        cancelSearch();
+        // Sense connexió no fem servir la cache: són resultats del servidor que no es poden reproduir
+        boolean online = NetworkReceiver.isConnected(this);
+        String key = cacheKey(query);
+        List<MusicItem> cached = online ? searchCache.get(key) : null;
+        if (cached != null) {
+            progressBar.setVisibility(View.GONE);
+            adapter.submitList(cached);
+            return;
+        }
+
+        boolean shown = false;
+        for (int len = key.length() - 1; online && len > 0; len--) {
+            List<MusicItem> superset = searchCache.get(key.substring(0, len));
+            if (superset != null) {
+                adapter.submitList(filterLocally(superset, key));
+                shown = true;
+                break;
+            }
+        }
+        // Primeres lletres sense res a la cache: mentre esperem, els artistes que comencen així
+        if (!shown && online) {
+            List<MusicItem> artists = artistIndex.prefix(query, ARTIST_SUGGESTIONS);
+            if (!artists.isEmpty()) adapter.submitList(artists);
+        }
+
+        pendingSearch = () -> {
+            pendingSearch = null;
+            performSearch(query);
+        };
+        mainHandler.postDelayed(pendingSearch, SEARCH_DEBOUNCE_MS);
+    }
+
+    // El servidor compara amb el nom de l'artista, de l'àlbum o del fitxer, que és l'últim tram del path_id
+    private static List<MusicItem> filterLocally(List<MusicItem> items, String key) {
+        List<MusicItem> filtered = new ArrayList<>();
+        for (MusicItem item : items) {
+            String path = item.getPath().replace("\\", "/");
+            String last = isLocal(item) ? item.getName() : path.substring(path.lastIndexOf('/') + 1);
+            if (last.toLowerCase(Locale.ROOT).contains(key)) filtered.add(item);
+        }
+        return filtered;
+    }
+
+    private static boolean isLocal(MusicItem item) {
+        return item.getPath().startsWith("/") || item.getPath().startsWith("content://");
+    }
+
+    private void cancelSearch() {
+        searchSeq++;
+        if (searchCall != null) {
+            searchCall.cancel();
+            searchCall = null;
+        }
+    }
+
     private void performSearch(String query) {
         if (query.isEmpty()) return;
 
+        cancelSearch();
+        final int seq = searchSeq;
+        final String key = cacheKey(query);
+
         progressBar.setVisibility(View.VISIBLE);
+        if (!NetworkReceiver.isConnected(this)) {
+            searchOffline(query, seq);
+            return;
+        }
+
         JSONObject json = new JSONObject();
         try { json.put("query", query); } catch(Exception e){}
 
-        executor.execute(() -> {
-            try {
-                RequestBody body = RequestBody.create(MediaType.parse("application/json"), json.toString());
-                Request request = new Request.Builder().url(SERVER_URL + "/search").post(body).build();
-                Response response = client.newCall(request).execute();
-
-                if (response.isSuccessful()) {
-                    JSONObject resJson = new JSONObject(response.body().string());
-                    JSONArray results = resJson.getJSONArray("results");
-
-                    List<MusicItem> temp = new ArrayList<>();
-                    for(int i=0; i<results.length(); i++) {
-                        JSONObject o = results.getJSONObject(i);
-                        String type = o.getString("type");
-                        String path = o.getString("path_id");
-                        String title = o.getString("title");
-                        String artist = o.has("artist") ? o.getString("artist") : "";
-
-                        String displayName = title;
-                        if(type.equals("song")) displayName += " - " + artist;
-                        if(type.equals("album")) displayName += " (" + artist + ")";
-
-                        
-                        boolean isFolder = type.equals("album") || type.equals("artist");
-
-                        temp.add(new MusicItem(displayName, isFolder ? "folder" : "file", path));
-                    }
+        RequestBody body = RequestBody.create(MediaType.parse("application/json"), json.toString());
+        Request request = new Request.Builder().url(SERVER_URL + "/search").post(body).build();
+        searchCall = client.newCall(request);
+        searchCall.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                mainHandler.post(() -> {
+                    if (seq == searchSeq) progressBar.setVisibility(View.GONE);
+                });
+            }
 
-                    mainHandler.post(() -> {
-                        searchResults.clear();
-                        searchResults.addAll(temp);
-                        adapter.notifyDataSetChanged();
-                        progressBar.setVisibility(View.GONE);
-                    });
+            @Override
+            public void onResponse(Call call, Response response) {
+                List<MusicItem> temp = null;
+                try (Response r = response) {
+                    if (r.isSuccessful()) {
+                        // El que ja tenim descarregat va primer: es pot reproduire sense xarxa
+                        temp = offlineDB.searchLocal(query, LOCAL_RESULTS_LIMIT);
+                        temp.addAll(BrowseJson.readSearchResults(r.body().byteStream()));
+                    }
+                } catch (Exception e) {
+                    temp = null;
                 }
-            } catch (Exception e) {
-                mainHandler.post(() -> progressBar.setVisibility(View.GONE));
+                final List<MusicItem> results = temp;
+                mainHandler.post(() -> {
+                    // Ja s'ha escrit una altra cosa: aquesta resposta arriba tard
+                    if (seq != searchSeq) return;
+                    searchCall = null;
+                    progressBar.setVisibility(View.GONE);
+                    if (results == null) return;
+                    searchCache.put(key, results);
+                    adapter.submitList(results);
+                });
             }
         });
     }
 
+    private void searchOffline(final String query, final int seq) {
+        executor.execute(() -> {
+            final List<MusicItem> results = offlineDB.searchLocal(query, LOCAL_RESULTS_LIMIT);
+            mainHandler.post(() -> {
+                if (seq != searchSeq) return;
+                progressBar.setVisibility(View.GONE);
+                adapter.submitList(results);
+            });
+        });
+    }
+
     private void openContext(MusicItem item) {
         Intent resultIntent = new Intent();
         resultIntent.putExtra("action", "navigate");
 
-        if (item.isFolder()) {
+        OfflineDB.LocalSong local = (!item.isFolder() && isLocal(item)) ? offlineDB.findLocalSong(item.getPath(), item.getName(), item.getArtist()) : null;
+        if (local != null) {
+            resultIntent.putExtra("action", "navigate_offline");
+            resultIntent.putExtra("path", local.playlist);
+            resultIntent.putExtra("play_song", item.getName());
+        } else if (item.isFolder()) {
             resultIntent.putExtra("path", item.getPath());
         } else {
             File f = new File(item.getPath());
@@ -195,59 +300,42 @@ public class SearchActivity extends AppCompatActivity {
         overridePendingTransition(R.anim.slide_in_right, R.anim.slide_out_left);
     }
 
+    /** Mostra la llista guardada i només va al servidor si ha passat el TTL. */
     private void fetchAllArtists() {
+        final int seq = searchSeq;
         executor.execute(() -> {
+            artistIndex.ensureLoaded();
+            if (artistIndex.isLoaded()) showArtists(artistIndex.all(), seq);
+            if (!artistIndex.isStale() || !NetworkReceiver.isConnected(this)) return;
             try {
-                Request request = new Request.Builder()
-                        .url(Config.SERVER_URL + "/vault/artists")
-                        .header("x-secret-key", Config.API_SECRET_KEY)
-                        .get()
-                        .build();
-
-                Response response = client.newCall(request).execute();
-
-                if (response.isSuccessful()) {
-                    String jsonStr = response.body().string();
-                    JSONObject jsonObject = new JSONObject(jsonStr);
-
-                    if (jsonObject.has("results")) {
-                        JSONArray resultsArray = jsonObject.getJSONArray("results");
-
-                        runOnUiThread(() -> {
-                            searchResults.clear();
-                            for (int i = 0; i < resultsArray.length(); i++) {
-                                try {
-                                    JSONObject obj = resultsArray.getJSONObject(i);
-
-                                    String artista = obj.getString("title");
-                                    String itemPath = artista;
-
-                                    MusicItem item = new MusicItem(
-                                            artista,
-                                            "folder",
-                                            itemPath,
-                                            "Artista"
-                                    );
-                                    searchResults.add(item);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                            }
-
-                            if (adapter != null) {
-                                adapter.setSelectionMode(false);
-                                adapter.setMode(PlaylistAdapter.MODE_PUBLIC);
-                                adapter.notifyDataSetChanged();
-                            }
-                        });
-                    }
-                }
+                if (artistIndex.refresh(client)) showArtists(artistIndex.all(), seq);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
     }
 
+    private void showArtists(final List<MusicItem> artists, final int seq) {
+        runOnUiThread(() -> {
+            if (seq != searchSeq) return;
+            if (adapter != null) {
+                adapter.setSelectionMode(false);
+                adapter.setMode(PlaylistAdapter.MODE_PUBLIC);
+                adapter.submitList(artists);
+            } else {
+                searchResults.clear();
+                searchResults.addAll(artists);
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        if (pendingSearch != null) mainHandler.removeCallbacks(pendingSearch);
+        cancelSearch();
+        super.onDestroy();
+    }
+
     @Override
     public void finish() {
         super.finish();
@@ -150,6 +150,7 @@ public class SettingsActivity extends AppCompatActivity {
         tvVersion = findViewById(R.id.tv_version);
 
         setupSpinners();
+        setupQuotaSpinner();
 
         String currentModel = session.getDeviceModel();
         tvDeviceInfo.setText(currentModel);
@@ -279,7 +280,7 @@ public class SettingsActivity extends AppCompatActivity {
     private void fetchLinkedDevices(final String currentModel) {
         executor.execute(() -> {
             try {
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = HttpStack.get();
                 RequestBody body = new MultipartBody.Builder()
                         .setType(MultipartBody.FORM)
                         .addFormDataPart("username", session.getUsername())
@@ -347,22 +348,57 @@ public class SettingsActivity extends AppCompatActivity {
 
     private void calculateStorageUsage() {
         executor.execute(() -> {
-            File musicDir = getDir("offline_music", Context.MODE_PRIVATE);
-            long size = getFolderSize(musicDir);
-            final String sizeText = String.format("%.2f MB", size / (1024.0 * 1024.0));
+            // La mida de cada blob ja és a OfflineDB: no cal recórrer el disc
+            OfflineDB db = OfflineDB.get(this);
+            long size = db.getStorageUsage();
+            long saved = db.getDedupSavings();
+            int quotaMb = getSharedPreferences("ResoNodePrefs", MODE_PRIVATE).getInt(DownloadScheduler.KEY_QUOTA_MB, 0);
+            String text = String.format("%.2f MB", size / (1024.0 * 1024.0));
+            if (quotaMb > 0) text += String.format(" de %.1f GB", quotaMb / 1024.0);
+            if (saved > 0) text += String.format(" (estalviats %.2f MB per duplicats)", saved / (1024.0 * 1024.0));
+            final String sizeText = text;
             runOnUiThread(() -> tvStorageUsed.setText(sizeText));
         });
     }
 
-    private long getFolderSize(File dir) {
-        long length = 0;
-        if (dir != null && dir.exists() && dir.listFiles() != null) {
-            for (File file : dir.listFiles()) {
-                if (file.isFile()) length += file.length();
-                else length += getFolderSize(file);
+    private void setupQuotaSpinner() {
+        SharedPreferences prefs = getSharedPreferences("ResoNodePrefs", MODE_PRIVATE);
+        Spinner spinQuota = findViewById(R.id.spinner_offline_quota);
+
+        final String[] quotaDisplay = {"Sense límit", "1 GB", "2 GB", "4 GB", "8 GB", "16 GB"};
+        final int[] quotaMb = {0, 1024, 2048, 4096, 8192, 16384};
+
+        ArrayAdapter<String> adapterQuota = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, quotaDisplay);
+        adapterQuota.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        spinQuota.setAdapter(adapterQuota);
+
+        int current = prefs.getInt(DownloadScheduler.KEY_QUOTA_MB, 0);
+        for (int i = 0; i < quotaMb.length; i++) {
+            if (quotaMb[i] == current) spinQuota.setSelection(i);
+        }
+
+        spinQuota.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (view != null && view instanceof TextView) ((TextView) view).setTextColor(0xFFFFFFFF);
+                if (prefs.getInt(DownloadScheduler.KEY_QUOTA_MB, 0) == quotaMb[position]) return;
+                prefs.edit().putInt(DownloadScheduler.KEY_QUOTA_MB, quotaMb[position]).apply();
+                DownloadScheduler.get(SettingsActivity.this).enforceQuota();
+                calculateStorageUsage();
+            }
+            @Override public void onNothingSelected(AdapterView<?> parent) {}
+        });
+    }
+
+    private void deleteRecursive(File dir, boolean deleteSelf) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) deleteRecursive(file, true);
+                else file.delete();
             }
         }
-        return length;
+        if (deleteSelf) dir.delete();
     }
 
     private void showClearConfirmation() {
@@ -376,17 +412,12 @@ public class SettingsActivity extends AppCompatActivity {
 
     private void deleteOfflineMusic() {
         executor.execute(() -> {
-            File musicDir = getDir("offline_music", Context.MODE_PRIVATE);
-            if (musicDir.exists() && musicDir.listFiles() != null) {
-                for (File file : musicDir.listFiles()) {
-                    file.delete();
-                }
-            }
-            OfflineDB db = new OfflineDB(this);
+            OfflineDB db = OfflineDB.get(this);
             try {
-                db.getWritableDatabase().execSQL("DELETE FROM songs");
+                db.deleteAllOffline();
             } catch (Exception e) {}
-            db.close();
+            // Portades, staging i fitxers antics que no consten com a blob
+            deleteRecursive(getDir("offline_music", Context.MODE_PRIVATE), false);
 
             runOnUiThread(() -> {
                 Toast.makeText(this, "Música eliminada.", Toast.LENGTH_SHORT).show();
@@ -405,7 +436,7 @@ public class SettingsActivity extends AppCompatActivity {
                 json.put("enabled", enabled);
                 json.put("is_public", isPublic);
 
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = HttpStack.get();
                 RequestBody body = RequestBody.create(MediaType.parse("application/json"), json.toString());
                 Request request = new Request.Builder()
                         .url(Config.SERVER_URL + "/stats/config")
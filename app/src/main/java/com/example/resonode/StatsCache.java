@@ -0,0 +1,159 @@
+package com.example.resonode;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Còpia a disc de les respostes de /stats/get per (usuari, període) i de /stats/community per
+ * període, amb l'ETag per revalidar-les. Dins del TTL es mostren sense preguntar res al servidor;
+ * passat el TTL es continuen mostrant mentre es fa la petició condicional.
+ */
+public class StatsCache {
+
+    private static final String DIR_NAME = "stats_cache";
+    private static final String PREFS_NAME = "ResoNodePrefs";
+    public static final String KEY_TTL_MINUTES = "wrapped_cache_ttl_minutes";
+    private static final int DEFAULT_TTL_MINUTES = 15;
+
+    private static StatsCache instance;
+
+    public static class Entry {
+        public final JSONObject body;
+        public final String etag;
+        public final long fetchedAt;
+
+        Entry(JSONObject body, String etag, long fetchedAt) {
+            this.body = body;
+            this.etag = etag;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    public interface Listener {
+        void onEntry(Entry entry);
+        void onError(IOException e);
+    }
+
+    private final File dir;
+    private final SharedPreferences prefs;
+
+    public static synchronized StatsCache get(Context context) {
+        if (instance == null) instance = new StatsCache(context.getApplicationContext());
+        return instance;
+    }
+
+    private StatsCache(Context context) {
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+        this.prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        dir.mkdirs();
+    }
+
+    public static String statsUrl(String username, String period) {
+        return Config.SERVER_URL + "/stats/get?username=" + username + "&period=" + period;
+    }
+
+    public static String communityUrl(String period) {
+        return Config.SERVER_URL + "/stats/community?period=" + period;
+    }
+
+    public synchronized Entry read(String url) {
+        File file = fileFor(url);
+        if (!file.exists()) return null;
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n == -1) break;
+                read += n;
+            }
+            JSONObject o = new JSONObject(new String(data, 0, read, "UTF-8"));
+            return new Entry(o.getJSONObject("body"), o.optString("etag", null), o.optLong("fetched_at", 0));
+        } catch (Exception e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    public boolean isFresh(Entry entry) {
+        long ttlMs = prefs.getInt(KEY_TTL_MINUTES, DEFAULT_TTL_MINUTES) * 60_000L;
+        return entry != null && System.currentTimeMillis() - entry.fetchedAt < ttlMs;
+    }
+
+    /** Força la revalidació a la pròxima lectura (per exemple, després de pujar historial). */
+    public void expire(String url) {
+        Entry entry = read(url);
+        if (entry != null) write(url, new Entry(entry.body, entry.etag, 0));
+    }
+
+    /**
+     * Petició condicional amb l'ETag de la còpia que hi hagi, en el dispatcher d'OkHttp. Amb un 304
+     * es renova la data i es torna la mateixa còpia; amb un 200 es desa la resposta nova. El
+     * listener s'executa al fil d'OkHttp.
+     */
+    public void refresh(OkHttpClient client, final String url, final Listener listener) {
+        final Entry cached = read(url);
+        Request.Builder builder = new Request.Builder().url(url).header("x-secret-key", Config.API_SECRET_KEY);
+        if (cached != null && cached.etag != null) builder.header("If-None-Match", cached.etag);
+
+        client.newCall(builder.build()).enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                listener.onError(e);
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                Entry entry;
+                try (Response r = response) {
+                    if (r.code() == 304 && cached != null) {
+                        entry = new Entry(cached.body, cached.etag, System.currentTimeMillis());
+                    } else if (r.isSuccessful()) {
+                        entry = new Entry(new JSONObject(r.body().string()), r.header("ETag"), System.currentTimeMillis());
+                    } else {
+                        listener.onError(new IOException("Error " + r.code()));
+                        return;
+                    }
+                } catch (Exception e) {
+                    listener.onError(new IOException("Resposta no vàlida", e));
+                    return;
+                }
+                write(url, entry);
+                listener.onEntry(entry);
+            }
+        });
+    }
+
+    private synchronized void write(String url, Entry entry) {
+        File file = fileFor(url);
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            JSONObject o = new JSONObject();
+            o.put("body", entry.body);
+            if (entry.etag != null) o.put("etag", entry.etag);
+            o.put("fetched_at", entry.fetchedAt);
+            out.write(o.toString().getBytes("UTF-8"));
+        } catch (Exception e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    private File fileFor(String url) {
+        return new File(dir, AudioCache.keyFor(url) + ".json");
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.resonode;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+public class StreamProxy {
+
+    private static final String TAG = "StreamProxy";
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final AudioCache cache;
+    private final OkHttpClient client;
+    private final ExecutorService workers = Executors.newCachedThreadPool();
+
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private volatile boolean running = false;
+    // Qualsevol app del dispositiu pot connectar-se a 127.0.0.1: sense el token de la sessió no
+    // es fa cap petició al servidor (que portaria la nostra x-secret-key)
+    private String token;
+
+    public StreamProxy(AudioCache cache, OkHttpClient client) {
+        this.cache = cache;
+        this.client = client;
+    }
+
+    public void start() {
+        if (running) return;
+        try {
+            token = newToken();
+            serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+            running = true;
+        } catch (IOException e) {
+            Log.e(TAG, "No s'ha pogut obrir el proxy local", e);
+            return;
+        }
+
+        acceptThread = new Thread(() -> {
+            while (running) {
+                try {
+                    final Socket socket = serverSocket.accept();
+                    workers.execute(() -> handle(socket));
+                } catch (IOException e) {
+                    if (running) Log.w(TAG, "Error acceptant connexió: " + e.getMessage());
+                }
+            }
+        }, "StreamProxy");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        try { if (serverSocket != null) serverSocket.close(); } catch (IOException e) {}
+        workers.shutdownNow();
+        Log.d(TAG, "Cache hit=" + cache.getHitBytes() + "B miss=" + cache.getMissBytes() + "B");
+    }
+
+    public boolean isRunning() { return running; }
+
+    public AudioCache getCache() { return cache; }
+
+    public String getProxyUrl(String username, String serverPath) throws IOException {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/stream?token=" + token + "&username=" + username
+                + "&path=" + URLEncoder.encode(serverPath, "UTF-8");
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) sb.append(String.format(Locale.ROOT, "%02x", b));
+        return sb.toString();
+    }
+
+    private boolean hasToken(Uri uri) {
+        String given = uri.getQueryParameter("token");
+        if (given == null || token == null) return false;
+        // Comparació de temps constant
+        return MessageDigest.isEqual(given.getBytes(), token.getBytes());
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) return;
+
+            long rangeStart = -1;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Range") && value.startsWith("bytes=")) {
+                    String spec = value.substring(6);
+                    int dash = spec.indexOf('-');
+                    try { rangeStart = Long.parseLong(spec.substring(0, dash).trim()); } catch (Exception e) { rangeStart = 0; }
+                }
+            }
+
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) return;
+            boolean headOnly = parts[0].equalsIgnoreCase("HEAD");
+            Uri uri = Uri.parse(parts[1]);
+            if (!hasToken(uri)) {
+                writeStatus(socket.getOutputStream(), "403 Forbidden");
+                return;
+            }
+            String username = uri.getQueryParameter("username");
+            String serverPath = uri.getQueryParameter("path");
+            if (serverPath == null) {
+                writeStatus(socket.getOutputStream(), "400 Bad Request");
+                return;
+            }
+
+            serve(socket.getOutputStream(), username, serverPath, rangeStart, headOnly);
+        } catch (IOException e) {
+            // MediaPlayer tanca connexions quan fa seek, no és un error real
+        } finally {
+            try { socket.close(); } catch (IOException e) {}
+        }
+    }
+
+    private void serve(OutputStream out, String username, String serverPath, long rangeStart, boolean headOnly) throws IOException {
+        String key = AudioCache.keyFor(serverPath);
+        long start = Math.max(rangeStart, 0);
+        long total = cache.getTotalLength(key);
+        long cached = cache.getCachedLength(key);
+
+        Response upstream = null;
+        long upstreamFrom = Math.max(start, cached);
+        boolean needsUpstream = total <= 0 || (upstreamFrom < total && !headOnly);
+        if (needsUpstream) {
+            upstream = openUpstream(username, serverPath, upstreamFrom);
+            if (upstream == null) {
+                writeStatus(out, "502 Bad Gateway");
+                return;
+            }
+            if (total <= 0) {
+                total = parseTotalLength(upstream, upstreamFrom);
+                cache.setTotalLength(key, total);
+            }
+        }
+
+        try {
+            writeHeaders(out, start, total, rangeStart >= 0);
+            if (headOnly) return;
+
+            long position = start;
+            if (position < cached) {
+                try (InputStream disk = cache.openRead(key, position)) {
+                    if (disk != null) {
+                        long copied = copy(disk, out, null, cached - position);
+                        cache.recordHit(copied);
+                        position += copied;
+                    }
+                }
+            }
+
+            if (upstream != null) {
+                InputStream body = upstream.body().byteStream();
+                OutputStream tee = cache.openAppend(key, position);
+                try {
+                    long copied = copy(body, out, tee, Long.MAX_VALUE);
+                    cache.recordMiss(copied);
+                } finally {
+                    if (tee != null) tee.close();
+                }
+            }
+            out.flush();
+        } finally {
+            if (upstream != null) upstream.close();
+        }
+    }
+
+    public long prefetch(String username, String serverPath) throws IOException {
+        String key = AudioCache.keyFor(serverPath);
+        if (cache.isComplete(key)) return 0;
+
+        long from = cache.getCachedLength(key);
+        // Primer l'escriptor: si ja la desa una altra connexió no cal ni obrir la petició
+        OutputStream tee = cache.openAppend(key, from);
+        if (tee == null) return 0;
+        try {
+            Response upstream = openUpstream(username, serverPath, from);
+            if (upstream == null) return 0;
+            try {
+                if (cache.getTotalLength(key) <= 0) cache.setTotalLength(key, parseTotalLength(upstream, from));
+                long copied = copy(upstream.body().byteStream(), null, tee, Long.MAX_VALUE);
+                cache.recordMiss(copied);
+                return copied;
+            } finally {
+                upstream.close();
+            }
+        } finally {
+            tee.close();
+        }
+    }
+
+    private Response openUpstream(String username, String serverPath, long from) {
+        try {
+            String url = Config.SERVER_URL + "/stream?username=" + username + "&path=" + URLEncoder.encode(serverPath, "UTF-8");
+            Request.Builder builder = new Request.Builder().url(url).header("x-secret-key", Config.API_SECRET_KEY);
+            if (from > 0) builder.header("Range", "bytes=" + from + "-");
+            Response response = client.newCall(builder.build()).execute();
+            if (!response.isSuccessful()) {
+                response.close();
+                return null;
+            }
+            if (from > 0 && response.code() != 206) {
+                response.close();
+                return null;
+            }
+            return response;
+        } catch (IOException e) {
+            Log.w(TAG, "Upstream error: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private long parseTotalLength(Response response, long from) {
+        String contentRange = response.header("Content-Range");
+        if (contentRange != null) {
+            int slash = contentRange.lastIndexOf('/');
+            try { return Long.parseLong(contentRange.substring(slash + 1).trim()); } catch (Exception e) {}
+        }
+        long len = response.body().contentLength();
+        return len > 0 ? from + len : -1;
+    }
+
+    private void writeHeaders(OutputStream out, long start, long total, boolean isRange) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        if (isRange && total > 0) {
+            sb.append("HTTP/1.1 206 Partial Content\r\n");
+            sb.append("Content-Range: bytes ").append(start).append('-').append(total - 1).append('/').append(total).append("\r\n");
+        } else {
+            sb.append("HTTP/1.1 200 OK\r\n");
+        }
+        if (total > 0) sb.append("Content-Length: ").append(total - start).append("\r\n");
+        sb.append("Content-Type: audio/mpeg\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("Connection: close\r\n\r\n");
+        out.write(sb.toString().getBytes("ISO-8859-1"));
+    }
+
+    private void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+        out.flush();
+    }
+
+    private long copy(InputStream in, OutputStream out, OutputStream tee, long limit) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long copied = 0;
+        while (copied < limit) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, limit - copied));
+            if (n == -1) break;
+            if (tee != null) {
+                try {
+                    tee.write(buffer, 0, n);
+                } catch (IOException e) {
+                    tee = null;
+                }
+            }
+            if (out != null) out.write(buffer, 0, n);
+            copied += n;
+        }
+        return copied;
+    }
+}
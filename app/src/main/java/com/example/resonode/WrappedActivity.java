@@ -18,14 +18,14 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import okhttp3.Call;
-import okhttp3.Callback;
 import okhttp3.OkHttpClient;
-import okhttp3.Request;
-import okhttp3.Response;
 import android.content.SharedPreferences;
 
 public class WrappedActivity extends AppCompatActivity {
@@ -35,10 +35,19 @@ public class WrappedActivity extends AppCompatActivity {
     private ProgressBar pbLoading;
     private TabLayout tabLayout;
     private SessionManager session;
-    private final OkHttpClient client = new OkHttpClient();
+    private final OkHttpClient client = HttpStack.get();
+    // Només lectures locals (còpia a disc i acumulats): les peticions van pel dispatcher d'OkHttp
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private StatsCache cache;
+    // Cada loadStats invalida les respostes pendents de l'anterior (canvi de pestanya o d'usuari)
+    private int loadGeneration = 0;
 
     private String viewingUser;
     private String currentPeriod = "week";
+    // Quan es puja historial les pendents passen a ser del servidor: es torna a pintar
+    private final Runnable onHistorySynced = () -> {
+        if (viewingUser.equals(session.getUsername())) loadStats();
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -73,6 +82,7 @@ public class WrappedActivity extends AppCompatActivity {
         }
 
         session = new SessionManager(this);
+        cache = StatsCache.get(this);
         viewingUser = session.getUsername();
 
         setSupportActionBar(toolbar);
@@ -110,11 +120,19 @@ public class WrappedActivity extends AppCompatActivity {
             return;
         }
 
-        MusicService.syncHistory(this);
+        HistorySync.get(this).addListener(onHistorySynced);
+        HistorySync.get(this).requestSync();
 
         loadStats();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        HistorySync.get(this).removeListener(onHistorySynced);
+        executor.shutdown();
+    }
+
     private void updateTitle() {
         if (getSupportActionBar() != null) {
             if (viewingUser.equals(session.getUsername())) {
@@ -154,147 +172,190 @@ public class WrappedActivity extends AppCompatActivity {
 
     private void showCommunityDialog() {
         pbLoading.setVisibility(View.VISIBLE);
-        String url = Config.SERVER_URL + "/stats/community?period=" + currentPeriod;
-
-        Request request = new Request.Builder().url(url).header("x-secret-key", Config.API_SECRET_KEY).get().build();
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                runOnUiThread(() -> {
-                    pbLoading.setVisibility(View.GONE);
-                    Toast.makeText(WrappedActivity.this, "Error de connexió", Toast.LENGTH_SHORT).show();
-                });
+        final String period = currentPeriod;
+
+        executor.execute(() -> {
+            final String url = StatsCache.communityUrl(period);
+            final StatsCache.Entry cached = cache.read(url);
+            if (cache.isFresh(cached) || !NetworkReceiver.isConnected(this)) {
+                showCommunity(period, cached);
+                return;
             }
+            cache.refresh(client, url, new StatsCache.Listener() {
+                @Override
+                public void onEntry(StatsCache.Entry entry) {
+                    showCommunity(period, entry);
+                }
 
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                if (!response.isSuccessful()) {
-                    runOnUiThread(() -> pbLoading.setVisibility(View.GONE));
-                    return;
+                @Override
+                public void onError(IOException e) {
+                    // Si n'hi ha, es mostra la còpia antiga
+                    showCommunity(period, cached);
                 }
-                try {
-                    String jsonStr = response.body().string();
-                    JSONObject json = new JSONObject(jsonStr);
-                    JSONArray users = json.getJSONArray("users");
-
-                    final List<String> userNames = new ArrayList<>();
-                    final List<String> displayNames = new ArrayList<>();
-
-                    userNames.add(session.getUsername());
-                    displayNames.add("👤 El meu perfil");
-
-                    for(int i=0; i<users.length(); i++) {
-                        JSONObject u = users.getJSONObject(i);
-                        String name = u.getString("username");
-                        int mins = u.getInt("minutes");
-
-                        if (!name.equals(session.getUsername())) {
-                            userNames.add(name);
-                            displayNames.add(name + " (" + mins + " min)");
-                        }
-                    }
-
-                    runOnUiThread(() -> {
-                        pbLoading.setVisibility(View.GONE);
-                        new AlertDialog.Builder(WrappedActivity.this)
-                                .setTitle("Rànquing Comunitat (" + currentPeriod + ")")
-                                .setItems(displayNames.toArray(new String[0]), (dialog, which) -> {
-                                    viewingUser = userNames.get(which);
-                                    updateTitle();
-                                    loadStats();
-                                })
-                                .show();
-                    });
-
-                } catch (Exception e) { e.printStackTrace(); }
-            }
+            });
         });
     }
 
+    private void showCommunity(final String period, StatsCache.Entry entry) {
+        if (entry == null) {
+            runOnUiThread(() -> {
+                pbLoading.setVisibility(View.GONE);
+                Toast.makeText(WrappedActivity.this, "Error de connexió", Toast.LENGTH_SHORT).show();
+            });
+            return;
+        }
+
+        try {
+            JSONArray users = entry.body.getJSONArray("users");
+
+            final List<String> userNames = new ArrayList<>();
+            final List<String> displayNames = new ArrayList<>();
+
+            userNames.add(session.getUsername());
+            displayNames.add("👤 El meu perfil");
+
+            for(int i=0; i<users.length(); i++) {
+                JSONObject u = users.getJSONObject(i);
+                String name = u.getString("username");
+                int mins = u.getInt("minutes");
+
+                if (!name.equals(session.getUsername())) {
+                    userNames.add(name);
+                    displayNames.add(name + " (" + mins + " min)");
+                }
+            }
+
+            runOnUiThread(() -> {
+                pbLoading.setVisibility(View.GONE);
+                if (isFinishing()) return;
+                new AlertDialog.Builder(WrappedActivity.this)
+                        .setTitle("Rànquing Comunitat (" + period + ")")
+                        .setItems(displayNames.toArray(new String[0]), (dialog, which) -> {
+                            viewingUser = userNames.get(which);
+                            updateTitle();
+                            loadStats();
+                        })
+                        .show();
+            });
+
+        } catch (Exception e) {
+            e.printStackTrace();
+            runOnUiThread(() -> pbLoading.setVisibility(View.GONE));
+        }
+    }
+
+    /**
+     * Primer es mostra el que ja hi ha (la còpia del servidor o, per al perfil propi, els acumulats
+     * locals) i, si la còpia ha caducat, es revalida amb enqueue i es torna a pintar. Així una
+     * petició lenta no fa esperar la pestanya següent.
+     */
     private void loadStats() {
+        final int generation = ++loadGeneration;
+        final String user = viewingUser;
+        final String period = currentPeriod;
+        final boolean own = user.equals(session.getUsername());
+
         pbLoading.setVisibility(View.VISIBLE);
         tvNoData.setVisibility(View.GONE);
         llTopSongs.removeAllViews();
         tvTotalTime.setText("...");
 
-        if (!viewingUser.equals(session.getUsername()) && !NetworkReceiver.isConnected(this)) {
-            pbLoading.setVisibility(View.GONE);
-            tvNoData.setText("Sense connexió. No es poden veure dades d'altres usuaris.");
-            tvNoData.setVisibility(View.VISIBLE);
-            return;
-        }
+        executor.execute(() -> {
+            String url = StatsCache.statsUrl(user, period);
+            StatsCache.Entry cached = cache.read(url);
+            if (cached != null) showStats(generation, reconcile(cached.body, own, period));
+            else if (own) showStats(generation, OfflineDB.get(this).getLocalStats(period));
+            if (cache.isFresh(cached)) return;
 
-        String url = Config.SERVER_URL + "/stats/get?username=" + viewingUser + "&period=" + currentPeriod;
-        Request request = new Request.Builder().url(url).header("x-secret-key", Config.API_SECRET_KEY).get().build();
-
-        client.newCall(request).enqueue(new Callback() {
-            @Override
-            public void onFailure(Call call, IOException e) {
-                loadLocalDataFallback();
+            if (!NetworkReceiver.isConnected(this)) {
+                if (cached == null) showOffline(generation, own, "Sense connexió. No es poden veure dades d'altres usuaris.");
+                return;
             }
-
-            @Override
-            public void onResponse(Call call, Response response) throws IOException {
-                if (!response.isSuccessful()) {
-                    loadLocalDataFallback();
-                    return;
+            cache.refresh(client, url, new StatsCache.Listener() {
+                @Override
+                public void onEntry(StatsCache.Entry fresh) {
+                    showStats(generation, reconcile(fresh.body, own, period));
                 }
 
-                try {
-                    String jsonData = response.body().string();
-                    JSONObject json = new JSONObject(jsonData);
-
-                    if (json.has("enabled") && !json.getBoolean("enabled")) {
-                        runOnUiThread(() -> {
-                            pbLoading.setVisibility(View.GONE);
-                            tvTotalTime.setText("Privat");
-                            tvNoData.setText("Aquest usuari té el perfil privat.");
-                            tvNoData.setVisibility(View.VISIBLE);
-                        });
-                        return;
-                    }
-
-                    final int totalMinutes = json.optInt("total_minutes", 0);
-                    final double totalHours = json.optDouble("total_hours", 0.0);
-                    final JSONArray topSongs = json.optJSONArray("top_5");
-
-                    runOnUiThread(() -> {
-                        pbLoading.setVisibility(View.GONE);
-                        updateUI(totalMinutes, totalHours, topSongs);
-                    });
-
-                } catch (Exception e) {
-                    loadLocalDataFallback();
+                @Override
+                public void onError(IOException e) {
+                    if (cached == null) showOffline(generation, own, "Error de connexió");
                 }
-            }
+            });
         });
     }
 
-    private void loadLocalDataFallback() {
-        if (!viewingUser.equals(session.getUsername())) {
-            runOnUiThread(() -> {
-                pbLoading.setVisibility(View.GONE);
-                Toast.makeText(WrappedActivity.this, "Error de connexió", Toast.LENGTH_SHORT).show();
-            });
-            return;
+    /** Suma a la resposta del servidor les reproduccions locals que encara no s'han pujat. */
+    private JSONObject reconcile(JSONObject server, boolean own, String period) {
+        if (!own || !server.optBoolean("enabled", true)) return server;
+        try {
+            JSONObject pending = OfflineDB.get(this).getUnsyncedStats(period);
+            JSONObject plays = pending.optJSONObject("plays");
+            if (plays == null || plays.length() == 0) return server;
+
+            JSONObject merged = new JSONObject(server.toString());
+            long seconds = server.optLong("total_seconds", server.optInt("total_minutes") * 60L) + pending.optLong("seconds");
+            merged.put("total_minutes", seconds / 60);
+            merged.put("total_hours", seconds / 3600.0);
+
+            // El top del servidor només porta 5 cançons: les pendents s'hi sumen o hi entren
+            final Map<String, Integer> counts = new HashMap<>();
+            JSONArray top = server.optJSONArray("top_5");
+            for (int i = 0; top != null && i < top.length(); i++) {
+                JSONObject item = top.getJSONObject(i);
+                counts.put(item.optString("name"), item.optInt("plays"));
+            }
+            Iterator<String> keys = plays.keys();
+            while (keys.hasNext()) {
+                String name = keys.next();
+                Integer known = counts.get(name);
+                counts.put(name, (known == null ? 0 : known) + plays.optInt(name));
+            }
+            List<String> names = new ArrayList<>(counts.keySet());
+            Collections.sort(names, (a, b) -> counts.get(b) - counts.get(a));
+            JSONArray mergedTop = new JSONArray();
+            for (int i = 0; i < names.size() && i < 5; i++) {
+                JSONObject item = new JSONObject();
+                item.put("name", names.get(i));
+                item.put("plays", counts.get(names.get(i)));
+                mergedTop.put(item);
+            }
+            merged.put("top_5", mergedTop);
+            return merged;
+        } catch (Exception e) {
+            return server;
         }
+    }
 
+    private void showStats(final int generation, final JSONObject json) {
         runOnUiThread(() -> {
-            try {
-                OfflineDB db = new OfflineDB(WrappedActivity.this);
-                JSONObject localStats = db.getLocalStats(currentPeriod);
-                db.close();
-
-                int mins = localStats.optInt("total_minutes");
-                double hours = localStats.optDouble("total_hours");
-                JSONArray top = localStats.optJSONArray("top_5");
+            if (generation != loadGeneration) return;
+            pbLoading.setVisibility(View.GONE);
+            tvNoData.setVisibility(View.GONE);
+            llTopSongs.removeAllViews();
+
+            if (json.has("enabled") && !json.optBoolean("enabled")) {
+                tvTotalTime.setText("Privat");
+                tvNoData.setText("Aquest usuari té el perfil privat.");
+                tvNoData.setVisibility(View.VISIBLE);
+                return;
+            }
+            updateUI(json.optInt("total_minutes"), json.optDouble("total_hours", 0.0), json.optJSONArray("top_5"));
+        });
+    }
 
-                pbLoading.setVisibility(View.GONE);
+    /** No s'ha pogut parlar amb el servidor i no hi havia còpia. */
+    private void showOffline(final int generation, final boolean own, final String message) {
+        runOnUiThread(() -> {
+            if (generation != loadGeneration) return;
+            pbLoading.setVisibility(View.GONE);
+            if (own) {
                 Toast.makeText(WrappedActivity.this, "Mode Offline: Mostrant dades locals", Toast.LENGTH_SHORT).show();
-                updateUI(mins, hours, top);
-
-            } catch (Exception e) {
-                pbLoading.setVisibility(View.GONE);
+            } else if (NetworkReceiver.isConnected(this)) {
+                Toast.makeText(WrappedActivity.this, message, Toast.LENGTH_SHORT).show();
+            } else {
+                tvNoData.setText(message);
+                tvNoData.setVisibility(View.VISIBLE);
             }
         });
     }
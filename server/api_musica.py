@@ -1,6 +1,7 @@
 from fastapi import FastAPI, UploadFile, File, Form, HTTPException, Request
 from fastapi.responses import FileResponse, JSONResponse, Response, StreamingResponse
 from fastapi.middleware.cors import CORSMiddleware
+from starlette.concurrency import run_in_threadpool
 import os
 import shutil
 import zipfile
@@ -12,6 +13,11 @@ from pydantic import BaseModel
 from urllib.parse import unquote
 from typing import Optional
 import time
+import json
+import hashlib
+import gzip
+import threading
+from email.utils import formatdate
 from datetime import datetime, timedelta
 
 # --- ⚙️ CONFIGURACIÓN DEL SERVIDOR ---
@@ -326,8 +332,43 @@ def add_from_vault(data: AddFromVault):
                     except: pass
     return {"success": True, "added": count}
 
+def conditional_json(request: Request, payload, mtime=None):
+    # ETag calculat sobre el contingut: si el client ja el té, 304 sense cos
+    body = json.dumps(payload, ensure_ascii=False, sort_keys=True)
+    etag = '"' + hashlib.sha1(body.encode("utf-8")).hexdigest() + '"'
+    headers = {"ETag": etag, "Cache-Control": "no-cache"}
+    if mtime is not None:
+        headers["Last-Modified"] = formatdate(mtime, usegmt=True)
+    if request.headers.get("if-none-match") == etag:
+        return Response(status_code=304, headers=headers)
+    return Response(content=body, media_type="application/json", headers=headers)
+
+COVER_MAX_AGE = 3600
+
+def conditional_image(request: Request, data: bytes, media_type="image/jpeg"):
+    # Les caràtules es poden canviar (upload_cover): el client les revalida passat el max-age
+    etag = '"' + hashlib.sha1(data).hexdigest() + '"'
+    headers = {"ETag": etag, "Cache-Control": f"max-age={COVER_MAX_AGE}"}
+    if request.headers.get("if-none-match") == etag:
+        return Response(status_code=304, headers=headers)
+    return Response(content=data, media_type=media_type, headers=headers)
+
+def detect_vault_artist(full_path):
+    detected_artist = "SpotiFly"
+    try:
+        real_path = os.path.realpath(full_path)
+        if "MusicVault" in real_path:
+            parts = real_path.split(os.sep)
+            if "MusicVault" in parts:
+                idx = parts.index("MusicVault")
+                if idx + 1 < len(parts):
+                    detected_artist = parts[idx + 1]
+    except:
+        pass
+    return detected_artist
+
 @app.get("/browse")
-def browse(username: str, folder: str = ""):
+def browse(request: Request, username: str, folder: str = "", offset: int = 0, limit: int = 0):
     safe_user = secure_path(username)
     folder = folder.replace("\\", "/") 
     if ".." in folder: return JSONResponse({"error": "Ruta inválida"}, 403)
@@ -361,21 +402,24 @@ def browse(username: str, folder: str = ""):
                 items.append({"name": name, "type": "folder", "path": path_rel, "artist": ""})
             
             elif name.lower().endswith(".mp3"):
-                detected_artist = "SpotiFly"
-                try:
-                    real_path = os.path.realpath(full_path)
-                    if "MusicVault" in real_path:
-                        parts = real_path.split(os.sep)
-                        if "MusicVault" in parts:
-                            idx = parts.index("MusicVault")
-                            if idx + 1 < len(parts):
-                                detected_artist = parts[idx + 1] 
-                except:
-                    pass
-                items.append({"name": name, "type": "file", "path": path_rel, "artist": detected_artist})
+                # L'artista es resol després de paginar, només per als elements retornats
+                items.append({"name": name, "type": "file", "path": path_rel, "artist": full_path})
 
         items.sort(key=lambda x: (x["type"] != "folder", x["name"].lower()))
-        return {"current_path": current_rel, "items": items, "is_vault": is_vault}
+        total = len(items)
+        # limit=0 vol dir tota la carpeta (clients antics i descàrregues)
+        offset = max(offset, 0)
+        if limit > 0:
+            items = items[offset:offset + limit]
+            next_offset = offset + limit if offset + limit < total else None
+        else:
+            next_offset = None
+        for item in items:
+            if item["type"] == "file":
+                item["artist"] = detect_vault_artist(item["artist"])
+        payload = {"current_path": current_rel, "items": items, "is_vault": is_vault,
+                   "total": total, "offset": offset, "next_offset": next_offset}
+        return conditional_json(request, payload, os.path.getmtime(target))
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
 
 @app.post("/playlist/create")
@@ -555,7 +599,7 @@ async def upload_update_remoto(apk_file: UploadFile = File(...), json_file: Uplo
     except Exception as e: return JSONResponse(status_code=500, content={"error": str(e)})
 
 @app.get("/cover")
-def get_cover(username: str, path: str):
+def get_cover(request: Request, username: str, path: str):
     path = unquote(path)
     if ".." in path: return JSONResponse({"error": "Hack detected"}, 403)
     safe_user = secure_path(username)
@@ -567,7 +611,7 @@ def get_cover(username: str, path: str):
         try:
             tags = ID3(target)
             for tag in tags.values():
-                if isinstance(tag, APIC): return Response(content=tag.data, media_type="image/jpeg")
+                if isinstance(tag, APIC): return conditional_image(request, tag.data)
         except: pass
         target = os.path.dirname(target)
     elif os.path.isfile(target):
@@ -575,7 +619,9 @@ def get_cover(username: str, path: str):
 
     for img_name in ["cover.jpg", "cover.png", "folder.jpg", "folder.png", "artwork.jpg"]:
         img_path = os.path.join(target, img_name)
-        if os.path.exists(img_path): return FileResponse(img_path)
+        if os.path.exists(img_path):
+            with open(img_path, "rb") as f: data = f.read()
+            return conditional_image(request, data, "image/png" if img_name.endswith(".png") else "image/jpeg")
 
     if os.path.isdir(target):
         for f in os.listdir(target):
@@ -583,7 +629,7 @@ def get_cover(username: str, path: str):
                 try:
                     tags = ID3(os.path.join(target, f))
                     for tag in tags.values():
-                        if isinstance(tag, APIC): return Response(content=tag.data, media_type="image/jpeg")
+                        if isinstance(tag, APIC): return conditional_image(request, tag.data)
                 except: continue
     return JSONResponse({"error": "No cover"}, 404)
 
@@ -648,32 +694,58 @@ def update_stats_config(data: WrappedConfig):
         return {"status": "updated"}
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
 
-@app.post("/stats/sync")
-def sync_stats(data: SyncStats):
+# Claus d'idempotència ja aplicades; el lock evita que dos reintents simultanis entrin alhora
+sync_lock = threading.Lock()
+
+def apply_sync(data: SyncStats, batch_key):
+    with sync_lock:
+        return apply_sync_locked(data, batch_key)
+
+def apply_sync_locked(data: SyncStats, batch_key):
     safe_user = secure_path(data.username)
     user_file = os.path.join(USERS_DB_PATH, f"{safe_user}.txt")
     
     # Primer comprovem si té el Wrapped activat
     is_enabled = False
+    content = ""
     if os.path.exists(user_file):
         with open(user_file, 'r') as f:
-            if "Wrapped: DISABLED" not in f.read():
-                is_enabled = True # Per defecte o si és Public/Private
+            content = f.read()
+        if "Wrapped: DISABLED" not in content:
+            is_enabled = True # Per defecte o si és Public/Private
     
     if not is_enabled:
         return {"status": "ignored", "msg": "Wrapped is disabled"}
 
+    # El lot ja s'havia desat però el client no va rebre la resposta
+    if batch_key and f"SYNC|{batch_key}" in content.splitlines():
+        return {"status": "duplicate"}
+
+    with open(user_file, "a") as f:
+        for p in data.plays:
+            # Format: LOG|timestamp|seconds|SongName|Artist
+            line = f"LOG|{p['timestamp']}|{p['duration']}|{p['song']}|{p['artist']}"
+            f.write(f"\n{line}")
+        if batch_key: f.write(f"\nSYNC|{batch_key}")
+    return {"status": "synced"}
+
+@app.post("/stats/sync")
+async def sync_stats(request: Request):
+    # El client envia lots amb gzip i una Idempotency-Key per lot
+    body = await request.body()
+    if request.headers.get("content-encoding") == "gzip":
+        try: body = gzip.decompress(body)
+        except OSError: return JSONResponse({"error": "Invalid gzip body"}, 400)
+    try: data = SyncStats(**json.loads(body))
+    except Exception as e: return JSONResponse({"error": str(e)}, 422)
+
+    batch_key = secure_path(request.headers.get("idempotency-key", "")).replace("|", "").strip()
     try:
-        with open(user_file, "a") as f:
-            for p in data.plays:
-                # Format: LOG|timestamp|seconds|SongName|Artist
-                line = f"LOG|{p['timestamp']}|{p['duration']}|{p['song']}|{p['artist']}"
-                f.write(f"\n{line}")
-        return {"status": "synced"}
+        return await run_in_threadpool(apply_sync, data, batch_key)
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
 
 @app.get("/stats/get")
-def get_stats(username: str, period: str = "week"): # period: week, month, year
+def get_stats(request: Request, username: str, period: str = "week"): # period: week, month, year
     safe_user = secure_path(username)
     user_file = os.path.join(USERS_DB_PATH, f"{safe_user}.txt")
     if not os.path.exists(user_file): return JSONResponse({"error": "User not found"}, 404)
@@ -697,8 +769,10 @@ def get_stats(username: str, period: str = "week"): # period: week, month, year
         for l in lines:
             if l.startswith("Wrapped:"): config = l.split(":")[1].strip()
         
+        # El client guarda la resposta i la revalida amb If-None-Match
+        mtime = os.path.getmtime(user_file)
         if config == "DISABLED":
-            return {"enabled": False}
+            return conditional_json(request, {"enabled": False}, mtime)
 
         for line in lines:
             if line.startswith("LOG|"):
@@ -719,19 +793,21 @@ def get_stats(username: str, period: str = "week"): # period: week, month, year
         sorted_songs = sorted(song_counts.items(), key=lambda item: item[1], reverse=True)[:5]
         top_5 = [{"name": k, "plays": v} for k, v in sorted_songs]
 
-        return {
+        return conditional_json(request, {
             "enabled": True,
             "period": period,
+            "total_seconds": int(total_seconds),
             "total_minutes": int(total_seconds / 60),
             "total_hours": round(total_seconds / 3600, 1),
             "top_5": top_5,
             "config": config
-        }
+        }, mtime)
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
     
 @app.get("/stats/community")
-def get_community_stats(period: str = "week"):
+def get_community_stats(request: Request, period: str = "week"):
     community = []
+    mtime = 0
     
     # Calcular límit de temps
     now = time.time()
@@ -748,6 +824,7 @@ def get_community_stats(period: str = "week"):
             
             username = filename.replace(".txt", "")
             filepath = os.path.join(USERS_DB_PATH, filename)
+            mtime = max(mtime, os.path.getmtime(filepath))
             
             with open(filepath, 'r') as f:
                 lines = f.read().splitlines()
@@ -777,18 +854,19 @@ def get_community_stats(period: str = "week"):
 
         # Ordenar per qui ha escoltat més música
         community.sort(key=lambda x: x["minutes"], reverse=True)
-        return {"users": community}
+        return conditional_json(request, {"users": community}, mtime or None)
         
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
     
 @app.get("/vault/artists")
-def get_vault_artists():
+def get_vault_artists(request: Request):
     try:
         if not os.path.exists(VAULT_DIR): return {"results": []}
         artists = [d for d in os.listdir(VAULT_DIR) if os.path.isdir(os.path.join(VAULT_DIR, d))]
         artists.sort(key=lambda s: s.lower())
         results = [{"type": "artist", "title": a, "artist": "Artista", "path_id": a} for a in artists]
-        return {"results": results}
+        # El client guarda la llista i la revalida amb If-None-Match
+        return conditional_json(request, {"results": results}, os.path.getmtime(VAULT_DIR))
     except Exception as e: return JSONResponse({"error": str(e)}, 500)
 
 if __name__ == "__main__":